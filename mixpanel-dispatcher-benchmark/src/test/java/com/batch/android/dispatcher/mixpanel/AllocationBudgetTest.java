@@ -0,0 +1,116 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import com.batch.android.Batch;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Allocation budgets of the dispatchEvent path
+ * Measures the bytes allocated by the current thread per dispatchEvent call, once the path has
+ * been compiled, and fails if a payload goes over its budget. This includes the JSONObject given
+ * to MixpanelAPI#track, which Mixpanel used to build itself from the map given to trackMap.
+ * The measured numbers are always printed, so that budgets can be tightened when allocations
+ * go down.
+ * Unlike the benchmarks, this runs with the unit tests:
+ *   ./gradlew :mixpanel-dispatcher-benchmark:testDebugUnitTest
+ */
+public class AllocationBudgetTest
+{
+    private static final int WARMUP_CALLS = 50000;
+    private static final int MEASURED_CALLS = 10000;
+    private static final int MEASURED_ROUNDS = 5;
+
+    /**
+     * Representative payloads, with their budget in bytes per dispatchEvent call
+     */
+    enum Scenario
+    {
+        PUSH_DISPLAY_SHORT_DEEPLINK(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, Deeplink.SHORT, false, 520),
+        PUSH_OPEN_LONG_DEEPLINK(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, Deeplink.LONG, false, 950),
+        PUSH_OPEN_FRAGMENT_DEEPLINK(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, Deeplink.FRAGMENT_HEAVY, false, 1200),
+        PUSH_OPEN_MALFORMED_DEEPLINK(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, Deeplink.MALFORMED, false, 1450),
+        IN_APP_SHOW_NO_DEEPLINK(Batch.EventDispatcher.Type.MESSAGING_SHOW, null, false, 450),
+        IN_APP_CLICK_CUSTOM_PAYLOAD(Batch.EventDispatcher.Type.MESSAGING_CLICK, Deeplink.SHORT, true, 550),
+        IN_APP_WEBVIEW_CLICK_LONG_DEEPLINK(Batch.EventDispatcher.Type.MESSAGING_WEBVIEW_CLICK, Deeplink.LONG, false, 900);
+
+        final Batch.EventDispatcher.Type type;
+        final BenchmarkPayload payload;
+        final long budgetBytes;
+
+        Scenario(Batch.EventDispatcher.Type type, Deeplink deeplink, boolean customPayload, long budgetBytes)
+        {
+            Map<String, String> custom = new HashMap<>();
+            if (customPayload) {
+                custom.put("utm_source", "in_app");
+                custom.put("utm_content", "banner");
+            }
+            this.type = type;
+            this.payload = new BenchmarkPayload("tracking_id", deeplink != null ? deeplink.url : null, custom);
+            this.budgetBytes = budgetBytes;
+        }
+    }
+
+    private com.sun.management.ThreadMXBean threadBean;
+    private MixpanelDispatcher dispatcher;
+
+    @Before
+    public void setUp()
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("Allocated bytes aren't measured by this JVM",
+                bean instanceof com.sun.management.ThreadMXBean &&
+                        ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        dispatcher = new MixpanelDispatcher();
+        dispatcher.setInstance(StubMixpanel.create());
+    }
+
+    @Test
+    public void testDispatchEventAllocationBudgets()
+    {
+        List<String> overBudget = new ArrayList<>();
+        StringBuilder report = new StringBuilder("Bytes allocated per dispatchEvent call:\n");
+        for (Scenario scenario : Scenario.values()) {
+            long measured = measure(scenario);
+            report.append(String.format("  %-40s %6d / %6d%n", scenario, measured, scenario.budgetBytes));
+            if (measured > scenario.budgetBytes) {
+                overBudget.add(scenario + " allocates " + measured + " bytes, budget is " + scenario.budgetBytes);
+            }
+        }
+        System.out.print(report);
+        Assert.assertTrue("Over allocation budget:\n" + overBudget + "\n" + report, overBudget.isEmpty());
+    }
+
+    /**
+     * @return The lowest bytes allocated per call over a few rounds, leaving out rounds where part
+     * of the path was still interpreted
+     */
+    private long measure(Scenario scenario)
+    {
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP_CALLS; i++) {
+            dispatcher.dispatchEvent(scenario.type, scenario.payload);
+        }
+        long lowest = Long.MAX_VALUE;
+        for (int round = 0; round < MEASURED_ROUNDS; round++) {
+            long start = threadBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < MEASURED_CALLS; i++) {
+                dispatcher.dispatchEvent(scenario.type, scenario.payload);
+            }
+            long allocated = threadBean.getThreadAllocatedBytes(threadId) - start;
+            lowest = Math.min(lowest, allocated / MEASURED_CALLS);
+        }
+        return lowest;
+    }
+}
@@ -0,0 +1,75 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import com.batch.android.Batch;
+import com.batch.android.BatchMessage;
+import com.batch.android.BatchPushPayload;
+
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Batch event payload used in benchmarks
+ */
+class BenchmarkPayload implements Batch.EventDispatcher.Payload
+{
+    private final String trackingId;
+    private final String deeplink;
+    private final Map<String, String> customPayload;
+
+    BenchmarkPayload(String trackingId, String deeplink, Map<String, String> customPayload)
+    {
+        this.trackingId = trackingId;
+        this.deeplink = deeplink;
+        this.customPayload = customPayload;
+    }
+
+    @Nullable
+    @Override
+    public String getTrackingId()
+    {
+        return trackingId;
+    }
+
+    @Nullable
+    @Override
+    public String getWebViewAnalyticsID()
+    {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public String getDeeplink()
+    {
+        return deeplink;
+    }
+
+    @Nullable
+    @Override
+    public String getCustomValue(@NonNull String key)
+    {
+        return customPayload.get(key);
+    }
+
+    @Override
+    public boolean isPositiveAction()
+    {
+        return false;
+    }
+
+    @Nullable
+    @Override
+    public BatchMessage getMessagingPayload()
+    {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public BatchPushPayload getPushPayload()
+    {
+        return null;
+    }
+}
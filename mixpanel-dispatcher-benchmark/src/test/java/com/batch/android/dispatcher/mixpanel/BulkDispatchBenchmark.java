@@ -0,0 +1,99 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import com.batch.android.Batch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark the bulk dispatch of events, against dispatching them one at a time
+ * The parallelism parameter is the size of the fork-join pool: compare it with the number of
+ * cores of the machine running the benchmark, parallelisms above it can't scale any further.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BulkDispatchBenchmark
+{
+    @Param({"10000", "100000"})
+    public int events;
+
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+
+    private MixpanelDispatcher dispatcher;
+    private ForkJoinPool pool;
+    private List<BulkEvent> bulkEvents;
+
+    @Setup
+    public void setUp(Blackhole blackhole)
+    {
+        dispatcher = new MixpanelDispatcher();
+        dispatcher.setInstance(StubMixpanel.create(blackhole));
+        pool = new ForkJoinPool(parallelism);
+
+        // Each event has its own deeplink, like a replayed history would
+        Deeplink[] deeplinks = Deeplink.values();
+        bulkEvents = new ArrayList<>(events);
+        for (int i = 0; i < events; i++) {
+            String deeplink = deeplinks[i % deeplinks.length].url + "&event=" + i;
+            Batch.EventDispatcher.Type type = i % 2 == 0 ?
+                    Batch.EventDispatcher.Type.NOTIFICATION_OPEN :
+                    Batch.EventDispatcher.Type.MESSAGING_CLICK;
+            bulkEvents.add(new BulkEvent(type, new BenchmarkPayload("tracking_id", deeplink, new HashMap<String, String>())));
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public void dispatchEvents()
+    {
+        dispatcher.dispatchEvents(bulkEvents, pool);
+    }
+
+    /**
+     * Bulk dispatch building properties on the calling thread, as on single core devices, which
+     * doesn't depend on the parallelism
+     */
+    @Benchmark
+    public void dispatchEventsSequential()
+    {
+        dispatcher.dispatchEvents(bulkEvents, null);
+    }
+
+    /**
+     * One dispatchEvent call per event, which doesn't depend on the parallelism
+     */
+    @Benchmark
+    public void dispatchEventLoop()
+    {
+        for (BulkEvent event : bulkEvents) {
+            dispatcher.dispatchEvent(event.type, event.payload);
+        }
+    }
+}
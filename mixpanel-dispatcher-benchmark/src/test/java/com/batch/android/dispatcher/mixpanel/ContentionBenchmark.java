@@ -0,0 +1,125 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark a single dispatcher shared by 1 to 32 threads calling dispatchEvent, like Batch's
+ * push receiver, in-app and webview threads do
+ * Each thread walks the payload corpus from its own random offset. JMH reports the throughput of
+ * all the threads together: without contention, it grows with the thread count until the threads
+ * outnumber the cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ContentionBenchmark
+{
+    private static final int CORPUS_SIZE = 16384;
+
+    @Param({"0", "100"})
+    public int deeplinkCacheSize;
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private MixpanelDispatcher dispatcher;
+    private PayloadCorpus corpus;
+
+    @Setup
+    public void setUp()
+    {
+        corpus = new PayloadCorpus(CORPUS_SIZE, 42);
+        dispatcher = new MixpanelDispatcher();
+        // A Blackhole belongs to a single benchmark thread
+        dispatcher.setInstance(StubMixpanel.create());
+        if (deeplinkCacheSize > 0) {
+            dispatcher.deeplinkCache = new DeeplinkCache(deeplinkCacheSize);
+        }
+        if (metrics) {
+            dispatcher.metrics = new AtomicMetricsRecorder();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        int index;
+
+        @Setup
+        public void setUp()
+        {
+            index = ThreadLocalRandom.current().nextInt(CORPUS_SIZE);
+        }
+
+        int next()
+        {
+            index = (index + 1) & (CORPUS_SIZE - 1);
+            return index;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void threads01(Cursor cursor)
+    {
+        dispatch(cursor);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void threads02(Cursor cursor)
+    {
+        dispatch(cursor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void threads04(Cursor cursor)
+    {
+        dispatch(cursor);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void threads08(Cursor cursor)
+    {
+        dispatch(cursor);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void threads16(Cursor cursor)
+    {
+        dispatch(cursor);
+    }
+
+    @Benchmark
+    @Threads(32)
+    public void threads32(Cursor cursor)
+    {
+        dispatch(cursor);
+    }
+
+    private void dispatch(Cursor cursor)
+    {
+        int index = cursor.next();
+        dispatcher.dispatchEvent(corpus.getType(index), corpus.getPayload(index));
+    }
+}
@@ -0,0 +1,40 @@
+package com.batch.android.dispatcher.mixpanel;
+
+/**
+ * Deeplinks the benchmarks are run against
+ */
+public enum Deeplink
+{
+    /**
+     * A single UTM tag in the query
+     */
+    SHORT("https://batch.com/?utm_campaign=summer"),
+
+    /**
+     * Many unrelated query parameters, with the UTM tags at the end
+     */
+    LONG("https://www.example.com/catalog/shoes/running/men?ref=homepage&session=8f2c9e4a1b7d" +
+            "&page=3&sort=price_asc&filter=color%3Ablue%2Csize%3A42&lang=fr-FR&ab=variant_b" +
+            "&utm_source=newsletter&utm_medium=email&utm_campaign=summer%20sale%202024" +
+            "&utm_content=hero_banner&utm_term=running+shoes"),
+
+    /**
+     * UTM tags in the fragment only
+     */
+    FRAGMENT_HEAVY("myapp://product/123#section=reviews&sort=recent&page=2&tracking=abc123" +
+            "&utm_source=batch&utm_medium=push&utm_campaign=fragment_campaign" +
+            "&utm_content=reviews%20tab&highlight=true"),
+
+    /**
+     * Invalid escapes, empty keys and values, and surrounding whitespace
+     */
+    MALFORMED("  https://batch.com/path?utm_campaign=%E2%82&utm_medium=%zz&&=&utm_source" +
+            "#utm_content=%%%&=&utm_campaign&&  ");
+
+    final String url;
+
+    Deeplink(String url)
+    {
+        this.url = url;
+    }
+}
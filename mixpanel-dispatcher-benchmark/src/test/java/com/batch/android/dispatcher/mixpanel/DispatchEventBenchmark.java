@@ -0,0 +1,65 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import com.batch.android.Batch;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark the whole dispatchEvent path, up to a stubbed MixpanelAPI
+ * The stub only reads the properties it is given, so the results don't include any of
+ * Mixpanel's own work.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchEventBenchmark
+{
+    @Param
+    public Deeplink deeplink;
+
+    @Param({"NOTIFICATION_OPEN", "MESSAGING_CLICK"})
+    public Batch.EventDispatcher.Type type;
+
+    @Param({"0", "100"})
+    public int deeplinkCacheSize;
+
+    private MixpanelDispatcher dispatcher;
+    private BenchmarkPayload payload;
+
+    @Setup
+    public void setUp(Blackhole blackhole)
+    {
+        MixpanelAPI mixpanel = StubMixpanel.create(blackhole);
+
+        dispatcher = new MixpanelDispatcher();
+        dispatcher.setInstance(mixpanel);
+        if (deeplinkCacheSize > 0) {
+            dispatcher.deeplinkCache = new DeeplinkCache(deeplinkCacheSize);
+        }
+        payload = new BenchmarkPayload("tracking_id", deeplink.url, new HashMap<String, String>());
+    }
+
+    @Benchmark
+    public void dispatchEvent()
+    {
+        dispatcher.dispatchEvent(type, payload);
+    }
+}
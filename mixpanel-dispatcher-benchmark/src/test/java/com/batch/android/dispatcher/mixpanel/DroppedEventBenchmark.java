@@ -0,0 +1,64 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import com.batch.android.Batch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark dispatchEvent for events that are dropped before being built
+ * Run with the gc profiler: gc.alloc.rate.norm should be about 0 bytes per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DroppedEventBenchmark
+{
+    private MixpanelDispatcher noInstanceDispatcher;
+    private MixpanelDispatcher suppressedTypeDispatcher;
+    private BenchmarkPayload payload;
+
+    @Setup
+    public void setUp(Blackhole blackhole)
+    {
+        // No instance is set and events can't be buffered
+        noInstanceDispatcher = new MixpanelDispatcher();
+        noInstanceDispatcher.preInitBuffer = null;
+
+        // Types unknown to the dispatcher are suppressed like this one
+        suppressedTypeDispatcher = new MixpanelDispatcher();
+        suppressedTypeDispatcher.setInstance(StubMixpanel.create(blackhole));
+        suppressedTypeDispatcher.eventMapping = new EventMapping.Builder()
+                .suppress(Batch.EventDispatcher.Type.NOTIFICATION_OPEN)
+                .build();
+
+        payload = new BenchmarkPayload("tracking_id", Deeplink.LONG.url, new HashMap<String, String>());
+    }
+
+    @Benchmark
+    public void noInstance()
+    {
+        noInstanceDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
+    }
+
+    @Benchmark
+    public void suppressedType()
+    {
+        suppressedTypeDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
+    }
+}
@@ -0,0 +1,88 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark extracting registered keys from a deeplink, as more keys are registered
+ * The single scan should stay flat, while looking up each key on its own grows with the key count.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractionKeysBenchmark
+{
+    private static final String DEEPLINK = "https://batch.com/promo?utm_source=batch&utm_medium=push" +
+            "&utm_campaign=summer_sale&utm_term=shoes&gclid=EAIaIQobChMI&cmp_2=banner&ref=home" +
+            "#utm_content=button&cmp_4=hero";
+
+    @Param({"5", "20", "50"})
+    public int keyCount;
+
+    private ExtractionKeys keys;
+    private String[] keyNames;
+
+    @Setup
+    public void setUp()
+    {
+        keyNames = new String[keyCount];
+        keyNames[0] = "utm_term";
+        keyNames[1] = "gclid";
+        for (int i = 2; i < keyCount; i++) {
+            keyNames[i] = "cmp_" + i;
+        }
+        keys = ExtractionKeys.DEFAULT;
+        for (String key : keyNames) {
+            keys = keys.with(key, key);
+        }
+    }
+
+    @Benchmark
+    public DeeplinkAttribution singleScan()
+    {
+        return DeeplinkScanner.scan(DEEPLINK, keys);
+    }
+
+    /**
+     * Rescan the query for each key, like one getQueryParameter call per key would
+     */
+    @Benchmark
+    public void scanPerKey(Blackhole blackhole)
+    {
+        blackhole.consume(DeeplinkScanner.scan(DEEPLINK));
+        int queryStart = DEEPLINK.indexOf('?') + 1;
+        int queryEnd = DEEPLINK.indexOf('#');
+        for (String key : keyNames) {
+            blackhole.consume(findQueryParameter(queryStart, queryEnd, key));
+        }
+    }
+
+    private static String findQueryParameter(int start, int end, String key)
+    {
+        while (start < end) {
+            int next = DEEPLINK.indexOf('&', start);
+            int paramEnd = next < 0 || next > end ? end : next;
+            if (paramEnd - start > key.length() && DEEPLINK.charAt(start + key.length()) == '=' &&
+                    DEEPLINK.regionMatches(true, start, key, 0, key.length())) {
+                return DeeplinkScanner.decode(DEEPLINK, start + key.length() + 1, paramEnd, true);
+            }
+            start = paramEnd + 1;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,71 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import com.batch.android.Batch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark the Mixpanel properties builders, and the deeplink parsing they rely on
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParamsBenchmark
+{
+    @Param
+    public Deeplink deeplink;
+
+    private MixpanelDispatcher dispatcher;
+    private BenchmarkPayload payload;
+    private String trimmedDeeplink;
+    private EventPlan notificationPlan;
+    private EventPlan inAppPlan;
+
+    @Setup
+    public void setUp()
+    {
+        dispatcher = new MixpanelDispatcher();
+        payload = new BenchmarkPayload("tracking_id", deeplink.url, new HashMap<String, String>());
+        trimmedDeeplink = deeplink.url.trim();
+        notificationPlan = EventMapping.DEFAULT.getPlan(Batch.EventDispatcher.Type.NOTIFICATION_OPEN);
+        inAppPlan = EventMapping.DEFAULT.getPlan(Batch.EventDispatcher.Type.MESSAGING_CLICK);
+    }
+
+    @Benchmark
+    public Map<String, Object> notificationParams()
+    {
+        return dispatcher.getProperties(notificationPlan, Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
+    }
+
+    @Benchmark
+    public Map<String, Object> inAppParams()
+    {
+        return dispatcher.getProperties(inAppPlan, Batch.EventDispatcher.Type.MESSAGING_CLICK, payload);
+    }
+
+    /**
+     * Query and fragment parsing alone, which used to be done by getFragmentMap and Uri
+     */
+    @Benchmark
+    public DeeplinkAttribution scanDeeplink()
+    {
+        return DeeplinkScanner.scan(trimmedDeeplink);
+    }
+}
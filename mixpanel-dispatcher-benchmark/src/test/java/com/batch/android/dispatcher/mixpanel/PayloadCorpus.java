@@ -0,0 +1,124 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import com.batch.android.Batch;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Synthetic corpus of events for the load benchmarks
+ * Events are generated from a seed, so that runs can be compared. The distributions follow what
+ * apps typically send:
+ * - displays and in-app shows dominate, opens and clicks are rarer
+ * - a quarter of the events have no deeplink, the others have log-normal lengths around 80
+ *   characters, with unrelated parameters around the UTM tags
+ * - some deeplinks carry their parameters, and sometimes their UTM tags, in the fragment
+ * - some events have UTM tags in their custom payload
+ * - a few campaigns make up most of the events
+ */
+final class PayloadCorpus
+{
+    private static final Batch.EventDispatcher.Type[] TYPES = {
+            Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY,
+            Batch.EventDispatcher.Type.NOTIFICATION_OPEN,
+            Batch.EventDispatcher.Type.NOTIFICATION_DISMISS,
+            Batch.EventDispatcher.Type.MESSAGING_SHOW,
+            Batch.EventDispatcher.Type.MESSAGING_CLOSE,
+            Batch.EventDispatcher.Type.MESSAGING_CLICK,
+            Batch.EventDispatcher.Type.MESSAGING_WEBVIEW_CLICK,
+    };
+
+    /**
+     * Cumulative share of each type, in percent
+     */
+    private static final int[] TYPE_SHARES = {45, 57, 70, 85, 92, 97, 100};
+
+    private static final int NO_DEEPLINK_PERCENT = 25;
+    private static final int FRAGMENT_PERCENT = 15;
+    private static final int UTM_IN_FRAGMENT_PERCENT = 50;
+    private static final int CUSTOM_PAYLOAD_PERCENT = 30;
+    private static final int CAMPAIGN_COUNT = 50;
+
+    private static final double MEDIAN_DEEPLINK_LENGTH = 80;
+    private static final double DEEPLINK_LENGTH_SIGMA = 0.6;
+
+    private static final String[] OTHER_KEYS = {"ref", "session", "page", "sort", "lang", "ab", "item", "filter"};
+
+    private final Batch.EventDispatcher.Type[] types;
+    private final BenchmarkPayload[] payloads;
+
+    PayloadCorpus(int size, long seed)
+    {
+        Random random = new Random(seed);
+        types = new Batch.EventDispatcher.Type[size];
+        payloads = new BenchmarkPayload[size];
+        for (int i = 0; i < size; i++) {
+            types[i] = randomType(random);
+            String campaign = "campaign_" + (int) (CAMPAIGN_COUNT * Math.pow(random.nextDouble(), 3));
+            String deeplink = random.nextInt(100) < NO_DEEPLINK_PERCENT ? null : randomDeeplink(random, campaign);
+            Map<String, String> customPayload = new HashMap<>();
+            if (random.nextInt(100) < CUSTOM_PAYLOAD_PERCENT) {
+                customPayload.put("utm_campaign", campaign);
+                if (random.nextBoolean()) {
+                    customPayload.put("utm_content", "button" + random.nextInt(3));
+                }
+            }
+            payloads[i] = new BenchmarkPayload("tracking_" + random.nextInt(1000), deeplink, customPayload);
+        }
+    }
+
+    int size()
+    {
+        return payloads.length;
+    }
+
+    Batch.EventDispatcher.Type getType(int index)
+    {
+        return types[index];
+    }
+
+    BenchmarkPayload getPayload(int index)
+    {
+        return payloads[index];
+    }
+
+    private static Batch.EventDispatcher.Type randomType(Random random)
+    {
+        int share = random.nextInt(100);
+        int i = 0;
+        while (share >= TYPE_SHARES[i]) {
+            i++;
+        }
+        return TYPES[i];
+    }
+
+    private static String randomDeeplink(Random random, String campaign)
+    {
+        int length = (int) (MEDIAN_DEEPLINK_LENGTH * Math.exp(random.nextGaussian() * DEEPLINK_LENGTH_SIGMA));
+        boolean fragment = random.nextInt(100) < FRAGMENT_PERCENT;
+        boolean utmInFragment = fragment && random.nextInt(100) < UTM_IN_FRAGMENT_PERCENT;
+
+        StringBuilder query = new StringBuilder();
+        StringBuilder fragmentParams = new StringBuilder();
+        StringBuilder utm = utmInFragment ? fragmentParams : query;
+        utm.append("utm_source=batch&utm_medium=push&utm_campaign=").append(campaign);
+
+        StringBuilder deeplink = new StringBuilder(random.nextBoolean() ? "https://www.example.com/" : "myapp://");
+        deeplink.append("product/").append(random.nextInt(10000));
+        while (deeplink.length() + query.length() + fragmentParams.length() < length) {
+            StringBuilder params = fragment && random.nextBoolean() ? fragmentParams : query;
+            if (params.length() > 0) {
+                params.append('&');
+            }
+            params.append(OTHER_KEYS[random.nextInt(OTHER_KEYS.length)]).append('=').append(Long.toHexString(random.nextLong()));
+        }
+        if (query.length() > 0) {
+            deeplink.append('?').append(query);
+        }
+        if (fragmentParams.length() > 0) {
+            deeplink.append('#').append(fragmentParams);
+        }
+        return deeplink.toString();
+    }
+}
@@ -0,0 +1,284 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Soak test of a dispatcher shared by several threads, over millions of events from the
+ * payload corpus
+ * Every interval, it prints the throughput, the dispatchEvent latency percentiles and the heap
+ * used after the last garbage collection, so that leaks and contention regressions show up as
+ * trends. Latency percentiles are upper bounds, from power of two buckets.
+ * Run it with:
+ *   ./gradlew :mixpanel-dispatcher-benchmark:soak -PsoakArgs="--threads 8 --events 20000000"
+ * Options:
+ *   --threads N             concurrent callers, 8 by default
+ *   --events N              events to dispatch in total, 10 million by default
+ *   --interval-seconds N    time between reports, 5 by default
+ *   --deeplink-cache N      size of the deeplink cache, disabled by default
+ *   --max-heap-growth-mb N  exit with an error if the heap used after GC grew more than this
+ */
+public final class SoakHarness
+{
+    private static final int CORPUS_SIZE = 65536;
+    private static final int EVENTS_PER_CLAIM = 1000;
+
+    private final int threadCount;
+    private final long eventCount;
+    private final long intervalMillis;
+    private final MixpanelDispatcher dispatcher;
+    private final PayloadCorpus corpus = new PayloadCorpus(CORPUS_SIZE, 42);
+
+    private final AtomicLong unclaimedEvents;
+    private final Worker[] workers;
+
+    private SoakHarness(int threadCount, long eventCount, long intervalMillis, int deeplinkCacheSize)
+    {
+        this.threadCount = threadCount;
+        this.eventCount = eventCount;
+        this.intervalMillis = intervalMillis;
+        this.unclaimedEvents = new AtomicLong(eventCount);
+        this.workers = new Worker[threadCount];
+
+        dispatcher = new MixpanelDispatcher();
+        dispatcher.setInstance(StubMixpanel.create());
+        if (deeplinkCacheSize > 0) {
+            dispatcher.deeplinkCache = new DeeplinkCache(deeplinkCacheSize);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        int threads = 8;
+        long events = 10000000;
+        long intervalSeconds = 5;
+        int deeplinkCacheSize = 0;
+        long maxHeapGrowthMb = -1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            long value = Long.parseLong(args[i + 1]);
+            switch (args[i]) {
+                case "--threads":
+                    threads = (int) value;
+                    break;
+                case "--events":
+                    events = value;
+                    break;
+                case "--interval-seconds":
+                    intervalSeconds = value;
+                    break;
+                case "--deeplink-cache":
+                    deeplinkCacheSize = (int) value;
+                    break;
+                case "--max-heap-growth-mb":
+                    maxHeapGrowthMb = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        long heapGrowth = new SoakHarness(threads, events, TimeUnit.SECONDS.toMillis(intervalSeconds),
+                deeplinkCacheSize).run();
+        if (maxHeapGrowthMb >= 0 && heapGrowth > maxHeapGrowthMb * 1024 * 1024) {
+            System.out.println("FAILED: heap used after GC grew more than " + maxHeapGrowthMb + " MB");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return Growth of the heap used after GC between the first and the last report, in bytes
+     */
+    private long run() throws InterruptedException
+    {
+        System.out.printf("%d threads, %d events, corpus of %d payloads%n", threadCount, eventCount, CORPUS_SIZE);
+        System.out.printf("%8s %12s %10s %10s %10s %12s%n",
+                "time", "events/s", "p50", "p99", "p99.9", "heap after GC");
+
+        CountDownLatch done = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            workers[i] = new Worker(i * (CORPUS_SIZE / threadCount), done);
+            workers[i].start();
+        }
+
+        long start = System.nanoTime();
+        Snapshot previous = snapshot();
+        long firstHeap = -1;
+        long lastHeap = -1;
+        boolean finished = false;
+        while (!finished) {
+            finished = done.await(intervalMillis, TimeUnit.MILLISECONDS);
+            long now = System.nanoTime();
+            Snapshot current = snapshot();
+            long heap = heapUsedAfterLastGc();
+            if (firstHeap < 0) {
+                firstHeap = heap;
+            }
+            lastHeap = heap;
+            LatencyHistogram latencies = current.minus(previous);
+            double seconds = (now - previous.nanoTime) / 1e9;
+            System.out.printf("%7.0fs %12.0f %10s %10s %10s %12s%n",
+                    (now - start) / 1e9,
+                    latencies.getCount() / seconds,
+                    formatNanos(latencies.getPercentileNanos(50)),
+                    formatNanos(latencies.getPercentileNanos(99)),
+                    formatNanos(latencies.getPercentileNanos(99.9)),
+                    formatBytes(heap));
+            previous = current;
+        }
+
+        double totalSeconds = (System.nanoTime() - start) / 1e9;
+        LatencyHistogram total = snapshot().minus(null);
+        System.out.printf("Total: %d events in %.1fs, %.0f events/s, p50 %s, p99 %s, p99.9 %s%n",
+                total.getCount(), totalSeconds, total.getCount() / totalSeconds,
+                formatNanos(total.getPercentileNanos(50)),
+                formatNanos(total.getPercentileNanos(99)),
+                formatNanos(total.getPercentileNanos(99.9)));
+        long growth = lastHeap - firstHeap;
+        System.out.printf("Heap used after GC: %s at the first report, %s at the last one%n",
+                formatBytes(firstHeap), formatBytes(lastHeap));
+        return growth;
+    }
+
+    private Snapshot snapshot()
+    {
+        long nanoTime = System.nanoTime();
+        long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+        long totalNanos = 0;
+        for (Worker worker : workers) {
+            for (int bucket = 0; bucket < counts.length; bucket++) {
+                counts[bucket] += worker.buckets.get(bucket);
+            }
+            totalNanos += worker.totalNanos.get();
+        }
+        return new Snapshot(nanoTime, counts, totalNanos);
+    }
+
+    /**
+     * @return Heap used right after the most recent collection, or -1 if the JVM doesn't tell
+     */
+    private static long heapUsedAfterLastGc()
+    {
+        Set<String> heapPools = new HashSet<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool.getName());
+            }
+        }
+        com.sun.management.GcInfo latest = null;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(collector instanceof com.sun.management.GarbageCollectorMXBean)) {
+                continue;
+            }
+            com.sun.management.GcInfo info = ((com.sun.management.GarbageCollectorMXBean) collector).getLastGcInfo();
+            if (info != null && (latest == null || info.getEndTime() > latest.getEndTime())) {
+                latest = info;
+            }
+        }
+        if (latest == null) {
+            return -1;
+        }
+        long used = 0;
+        for (Map.Entry<String, MemoryUsage> pool : latest.getMemoryUsageAfterGc().entrySet()) {
+            if (heapPools.contains(pool.getKey())) {
+                used += pool.getValue().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static String formatNanos(long nanos)
+    {
+        if (nanos == Long.MAX_VALUE) {
+            return "longer";
+        }
+        return nanos < 1000000 ? "<" + nanos / 1000 + "us" : "<" + nanos / 1000000 + "ms";
+    }
+
+    private static String formatBytes(long bytes)
+    {
+        return bytes < 0 ? "unknown" : String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    private final class Worker extends Thread
+    {
+        /**
+         * Latency counts, only written by this worker
+         */
+        final AtomicLongArray buckets = new AtomicLongArray(LatencyHistogram.BUCKET_COUNT);
+        final AtomicLong totalNanos = new AtomicLong();
+
+        private final CountDownLatch done;
+        private int index;
+
+        Worker(int startIndex, CountDownLatch done)
+        {
+            super("SoakWorker");
+            this.index = startIndex;
+            this.done = done;
+        }
+
+        @Override
+        public void run()
+        {
+            try {
+                while (true) {
+                    long claimed = Math.min(EVENTS_PER_CLAIM, unclaimedEvents.getAndAdd(-EVENTS_PER_CLAIM));
+                    if (claimed <= 0) {
+                        return;
+                    }
+                    for (int i = 0; i < claimed; i++) {
+                        index = (index + 1) & (CORPUS_SIZE - 1);
+                        long start = System.nanoTime();
+                        dispatcher.dispatchEvent(corpus.getType(index), corpus.getPayload(index));
+                        long nanos = System.nanoTime() - start;
+                        // Single writer: ordered writes are enough for the reporter to read them
+                        int bucket = LatencyHistogram.bucketFor(nanos);
+                        buckets.lazySet(bucket, buckets.get(bucket) + 1);
+                        totalNanos.lazySet(totalNanos.get() + nanos);
+                    }
+                }
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    private static final class Snapshot
+    {
+        final long nanoTime;
+        final long[] counts;
+        final long totalNanos;
+
+        Snapshot(long nanoTime, long[] counts, long totalNanos)
+        {
+            this.nanoTime = nanoTime;
+            this.counts = counts;
+            this.totalNanos = totalNanos;
+        }
+
+        /**
+         * @return Latencies recorded since the given snapshot, or since the start if it is null
+         */
+        LatencyHistogram minus(Snapshot previous)
+        {
+            if (previous == null) {
+                return new LatencyHistogram(counts.clone(), totalNanos);
+            }
+            long[] diff = new long[counts.length];
+            for (int i = 0; i < counts.length; i++) {
+                diff[i] = counts[i] - previous.counts[i];
+            }
+            return new LatencyHistogram(diff, totalNanos - previous.totalNanos);
+        }
+    }
+}
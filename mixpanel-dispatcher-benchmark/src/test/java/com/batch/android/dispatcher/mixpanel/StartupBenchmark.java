@@ -0,0 +1,126 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark what Batch does with the dispatcher when it starts: create the registrar by
+ * reflection and get its dispatcher
+ * Each invocation loads the dispatcher and Mixpanel classes in a new class loader, so that it
+ * measures a cold start. The classesLoaded counter reports how many of them were loaded, summed
+ * over the measured invocations.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 50)
+@Fork(1)
+public class StartupBenchmark
+{
+    private IsolatingClassLoader loader;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class ClassCounter
+    {
+        public long classesLoaded;
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp()
+    {
+        loader = new IsolatingClassLoader(StartupBenchmark.class.getClassLoader());
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown()
+    {
+        loader = null;
+    }
+
+    @Benchmark
+    public Object getDispatcher(ClassCounter counter) throws Exception
+    {
+        Class<?> registrarClass = Class.forName(MixpanelRegistrar.class.getName(), true, loader);
+        Object registrar = registrarClass.getDeclaredConstructor().newInstance();
+        Object dispatcher = registrarClass.getMethod("getDispatcher", Context.class).invoke(registrar, (Object) null);
+        counter.classesLoaded += loader.definedClasses;
+        return dispatcher;
+    }
+
+    /**
+     * Loads the dispatcher and Mixpanel classes itself rather than delegating to its parent
+     */
+    private static final class IsolatingClassLoader extends ClassLoader
+    {
+        int definedClasses = 0;
+
+        IsolatingClassLoader(ClassLoader parent)
+        {
+            super(parent);
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException
+        {
+            if (!isIsolated(name)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded == null) {
+                    byte[] bytes = readClass(name);
+                    loaded = defineClass(name, bytes, 0, bytes.length);
+                    definedClasses++;
+                }
+                if (resolve) {
+                    resolveClass(loaded);
+                }
+                return loaded;
+            }
+        }
+
+        private static boolean isIsolated(String name)
+        {
+            return (name.startsWith("com.batch.android.dispatcher.mixpanel.") && !name.contains("Benchmark")) ||
+                    name.startsWith("com.mixpanel.");
+        }
+
+        private byte[] readClass(String name) throws ClassNotFoundException
+        {
+            try (InputStream input = getParent().getResourceAsStream(name.replace('.', '/') + ".class")) {
+                if (input == null) {
+                    throw new ClassNotFoundException(name);
+                }
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, read);
+                }
+                return output.toByteArray();
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+    }
+}
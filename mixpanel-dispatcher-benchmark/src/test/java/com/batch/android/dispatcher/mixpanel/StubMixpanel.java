@@ -0,0 +1,94 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.implementation.MethodDelegation;
+import net.bytebuddy.matcher.ElementMatchers;
+
+import org.json.JSONObject;
+import org.objenesis.ObjenesisStd;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import androidx.annotation.Nullable;
+
+/**
+ * MixpanelAPI stub, whose track only reads the properties it is given
+ * MixpanelAPI can't be constructed outside of Android, and mocking frameworks record or match each
+ * invocation, which costs more than the dispatcher itself: the stub is a generated subclass
+ * overriding track and trackMap alone, instantiated without running any constructor.
+ * Like Mixpanel's, trackMap converts the map to a JSONObject first.
+ */
+public final class StubMixpanel
+{
+    @Nullable
+    private final Blackhole blackhole;
+
+    /**
+     * Sink of the properties read outside of JMH, so that reading them isn't optimized away
+     * Also used by JMH benchmarks with several threads, which can't share a Blackhole.
+     */
+    private volatile int consumed;
+
+    private StubMixpanel(@Nullable Blackhole blackhole)
+    {
+        this.blackhole = blackhole;
+    }
+
+    static MixpanelAPI create(Blackhole blackhole)
+    {
+        return create(new StubMixpanel(blackhole));
+    }
+
+    /**
+     * Create a stub for code running outside of JMH
+     */
+    static MixpanelAPI create()
+    {
+        return create(new StubMixpanel(null));
+    }
+
+    private static MixpanelAPI create(StubMixpanel stub)
+    {
+        Class<? extends MixpanelAPI> stubClass = new ByteBuddy()
+                .subclass(MixpanelAPI.class)
+                .method(ElementMatchers.named("trackMap")
+                        .or(ElementMatchers.named("track").and(ElementMatchers.takesArguments(String.class, JSONObject.class))))
+                .intercept(MethodDelegation.to(stub))
+                .make()
+                .load(StubMixpanel.class.getClassLoader())
+                .getLoaded();
+        return new ObjenesisStd().newInstance(stubClass);
+    }
+
+    public void trackMap(String eventName, Map<String, Object> properties)
+    {
+        track(eventName, new JSONObject(properties));
+    }
+
+    public void track(String eventName, JSONObject properties)
+    {
+        Iterator<String> keys = properties.keys();
+        if (blackhole == null) {
+            int hash = eventName.hashCode();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                hash = 31 * hash + key.hashCode() + properties.opt(key).hashCode();
+            }
+            // Almost never written, so that concurrent callers don't contend on the field
+            if (hash == Integer.MIN_VALUE) {
+                consumed = hash;
+            }
+            return;
+        }
+        blackhole.consume(eventName);
+        while (keys.hasNext()) {
+            String key = keys.next();
+            blackhole.consume(key);
+            blackhole.consume(properties.opt(key));
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.batch.android.Batch;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded event queue drained by a single worker thread
+ * Used by the asynchronous dispatch mode, so that building the Mixpanel properties and calling
+ * MixpanelAPI#track doesn't happen on the thread the Batch SDK dispatched the event from.
+ *
+ * Events are queued in a lane per {@link EventPriority}, sharing the queue's capacity. The worker
+ * takes the oldest event of the highest priority, so that conversion events aren't delayed by a
+ * burst of displays. When the queue is full, the oldest event of the lowest non-empty lane of a
+ * lower priority is shed to make room for the new one; the overflow policy only applies when all
+ * queued events have the new event's priority or a higher one, and never drops them for a lower
+ * priority event.
+ */
+final class AsyncEventQueue
+{
+    private static final String TAG = "BatchMixpanelDispatcher";
+
+    private static final EventPriority[] PRIORITIES = EventPriority.values();
+
+    private final MixpanelDispatcher dispatcher;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutMillis;
+    private final Thread worker;
+
+    /**
+     * Number of events that entered the queue
+     */
+    private final AtomicLong enqueuedCount = new AtomicLong();
+
+    /**
+     * Number of events that left the queue, either dispatched or dropped
+     */
+    private final AtomicLong completedCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLongArray droppedCountByType = new AtomicLongArray(Batch.EventDispatcher.Type.values().length);
+
+    /**
+     * Queued events of each priority, indexed by priority ordinal
+     * Guarded by {@link #lock}, like {@link #size} and {@link #stopping}.
+     */
+    private final ArrayDeque<QueuedEvent>[] lanes;
+    private int size = 0;
+    private boolean stopping = false;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final AtomicInteger flushWaiters = new AtomicInteger();
+    private final Object flushLock = new Object();
+
+    private volatile boolean shutdown = false;
+
+    /**
+     * Queue this one replaces, whose events are all dispatched before this queue's first one
+     * Only read by the worker, which clears it once the previous queue terminated.
+     */
+    @Nullable
+    private AsyncEventQueue previous;
+
+    /**
+     * Released once {@link #shutdown} dispatched the last event of this queue
+     */
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    AsyncEventQueue(@NonNull MixpanelDispatcher dispatcher,
+                    int capacity,
+                    @NonNull OverflowPolicy overflowPolicy,
+                    long blockTimeoutMillis)
+    {
+        this(dispatcher, capacity, overflowPolicy, blockTimeoutMillis, null);
+    }
+
+    /**
+     * @param previous Queue being replaced: events are queued right away, but the worker only
+     *                 starts dispatching them once the previous queue has been shut down, so that
+     *                 they aren't sent before older events or interleaved with them
+     */
+    @SuppressWarnings("unchecked")
+    AsyncEventQueue(@NonNull MixpanelDispatcher dispatcher,
+                    int capacity,
+                    @NonNull OverflowPolicy overflowPolicy,
+                    long blockTimeoutMillis,
+                    @Nullable AsyncEventQueue previous)
+    {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be greater than 0");
+        }
+        if (blockTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Block timeout cannot be negative");
+        }
+        this.dispatcher = dispatcher;
+        this.capacity = capacity;
+        this.lanes = new ArrayDeque[PRIORITIES.length];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+        }
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.previous = previous;
+        this.worker = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (awaitPrevious()) {
+                    drain();
+                }
+            }
+        }, "BatchMixpanelDispatcher");
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Queue an event, shedding a lower priority event or applying the overflow policy if the
+     * queue is full
+     *
+     * @param key Values the event was deduplicated on, null if it wasn't
+     * @param sampleRate Sample rate the event was kept at
+     * @return false if the queue has been shut down and the event should be dispatched by the caller
+     */
+    boolean submit(@NonNull Batch.EventDispatcher.Type type,
+                   @NonNull EventPriority priority,
+                   @NonNull Batch.EventDispatcher.Payload payload,
+                   @Nullable DuplicateFilter.Key key,
+                   double sampleRate)
+    {
+        if (shutdown) {
+            return false;
+        }
+
+        QueuedEvent event = new QueuedEvent(type, payload, key, sampleRate);
+        // Counted before being queued, so that the worker never completes an event that a flush didn't see
+        enqueuedCount.incrementAndGet();
+        QueuedEvent dropped = null;
+        boolean rejected = false;
+        lock.lock();
+        try {
+            // Checked again under the lock: once stopping, nothing drains the lanes after the final drain
+            if (stopping) {
+                rejected = true;
+                return false;
+            }
+            if (size >= capacity) {
+                dropped = pollLowest(priority.ordinal() + 1);
+            }
+            if (size >= capacity) {
+                switch (overflowPolicy) {
+                    case DROP_OLDEST:
+                        dropped = pollLowest(priority.ordinal());
+                        if (dropped == null) {
+                            // Everything queued has a higher priority
+                            dropped = event;
+                        }
+                        break;
+                    case BLOCK:
+                        boolean hasRoom = awaitRoom();
+                        if (stopping) {
+                            rejected = true;
+                            return false;
+                        }
+                        if (!hasRoom) {
+                            dropped = event;
+                        }
+                        break;
+                    case DROP_NEWEST:
+                    default:
+                        dropped = event;
+                        break;
+                }
+            }
+            if (dropped != event) {
+                lanes[priority.ordinal()].addLast(event);
+                size++;
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+            if (rejected) {
+                // The caller dispatches it
+                completed();
+            }
+        }
+        if (dropped != null) {
+            onDropped(dropped);
+        }
+        return true;
+    }
+
+    /**
+     * Remove the oldest event of the lowest priority, among the priorities starting at the given one
+     * Must be called with the lock held.
+     *
+     * @return The removed event, or null if those lanes are empty
+     */
+    private QueuedEvent pollLowest(int highestPriority)
+    {
+        for (int i = lanes.length - 1; i >= highestPriority; i--) {
+            QueuedEvent event = lanes[i].pollFirst();
+            if (event != null) {
+                size--;
+                return event;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Wait for room in the queue, up to the block timeout
+     * Must be called with the lock held. Returns early if the queue is stopping.
+     *
+     * @return false if the queue is still full
+     */
+    private boolean awaitRoom()
+    {
+        long remainingNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+        try {
+            while (size >= capacity && !stopping) {
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                remainingNanos = notFull.awaitNanos(remainingNanos);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void onDropped(QueuedEvent event)
+    {
+        droppedCount.incrementAndGet();
+        droppedCountByType.incrementAndGet(event.type.ordinal());
+        completed();
+    }
+
+    /**
+     * Wait until every event queued before this call has been dispatched or dropped
+     *
+     * @param timeoutMillis Maximum time to wait
+     * @return true if the queue was flushed before the timeout expired
+     */
+    boolean flush(long timeoutMillis) throws InterruptedException
+    {
+        long target = enqueuedCount.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        flushWaiters.incrementAndGet();
+        try {
+            synchronized (flushLock) {
+                while (completedCount.get() < target) {
+                    long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remainingMillis <= 0) {
+                        return false;
+                    }
+                    flushLock.wait(remainingMillis);
+                }
+            }
+            return true;
+        } finally {
+            flushWaiters.decrementAndGet();
+        }
+    }
+
+    /**
+     * Stop accepting events, dispatch the queued ones and stop the worker thread
+     * Events still queued when the timeout expires are dispatched on the calling thread.
+     *
+     * @param timeoutMillis Maximum time to wait for the worker thread
+     */
+    void shutdown(long timeoutMillis) throws InterruptedException
+    {
+        if (shutdown) {
+            return;
+        }
+        shutdown = true;
+        lock.lock();
+        try {
+            // The worker stops once the queue is empty
+            stopping = true;
+            notEmpty.signal();
+            // Blocked submitters give their event back to their caller
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            worker.join(timeoutMillis);
+            if (worker.isAlive()) {
+                worker.interrupt();
+            }
+
+            QueuedEvent event;
+            while ((event = take(false)) != null) {
+                dispatch(event);
+            }
+        } finally {
+            terminated.countDown();
+        }
+    }
+
+    /**
+     * @return Number of events dropped because the queue was full
+     */
+    long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return Number of events of a type dropped because the queue was full
+     */
+    long getDroppedCount(@NonNull Batch.EventDispatcher.Type type)
+    {
+        return droppedCountByType.get(type.ordinal());
+    }
+
+    /**
+     * Wait until the replaced queue dispatched its last event
+     *
+     * @return false if the worker was interrupted, leaving the queued events to {@link #shutdown}
+     */
+    private boolean awaitPrevious()
+    {
+        if (previous == null) {
+            return true;
+        }
+        try {
+            previous.terminated.await();
+            previous = null;
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private void drain()
+    {
+        while (true) {
+            QueuedEvent event;
+            try {
+                event = take(true);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (event == null) {
+                return;
+            }
+            try {
+                dispatch(event);
+            } catch (Throwable t) {
+                // Errors rethrown by the circuit breaker would otherwise stop the only worker
+                Log.e(TAG, "Something went wrong dispatching an event: " + t.getLocalizedMessage());
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest event of the highest priority
+     *
+     * @param wait Whether to wait for an event until the queue is stopped
+     * @return The event, or null if the queue is empty and stopped or not waited for
+     */
+    private QueuedEvent take(boolean wait) throws InterruptedException
+    {
+        lock.lock();
+        try {
+            while (true) {
+                for (ArrayDeque<QueuedEvent> lane : lanes) {
+                    QueuedEvent event = lane.pollFirst();
+                    if (event != null) {
+                        size--;
+                        notFull.signal();
+                        return event;
+                    }
+                }
+                if (!wait || stopping) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void dispatch(QueuedEvent event)
+    {
+        try {
+            dispatcher.dispatchEventNow(event.type, event.payload, event.key, event.sampleRate);
+        } catch (Exception e) {
+            Log.e(TAG, "Something went wrong dispatching an event: " + e.getLocalizedMessage());
+        } finally {
+            completed();
+        }
+    }
+
+    private void completed()
+    {
+        completedCount.incrementAndGet();
+        if (flushWaiters.get() > 0) {
+            synchronized (flushLock) {
+                flushLock.notifyAll();
+            }
+        }
+    }
+
+    private static final class QueuedEvent
+    {
+        final Batch.EventDispatcher.Type type;
+        final Batch.EventDispatcher.Payload payload;
+        final DuplicateFilter.Key key;
+        final double sampleRate;
+
+        QueuedEvent(Batch.EventDispatcher.Type type,
+                    Batch.EventDispatcher.Payload payload,
+                    DuplicateFilter.Key key,
+                    double sampleRate)
+        {
+            this.type = type;
+            this.payload = payload;
+            this.key = key;
+            this.sampleRate = sampleRate;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+
+import com.batch.android.Batch;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics recorder keeping its counters in atomic arrays, indexed by event type
+ * Recording never allocates nor locks.
+ */
+final class AtomicMetricsRecorder implements MetricsRecorder
+{
+    private static final Batch.EventDispatcher.Type[] TYPES = Batch.EventDispatcher.Type.values();
+
+    private static final int RECEIVED = 0;
+    private static final int DISPATCHED = 1;
+    private static final int DROPPED = 2;
+    private static final int PARSE_FAILURES = 3;
+    private static final int COUNTER_COUNT = 4;
+
+    private static final int PARSE = 0;
+    private static final int TRACK = 1;
+    private static final int HISTOGRAM_COUNT = 2;
+
+    private final AtomicLongArray counters = new AtomicLongArray(TYPES.length * COUNTER_COUNT);
+
+    private final AtomicLongArray buckets =
+            new AtomicLongArray(TYPES.length * HISTOGRAM_COUNT * LatencyHistogram.BUCKET_COUNT);
+
+    private final AtomicLongArray totalNanos = new AtomicLongArray(TYPES.length * HISTOGRAM_COUNT);
+
+    @Override
+    public void onEventReceived(@NonNull Batch.EventDispatcher.Type type)
+    {
+        counters.incrementAndGet(type.ordinal() * COUNTER_COUNT + RECEIVED);
+    }
+
+    @Override
+    public void onEventDispatched(@NonNull Batch.EventDispatcher.Type type)
+    {
+        counters.incrementAndGet(type.ordinal() * COUNTER_COUNT + DISPATCHED);
+    }
+
+    @Override
+    public void onEventDropped(@NonNull Batch.EventDispatcher.Type type)
+    {
+        counters.incrementAndGet(type.ordinal() * COUNTER_COUNT + DROPPED);
+    }
+
+    @Override
+    public void onParseFailure(@NonNull Batch.EventDispatcher.Type type)
+    {
+        counters.incrementAndGet(type.ordinal() * COUNTER_COUNT + PARSE_FAILURES);
+    }
+
+    @Override
+    public long startTimer()
+    {
+        return System.nanoTime();
+    }
+
+    @Override
+    public void recordParseTime(@NonNull Batch.EventDispatcher.Type type, long startNanos)
+    {
+        record(type.ordinal() * HISTOGRAM_COUNT + PARSE, System.nanoTime() - startNanos);
+    }
+
+    @Override
+    public void recordTrackTime(@NonNull Batch.EventDispatcher.Type type, long startNanos)
+    {
+        record(type.ordinal() * HISTOGRAM_COUNT + TRACK, System.nanoTime() - startNanos);
+    }
+
+    private void record(int histogram, long nanos)
+    {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(histogram * LatencyHistogram.BUCKET_COUNT + LatencyHistogram.bucketFor(nanos));
+        totalNanos.addAndGet(histogram, nanos);
+    }
+
+    /**
+     * Copy the current values of the metrics
+     * Events dispatched while the snapshot is taken may only be partially reflected in it.
+     */
+    @NonNull
+    DispatcherMetrics getSnapshot()
+    {
+        long[][] typeCounters = new long[COUNTER_COUNT][TYPES.length];
+        LatencyHistogram[] parseLatencies = new LatencyHistogram[TYPES.length];
+        LatencyHistogram[] trackLatencies = new LatencyHistogram[TYPES.length];
+        for (int type = 0; type < TYPES.length; type++) {
+            for (int counter = 0; counter < COUNTER_COUNT; counter++) {
+                typeCounters[counter][type] = counters.get(type * COUNTER_COUNT + counter);
+            }
+            parseLatencies[type] = getHistogram(type * HISTOGRAM_COUNT + PARSE);
+            trackLatencies[type] = getHistogram(type * HISTOGRAM_COUNT + TRACK);
+        }
+        return new DispatcherMetrics(typeCounters[RECEIVED],
+                typeCounters[DISPATCHED],
+                typeCounters[DROPPED],
+                typeCounters[PARSE_FAILURES],
+                parseLatencies,
+                trackLatencies);
+    }
+
+    private LatencyHistogram getHistogram(int histogram)
+    {
+        long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            counts[bucket] = buckets.get(histogram * LatencyHistogram.BUCKET_COUNT + bucket);
+        }
+        return new LatencyHistogram(counts, totalNanos.get(histogram));
+    }
+}
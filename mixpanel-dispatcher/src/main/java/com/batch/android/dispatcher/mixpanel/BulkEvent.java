@@ -0,0 +1,35 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+
+import com.batch.android.Batch;
+
+/**
+ * Batch event dispatched in bulk with {@link MixpanelDispatcher#dispatchEvents}
+ */
+public final class BulkEvent
+{
+    @NonNull
+    final Batch.EventDispatcher.Type type;
+
+    @NonNull
+    final Batch.EventDispatcher.Payload payload;
+
+    public BulkEvent(@NonNull Batch.EventDispatcher.Type type, @NonNull Batch.EventDispatcher.Payload payload)
+    {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    @NonNull
+    public Batch.EventDispatcher.Type getType()
+    {
+        return type;
+    }
+
+    @NonNull
+    public Batch.EventDispatcher.Payload getPayload()
+    {
+        return payload;
+    }
+}
@@ -0,0 +1,92 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builds the Mixpanel properties of events dispatched in bulk, splitting them across a fork-join
+ * pool
+ * Each event's properties are written to its own index, so sending them afterwards keeps the
+ * original order whichever thread built them.
+ */
+final class BulkPropertiesTask extends RecursiveAction
+{
+    /**
+     * Number of events built by a single task without splitting it further
+     * Building an event's properties takes well under a microsecond, so smaller chunks would
+     * spend more time forking than building.
+     */
+    static final int CHUNK_SIZE = 256;
+
+    private final MixpanelDispatcher dispatcher;
+    private final List<BulkEvent> events;
+
+    /**
+     * Plan of each event, null for the events that were filtered out
+     */
+    private final EventPlan[] plans;
+
+    /**
+     * Values each event was deduplicated on, null if no event was
+     */
+    @Nullable
+    private final DuplicateFilter.Key[] keys;
+    private final Map<String, Object>[] properties;
+    private final int start;
+    private final int end;
+
+    BulkPropertiesTask(@NonNull MixpanelDispatcher dispatcher,
+                       @NonNull List<BulkEvent> events,
+                       @NonNull EventPlan[] plans,
+                       @Nullable DuplicateFilter.Key[] keys,
+                       @NonNull Map<String, Object>[] properties,
+                       int start,
+                       int end)
+    {
+        this.dispatcher = dispatcher;
+        this.events = events;
+        this.plans = plans;
+        this.keys = keys;
+        this.properties = properties;
+        this.start = start;
+        this.end = end;
+    }
+
+    @Override
+    protected void compute()
+    {
+        if (end - start <= CHUNK_SIZE) {
+            for (int i = start; i < end; i++) {
+                EventPlan plan = plans[i];
+                if (plan != null) {
+                    BulkEvent event = events.get(i);
+                    properties[i] = dispatcher.getProperties(plan, event.type, event.payload,
+                            keys != null ? keys[i] : null);
+                }
+            }
+            return;
+        }
+        int middle = (start + end) >>> 1;
+        invokeAll(new BulkPropertiesTask(dispatcher, events, plans, keys, properties, start, middle),
+                new BulkPropertiesTask(dispatcher, events, plans, keys, properties, middle, end));
+    }
+
+    /**
+     * Pool shared by bulk dispatches, with one thread per core, created on first use
+     * ForkJoinPool.commonPool() requires API level 24.
+     */
+    static ForkJoinPool sharedPool()
+    {
+        return PoolHolder.POOL;
+    }
+
+    private static final class PoolHolder
+    {
+        static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,177 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.batch.android.Batch;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Circuit breaker around MixpanelAPI#track
+ *
+ * Calls that throw, or that take longer than the slow call threshold, are failures. After enough
+ * consecutive failures the breaker opens: events are held in a small bounded buffer instead of
+ * being sent, so that a locked or full Mixpanel store doesn't block the threads Batch dispatches
+ * events from. Once the open duration elapsed the breaker is half-open, and the next event is
+ * sent as a probe while the others are still held. A successful probe closes the breaker and
+ * releases the held events, a failed one opens it again.
+ * Checking a closed breaker doesn't lock.
+ */
+final class CircuitBreaker
+{
+    /**
+     * Maximum estimated size of the held events
+     */
+    private static final int MAX_HELD_BYTES = 64 * 1024;
+
+    private final int failureThreshold;
+    private final long slowCallMillis;
+    private final long openMillis;
+    private final Clock clock;
+
+    /**
+     * Events held while the breaker isn't closed, guarded by this
+     */
+    private final PreInitBuffer heldEvents;
+
+    private volatile CircuitState state = CircuitState.CLOSED;
+
+    /**
+     * Written under this, read without locking by calls that succeeded
+     */
+    private volatile int consecutiveFailures = 0;
+
+    private long openedAt;
+    private boolean probing = false;
+
+    private long tripCount = 0;
+    private long failureCount = 0;
+    private long slowCallCount = 0;
+
+    /**
+     * @param failureThreshold Consecutive failed or slow calls opening the breaker
+     * @param slowCallMillis Duration over which a call is slow
+     * @param openMillis Time the breaker stays open before letting a probe through
+     * @param maxHeldEvents Maximum number of events held while the breaker isn't closed
+     */
+    CircuitBreaker(int failureThreshold,
+                   long slowCallMillis,
+                   long openMillis,
+                   int maxHeldEvents,
+                   @NonNull Clock clock)
+    {
+        if (failureThreshold <= 0 || slowCallMillis <= 0 || openMillis <= 0 || maxHeldEvents <= 0) {
+            throw new IllegalArgumentException("Circuit breaker thresholds must be greater than 0");
+        }
+        this.failureThreshold = failureThreshold;
+        this.slowCallMillis = slowCallMillis;
+        this.openMillis = openMillis;
+        this.clock = clock;
+        this.heldEvents = new PreInitBuffer(maxHeldEvents, MAX_HELD_BYTES);
+    }
+
+    /**
+     * Check whether an event can be sent now, holding it if it can't
+     *
+     * @param journalId Id of the event in the journal, or {@link EventJournal#NO_RECORD}
+     * @return true if the event should be sent, false if it was held or dropped because the
+     * holding buffer is full
+     */
+    boolean tryAcquire(@NonNull Batch.EventDispatcher.Type type,
+                       @NonNull String eventName,
+                       @NonNull Map<String, Object> params,
+                       int journalId)
+    {
+        if (state == CircuitState.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            if (state == CircuitState.OPEN && clock.elapsedMillis() - openedAt >= openMillis) {
+                state = CircuitState.HALF_OPEN;
+            }
+            if (state == CircuitState.CLOSED || (state == CircuitState.HALF_OPEN && !probing)) {
+                probing = state == CircuitState.HALF_OPEN;
+                return true;
+            }
+            heldEvents.add(type, eventName, params, journalId);
+            return false;
+        }
+    }
+
+    /**
+     * @return Start time of a call, to give to {@link #onCallCompleted}
+     */
+    long startCall()
+    {
+        return clock.elapsedMillis();
+    }
+
+    /**
+     * Record the outcome of a call let through by {@link #tryAcquire}
+     *
+     * @param startMillis Value returned by {@link #startCall()}
+     * @param failed Whether the call threw, Errors included
+     * @return The held events to send, in order, if the call closed the breaker
+     */
+    @Nullable
+    List<PreInitBuffer.PendingEvent> onCallCompleted(long startMillis, boolean failed)
+    {
+        long now = clock.elapsedMillis();
+        boolean slow = now - startMillis > slowCallMillis;
+        if (!failed && !slow && state == CircuitState.CLOSED && consecutiveFailures == 0) {
+            return null;
+        }
+        synchronized (this) {
+            if (failed) {
+                failureCount++;
+            }
+            if (slow) {
+                slowCallCount++;
+            }
+            // Calls started before the breaker opened neither close it nor open it again
+            boolean stale = state != CircuitState.CLOSED && startMillis <= openedAt;
+            if (failed || slow) {
+                consecutiveFailures++;
+                if ((state == CircuitState.HALF_OPEN && !stale) ||
+                        (state == CircuitState.CLOSED && consecutiveFailures >= failureThreshold)) {
+                    state = CircuitState.OPEN;
+                    openedAt = now;
+                    probing = false;
+                    tripCount++;
+                }
+                return null;
+            }
+            consecutiveFailures = 0;
+            if (state != CircuitState.HALF_OPEN || stale) {
+                return null;
+            }
+            state = CircuitState.CLOSED;
+            probing = false;
+            return heldEvents.drain();
+        }
+    }
+
+    /**
+     * Remove the held events, when the breaker is disabled
+     */
+    @NonNull
+    synchronized List<PreInitBuffer.PendingEvent> drain()
+    {
+        return heldEvents.drain();
+    }
+
+    @NonNull
+    CircuitState getState()
+    {
+        return state;
+    }
+
+    @NonNull
+    synchronized CircuitBreakerStats getStats()
+    {
+        return new CircuitBreakerStats(state, tripCount, failureCount, slowCallCount,
+                heldEvents.getEventCount(), heldEvents.getDroppedCount());
+    }
+}
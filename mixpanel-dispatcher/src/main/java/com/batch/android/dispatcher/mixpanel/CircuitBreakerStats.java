@@ -0,0 +1,92 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Snapshot of the circuit breaker state and counters
+ * See {@link MixpanelDispatcher#getCircuitBreakerStats(android.content.Context)}
+ */
+public final class CircuitBreakerStats
+{
+    private final CircuitState state;
+    private final long tripCount;
+    private final long failureCount;
+    private final long slowCallCount;
+    private final int heldEventCount;
+    private final long droppedEventCount;
+
+    CircuitBreakerStats(@NonNull CircuitState state,
+                        long tripCount,
+                        long failureCount,
+                        long slowCallCount,
+                        int heldEventCount,
+                        long droppedEventCount)
+    {
+        this.state = state;
+        this.tripCount = tripCount;
+        this.failureCount = failureCount;
+        this.slowCallCount = slowCallCount;
+        this.heldEventCount = heldEventCount;
+        this.droppedEventCount = droppedEventCount;
+    }
+
+    @NonNull
+    public CircuitState getState()
+    {
+        return state;
+    }
+
+    /**
+     * @return Number of times the breaker opened
+     */
+    public long getTripCount()
+    {
+        return tripCount;
+    }
+
+    /**
+     * @return Number of calls to Mixpanel that threw
+     */
+    public long getFailureCount()
+    {
+        return failureCount;
+    }
+
+    /**
+     * @return Number of calls to Mixpanel that took longer than the slow call threshold
+     */
+    public long getSlowCallCount()
+    {
+        return slowCallCount;
+    }
+
+    /**
+     * @return Number of events currently held until Mixpanel recovers
+     */
+    public int getHeldEventCount()
+    {
+        return heldEventCount;
+    }
+
+    /**
+     * @return Number of events dropped because the holding buffer was full
+     */
+    public long getDroppedEventCount()
+    {
+        return droppedEventCount;
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return "CircuitBreakerStats{" +
+                "state=" + state +
+                ", tripCount=" + tripCount +
+                ", failureCount=" + failureCount +
+                ", slowCallCount=" + slowCallCount +
+                ", heldEventCount=" + heldEventCount +
+                ", droppedEventCount=" + droppedEventCount +
+                '}';
+    }
+}
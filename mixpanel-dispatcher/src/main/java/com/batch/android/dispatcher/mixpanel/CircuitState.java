@@ -0,0 +1,24 @@
+package com.batch.android.dispatcher.mixpanel;
+
+/**
+ * State of the circuit breaker around MixpanelAPI#track
+ * See {@link MixpanelDispatcher#enableCircuitBreaker(android.content.Context, int, long, long, int)}
+ */
+public enum CircuitState
+{
+    /**
+     * Events are sent to Mixpanel
+     */
+    CLOSED,
+
+    /**
+     * Mixpanel failed or was slow too many times in a row: events are held
+     */
+    OPEN,
+
+    /**
+     * The open duration elapsed: the next event is sent to check whether Mixpanel recovered,
+     * the others are still held
+     */
+    HALF_OPEN
+}
@@ -0,0 +1,23 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Monotonic time source, replaceable in tests
+ */
+interface Clock
+{
+    Clock SYSTEM = new Clock()
+    {
+        @Override
+        public long elapsedMillis()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        }
+    };
+
+    /**
+     * @return Milliseconds elapsed since an arbitrary origin
+     */
+    long elapsedMillis();
+}
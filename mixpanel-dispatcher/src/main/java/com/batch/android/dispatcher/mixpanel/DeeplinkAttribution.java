@@ -0,0 +1,109 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * UTM tags and other extraction keys found in a deeplink
+ * Values are indexed like the {@link ExtractionKeys} the deeplink was scanned for, which start
+ * with the key constants of {@link DeeplinkScanner}
+ * Values over the {@link PayloadBudget} the deeplink was scanned with are truncated or dropped,
+ * and keep the size they had. A dropped value can be replaced by a value of lower precedence,
+ * which keeps the size of the dropped one.
+ */
+final class DeeplinkAttribution
+{
+    /**
+     * Attribution of a deeplink without any UTM tag
+     */
+    static final DeeplinkAttribution EMPTY = new DeeplinkAttribution(null, null);
+
+    static final int WITHIN_BUDGET = -1;
+
+    /**
+     * Keys the deeplink was scanned for, null for {@link #EMPTY}
+     */
+    @Nullable
+    private final ExtractionKeys keys;
+
+    @Nullable
+    private final PayloadBudget budget;
+
+    private final String[] values;
+
+    /**
+     * UTF-8 length of the values that went over the budget, 0 for the others
+     * Null until a value does.
+     */
+    @Nullable
+    private int[] oversizedBytes;
+
+    /**
+     * Create an attribution without any value, filled by the scanner
+     */
+    DeeplinkAttribution(@Nullable ExtractionKeys keys, @Nullable PayloadBudget budget)
+    {
+        this.keys = keys;
+        this.budget = budget;
+        this.values = new String[keys != null ? keys.size() : 0];
+    }
+
+    /**
+     * @return Whether this attribution has the values of the given keys, within the given budget
+     */
+    boolean isFor(@NonNull ExtractionKeys keys, @Nullable PayloadBudget budget)
+    {
+        return this.keys == null || (this.keys == keys && this.budget == budget);
+    }
+
+    /**
+     * Get the value of a UTM tag
+     *
+     * @param key Key index, as defined in {@link DeeplinkScanner} or {@link ExtractionKeys}
+     * @return The decoded value, or null if the deeplink didn't have this tag or its value was dropped
+     */
+    @Nullable
+    String get(int key)
+    {
+        return key < values.length ? values[key] : null;
+    }
+
+    /**
+     * @return The UTF-8 length the value had before being truncated or dropped, or
+     * {@link #WITHIN_BUDGET} if it wasn't
+     */
+    int getOversizedBytes(int key)
+    {
+        return oversizedBytes != null && oversizedBytes[key] > 0 ? oversizedBytes[key] : WITHIN_BUDGET;
+    }
+
+    /**
+     * @return Whether a value was kept for this key, a dropped value not taking it
+     */
+    boolean isKept(int key)
+    {
+        return values[key] != null;
+    }
+
+    void set(int key, @NonNull String value)
+    {
+        values[key] = value;
+    }
+
+    /**
+     * Set a value that went over the budget
+     *
+     * @param value The truncated value, null if it was dropped
+     * @param bytes UTF-8 length of the whole value, ignored if it replaces a dropped value
+     */
+    void setOversized(int key, @Nullable String value, int bytes)
+    {
+        if (oversizedBytes == null) {
+            oversizedBytes = new int[values.length];
+        }
+        values[key] = value;
+        if (oversizedBytes[key] == 0) {
+            oversizedBytes[key] = bytes;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of deeplink attributions, keyed by the trimmed deeplink
+ * Campaigns send the same deeplink to all of their recipients, and a single notification or
+ * in-app message triggers several events, so the same deeplink is usually parsed many times.
+ */
+final class DeeplinkCache
+{
+    private final int maxSize;
+
+    private final LinkedHashMap<String, DeeplinkAttribution> entries;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    DeeplinkCache(int maxSize)
+    {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Cache size must be greater than 0");
+        }
+        this.maxSize = maxSize;
+        // Access ordered, so that the eldest entry is the least recently used one
+        this.entries = new LinkedHashMap<String, DeeplinkAttribution>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DeeplinkAttribution> eldest)
+            {
+                if (size() > DeeplinkCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the attribution of a deeplink, scanning it on a cache miss
+     * Attributions scanned for other keys, before extraction keys were registered, or within
+     * another payload budget are misses.
+     *
+     * @param deeplink Trimmed deeplink
+     * @param budget Budget of each value, null if values aren't limited
+     * @return The deeplink attribution
+     */
+    @NonNull
+    DeeplinkAttribution get(@NonNull String deeplink,
+                            @NonNull ExtractionKeys keys,
+                            @Nullable PayloadBudget budget)
+    {
+        DeeplinkAttribution attribution;
+        synchronized (this) {
+            attribution = entries.get(deeplink);
+            if (attribution != null && attribution.isFor(keys, budget)) {
+                hits++;
+                return attribution;
+            }
+            misses++;
+        }
+
+        // Scan outside of the lock: concurrent misses on the same deeplink will produce the same result
+        attribution = DeeplinkScanner.scan(deeplink, keys, budget);
+        synchronized (this) {
+            entries.put(deeplink, attribution);
+        }
+        return attribution;
+    }
+
+    @NonNull
+    synchronized DeeplinkCacheStats getStats()
+    {
+        return new DeeplinkCacheStats(maxSize, entries.size(), hits, misses, evictions);
+    }
+}
@@ -0,0 +1,78 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Snapshot of the deeplink cache counters
+ * See {@link MixpanelDispatcher#getDeeplinkCacheStats(android.content.Context)}
+ */
+public final class DeeplinkCacheStats
+{
+    private final int maxSize;
+    private final int size;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+
+    DeeplinkCacheStats(int maxSize, int size, long hits, long misses, long evictions)
+    {
+        this.maxSize = maxSize;
+        this.size = size;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    /**
+     * @return Maximum number of deeplinks the cache can hold
+     */
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * @return Number of deeplinks currently cached
+     */
+    public int getSize()
+    {
+        return size;
+    }
+
+    /**
+     * @return Number of deeplinks that were found in the cache
+     */
+    public long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * @return Number of deeplinks that had to be parsed
+     */
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * @return Number of deeplinks removed from the cache to make room for new ones
+     */
+    public long getEvictions()
+    {
+        return evictions;
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return "DeeplinkCacheStats{" +
+                "maxSize=" + maxSize +
+                ", size=" + size +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                '}';
+    }
+}
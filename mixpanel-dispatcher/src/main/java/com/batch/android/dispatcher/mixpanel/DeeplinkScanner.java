@@ -0,0 +1,373 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single pass UTM tag scanner for deeplinks
+ *
+ * Extracts every UTM tag, and every other registered {@link ExtractionKeys extraction key}, from
+ * the query and the fragment of a deeplink without building an {@link android.net.Uri}, while
+ * following the same rules as the Uri based parsing:
+ * - Only hierarchical URIs are scanned
+ * - Query keys are matched case insensitively, the first occurrence wins and its value is
+ *   decoded like {@link android.net.Uri#getQueryParameter(String)} does ('+' is a space)
+ * - The fragment is decoded like {@link android.net.Uri#getFragment()} does before being split,
+ *   keys are matched case insensitively and the last occurrence wins
+ * - Query values take priority over fragment values
+ * Values over a {@link PayloadBudget} are truncated or dropped before being decoded. A dropped
+ * value doesn't count as an occurrence, so the next one in precedence order can set the key.
+ */
+final class DeeplinkScanner
+{
+    /**
+     * UTM tag keys, indexed by the constants below
+     */
+    static final String[] KEYS = {"utm_campaign", "utm_medium", "utm_source", "utm_content"};
+
+    static final int CAMPAIGN = 0;
+    static final int MEDIUM = 1;
+    static final int SOURCE = 2;
+    static final int CONTENT = 3;
+
+    private static final int NOT_FOUND = ExtractionKeys.NOT_FOUND;
+
+    private DeeplinkScanner()
+    {
+    }
+
+    /**
+     * Extract the UTM tags of a deeplink
+     *
+     * @param deeplink Trimmed deeplink
+     * @return The deeplink attribution, {@link DeeplinkAttribution#EMPTY} if it has no UTM tag
+     */
+    @NonNull
+    static DeeplinkAttribution scan(@NonNull String deeplink)
+    {
+        return scan(deeplink, ExtractionKeys.DEFAULT);
+    }
+
+    /**
+     * Extract the values of the given keys from a deeplink
+     * Each parameter is matched against all the keys with a single lookup.
+     *
+     * @param deeplink Trimmed deeplink
+     * @return The deeplink attribution, {@link DeeplinkAttribution#EMPTY} if it has none of the keys
+     */
+    @NonNull
+    static DeeplinkAttribution scan(@NonNull String deeplink, @NonNull ExtractionKeys keys)
+    {
+        return scan(deeplink, keys, null);
+    }
+
+    /**
+     * Extract the values of the given keys from a deeplink, within a budget
+     *
+     * @param deeplink Trimmed deeplink
+     * @param budget Budget of each value, null if values aren't limited
+     * @return The deeplink attribution, {@link DeeplinkAttribution#EMPTY} if it has none of the keys
+     */
+    @NonNull
+    static DeeplinkAttribution scan(@NonNull String deeplink,
+                                    @NonNull ExtractionKeys keys,
+                                    @Nullable PayloadBudget budget)
+    {
+        int schemeSeparator = deeplink.indexOf(':');
+        if (!isHierarchical(deeplink, schemeSeparator)) {
+            return DeeplinkAttribution.EMPTY;
+        }
+
+        int fragmentSeparator = deeplink.indexOf('#', schemeSeparator);
+        int querySeparator = deeplink.indexOf('?', schemeSeparator);
+        if (fragmentSeparator != NOT_FOUND && querySeparator > fragmentSeparator) {
+            querySeparator = NOT_FOUND;
+        }
+
+        // Kept values are only set once: the query is scanned first as it takes priority, and the
+        // fragment is scanned backwards so that its last occurrences are found first
+        DeeplinkAttribution attribution = null;
+        if (querySeparator != NOT_FOUND) {
+            int queryEnd = fragmentSeparator == NOT_FOUND ? deeplink.length() : fragmentSeparator;
+            attribution = scanQuery(deeplink, querySeparator + 1, queryEnd, keys, budget, attribution);
+        }
+        if (fragmentSeparator != NOT_FOUND && fragmentSeparator + 1 < deeplink.length()) {
+            attribution = scanFragment(deeplink, fragmentSeparator + 1, keys, budget, attribution);
+        }
+        return attribution == null ? DeeplinkAttribution.EMPTY : attribution;
+    }
+
+    private static boolean isHierarchical(String deeplink, int schemeSeparator)
+    {
+        if (schemeSeparator == NOT_FOUND) {
+            // Relative URIs are hierarchical
+            return true;
+        }
+        return deeplink.length() > schemeSeparator + 1 && deeplink.charAt(schemeSeparator + 1) == '/';
+    }
+
+    /**
+     * Scan the query: the first occurrence of a key wins
+     */
+    private static DeeplinkAttribution scanQuery(String deeplink,
+                                                 int start,
+                                                 int end,
+                                                 ExtractionKeys keys,
+                                                 PayloadBudget budget,
+                                                 DeeplinkAttribution attribution)
+    {
+        while (true) {
+            int next = indexOf(deeplink, '&', start, end);
+            int paramEnd = next == NOT_FOUND ? end : next;
+            int separator = indexOf(deeplink, '=', start, paramEnd);
+            if (separator == NOT_FOUND) {
+                separator = paramEnd;
+            }
+
+            int key = keys.indexOf(deeplink, start, separator);
+            if (key != NOT_FOUND && (attribution == null || !attribution.isKept(key))) {
+                if (attribution == null) {
+                    attribution = new DeeplinkAttribution(keys, budget);
+                }
+                setQueryValue(attribution, key, deeplink, separator == paramEnd ? paramEnd : separator + 1, paramEnd, budget);
+            }
+            if (next == NOT_FOUND) {
+                return attribution;
+            }
+            start = next + 1;
+        }
+    }
+
+    /**
+     * Scan the fragment backwards: the last occurrence of a key wins, unless the query had it
+     */
+    private static DeeplinkAttribution scanFragment(String deeplink,
+                                                    int start,
+                                                    ExtractionKeys keys,
+                                                    PayloadBudget budget,
+                                                    DeeplinkAttribution attribution)
+    {
+        String fragment = deeplink;
+        int end = deeplink.length();
+        if (deeplink.indexOf('%', start) != NOT_FOUND) {
+            // Escaped separators are split on, so the fragment has to be decoded first
+            fragment = decode(deeplink, start, end, false);
+            start = 0;
+            end = fragment.length();
+        }
+
+        int paramEnd = end;
+        while (paramEnd >= start) {
+            int previous = lastIndexOf(fragment, '&', start, paramEnd);
+            int paramStart = previous == NOT_FOUND ? start : previous + 1;
+            int separator = indexOf(fragment, '=', paramStart, paramEnd);
+            // A parameter needs something else than '=' after its key to have a value
+            if (separator != NOT_FOUND && hasValue(fragment, separator + 1, paramEnd)) {
+                int key = keys.indexOf(fragment, paramStart, separator);
+                if (key != NOT_FOUND && (attribution == null || !attribution.isKept(key))) {
+                    int valueEnd = indexOf(fragment, '=', separator + 1, paramEnd);
+                    if (attribution == null) {
+                        attribution = new DeeplinkAttribution(keys, budget);
+                    }
+                    setFragmentValue(attribution, key, fragment, separator + 1,
+                            valueEnd == NOT_FOUND ? paramEnd : valueEnd, budget);
+                }
+            }
+            if (previous == NOT_FOUND) {
+                return attribution;
+            }
+            paramEnd = previous;
+        }
+        return attribution;
+    }
+
+    /**
+     * Decode a query value, or only as much of it as the budget keeps
+     */
+    private static void setQueryValue(DeeplinkAttribution attribution,
+                                      int key,
+                                      String deeplink,
+                                      int start,
+                                      int end,
+                                      @Nullable PayloadBudget budget)
+    {
+        if (budget == null || !budget.mayExceed(end - start)) {
+            attribution.set(key, decode(deeplink, start, end, true));
+            return;
+        }
+        int bytes = decodedLength(deeplink, start, end);
+        if (bytes <= budget.maxValueBytes) {
+            String value = decode(deeplink, start, end, true);
+            // Malformed UTF-8 is replaced by longer characters than it was counted for
+            bytes = PayloadBudget.utf8Length(value, 0, value.length());
+            if (bytes <= budget.maxValueBytes) {
+                attribution.set(key, value);
+                return;
+            }
+            setOversizedValue(attribution, key, value, 0, value.length(), bytes, budget);
+            return;
+        }
+        // An escape takes 3 characters per byte, so this start of the value decodes to more than
+        // the budget even if it ends in the middle of a 4 byte escaped character
+        int prefixEnd = (int) Math.min(end, start + 3L * budget.maxValueBytes + 12);
+        String prefix = budget.policy == OversizedValuePolicy.TRUNCATE ? decode(deeplink, start, prefixEnd, true) : "";
+        setOversizedValue(attribution, key, prefix, 0, prefix.length(), bytes, budget);
+    }
+
+    /**
+     * Set a fragment value, or only as much of it as the budget keeps
+     */
+    private static void setFragmentValue(DeeplinkAttribution attribution,
+                                         int key,
+                                         String fragment,
+                                         int start,
+                                         int end,
+                                         @Nullable PayloadBudget budget)
+    {
+        if (budget == null || !budget.mayExceed(end - start)) {
+            attribution.set(key, fragment.substring(start, end));
+            return;
+        }
+        int bytes = PayloadBudget.utf8Length(fragment, start, end);
+        if (bytes <= budget.maxValueBytes) {
+            attribution.set(key, fragment.substring(start, end));
+            return;
+        }
+        setOversizedValue(attribution, key, fragment, start, end, bytes, budget);
+    }
+
+    private static void setOversizedValue(DeeplinkAttribution attribution,
+                                          int key,
+                                          String s,
+                                          int start,
+                                          int end,
+                                          int bytes,
+                                          PayloadBudget budget)
+    {
+        String value = null;
+        if (budget.policy == OversizedValuePolicy.TRUNCATE) {
+            int prefixEnd = PayloadBudget.prefixEnd(s, start, end, budget.maxValueBytes);
+            value = prefixEnd > start ? s.substring(start, prefixEnd) : null;
+        }
+        attribution.setOversized(key, value, bytes);
+    }
+
+    /**
+     * Count the UTF-8 bytes of a query value once decoded, without decoding it
+     * Exact for well-formed UTF-8, each invalid escape counting as a replacement character.
+     */
+    private static int decodedLength(String s, int start, int end)
+    {
+        int bytes = 0;
+        int i = start;
+        while (i < end) {
+            char c = s.charAt(i);
+            if (c == '%') {
+                boolean valid = i + 2 < end && Character.digit(s.charAt(i + 1), 16) >= 0 &&
+                        Character.digit(s.charAt(i + 2), 16) >= 0;
+                if (valid) {
+                    bytes++;
+                    i += 3;
+                    continue;
+                }
+            }
+            int next = i + 1;
+            if (Character.isHighSurrogate(c) && next < end && Character.isLowSurrogate(s.charAt(next))) {
+                next++;
+            }
+            bytes += c == '%' ? 3 : PayloadBudget.utf8Length(s, i, next);
+            i = next;
+        }
+        return bytes;
+    }
+
+    private static boolean hasValue(String s, int start, int end)
+    {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) != '=') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(String s, char c, int start, int end)
+    {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    private static int lastIndexOf(String s, char c, int start, int end)
+    {
+        for (int i = end - 1; i >= start; i--) {
+            if (s.charAt(i) == c) {
+                return i;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Percent-decode a range of a string as UTF-8
+     * Invalid escape sequences and malformed UTF-8 are replaced by U+FFFD.
+     *
+     * @param convertPlus Whether '+' should be decoded as a space
+     * @return The decoded range, a plain substring if there was nothing to decode
+     */
+    @NonNull
+    static String decode(@NonNull String s, int start, int end, boolean convertPlus)
+    {
+        int firstEscape = start;
+        while (firstEscape < end) {
+            char c = s.charAt(firstEscape);
+            if (c == '%' || (convertPlus && c == '+')) {
+                break;
+            }
+            firstEscape++;
+        }
+        if (firstEscape == end) {
+            return s.substring(start, end);
+        }
+
+        StringBuilder builder = new StringBuilder(end - start);
+        builder.append(s, start, firstEscape);
+        byte[] bytes = null;
+        int byteCount = 0;
+        int i = firstEscape;
+        while (i < end) {
+            char c = s.charAt(i++);
+            if (c == '%') {
+                int high = i < end ? Character.digit(s.charAt(i), 16) : -1;
+                int low = i + 1 < end ? Character.digit(s.charAt(i + 1), 16) : -1;
+                if (high >= 0 && low >= 0) {
+                    if (bytes == null) {
+                        bytes = new byte[(end - i + 1) / 3];
+                    }
+                    bytes[byteCount++] = (byte) ((high << 4) + low);
+                    i += 2;
+                    continue;
+                }
+                // Invalid escape: drop it up to its first invalid character
+                i = Math.min(i + (high < 0 ? 1 : 2), end);
+                c = '\ufffd';
+            } else if (convertPlus && c == '+') {
+                c = ' ';
+            }
+            if (byteCount > 0) {
+                builder.append(new String(bytes, 0, byteCount, StandardCharsets.UTF_8));
+                byteCount = 0;
+            }
+            builder.append(c);
+        }
+        if (byteCount > 0) {
+            builder.append(new String(bytes, 0, byteCount, StandardCharsets.UTF_8));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,112 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+
+import com.batch.android.Batch;
+
+/**
+ * Snapshot of the dispatcher metrics, per event type
+ * See {@link MixpanelDispatcher#getMetrics(android.content.Context)}
+ */
+public final class DispatcherMetrics
+{
+    private final long[] received;
+    private final long[] dispatched;
+    private final long[] dropped;
+    private final long[] parseFailures;
+    private final LatencyHistogram[] parseLatencies;
+    private final LatencyHistogram[] trackLatencies;
+
+    DispatcherMetrics(long[] received,
+                      long[] dispatched,
+                      long[] dropped,
+                      long[] parseFailures,
+                      LatencyHistogram[] parseLatencies,
+                      LatencyHistogram[] trackLatencies)
+    {
+        this.received = received;
+        this.dispatched = dispatched;
+        this.dropped = dropped;
+        this.parseFailures = parseFailures;
+        this.parseLatencies = parseLatencies;
+        this.trackLatencies = trackLatencies;
+    }
+
+    /**
+     * @return Number of events received from the Batch SDK
+     */
+    public long getReceivedCount(@NonNull Batch.EventDispatcher.Type type)
+    {
+        return received[type.ordinal()];
+    }
+
+    /**
+     * @return Number of events handed to Mixpanel
+     */
+    public long getDispatchedCount(@NonNull Batch.EventDispatcher.Type type)
+    {
+        return dispatched[type.ordinal()];
+    }
+
+    /**
+     * @return Number of events dropped because no MixpanelAPI instance was set, and the
+     * pre-init buffer was full or disabled
+     */
+    public long getDroppedCount(@NonNull Batch.EventDispatcher.Type type)
+    {
+        return dropped[type.ordinal()];
+    }
+
+    /**
+     * @return Number of events whose deeplink couldn't be parsed
+     */
+    public long getParseFailureCount(@NonNull Batch.EventDispatcher.Type type)
+    {
+        return parseFailures[type.ordinal()];
+    }
+
+    /**
+     * @return Time spent extracting the UTM tags of the events' deeplinks
+     */
+    @NonNull
+    public LatencyHistogram getParseLatency(@NonNull Batch.EventDispatcher.Type type)
+    {
+        return parseLatencies[type.ordinal()];
+    }
+
+    /**
+     * @return Time spent in MixpanelAPI#track
+     */
+    @NonNull
+    public LatencyHistogram getTrackLatency(@NonNull Batch.EventDispatcher.Type type)
+    {
+        return trackLatencies[type.ordinal()];
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder("DispatcherMetrics{");
+        boolean first = true;
+        for (Batch.EventDispatcher.Type type : Batch.EventDispatcher.Type.values()) {
+            int i = type.ordinal();
+            if (received[i] == 0 && dispatched[i] == 0) {
+                continue;
+            }
+            if (!first) {
+                builder.append(", ");
+            }
+            first = false;
+            builder.append(type.name())
+                    .append("={received=").append(received[i])
+                    .append(", dispatched=").append(dispatched[i])
+                    .append(", dropped=").append(dropped[i])
+                    .append(", parseFailures=").append(parseFailures[i])
+                    .append(", parseLatency=").append(parseLatencies[i])
+                    .append(", trackLatency=").append(trackLatencies[i])
+                    .append('}');
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,210 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.batch.android.Batch;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Detects duplicate events with a rotating bloom filter
+ *
+ * Events are identified by their type, tracking id and deeplink. Notification events need a
+ * tracking id: Batch push payloads usually have none, and distinct pushes often share a
+ * deeplink, so a deeplink alone doesn't identify a push. The filter has two generations
+ * of the same size: events are added to the current one, and looked up in both. Every time
+ * window, the previous generation is cleared and becomes the current one, so an event is
+ * remembered for one to two windows while memory stays fixed.
+ * Each generation is sized for half of the configured false positive rate, so that looking up
+ * both of them stays under it.
+ */
+final class DuplicateFilter
+{
+    private final Set<Batch.EventDispatcher.Type> types;
+    private final long windowMillis;
+    private final Clock clock;
+
+    private final int bitCount;
+    private final int hashCount;
+
+    private long[] current;
+    private long[] previous;
+    private long generationStart;
+
+    private long duplicateCount = 0;
+
+    /**
+     * @param types Types of the events to deduplicate
+     * @param windowMillis Minimum time an event is remembered
+     * @param expectedEvents Number of events expected per window, that the false positive rate is computed for
+     * @param falsePositiveRate Probability that an event seen for the first time is taken for a duplicate
+     */
+    DuplicateFilter(@NonNull Set<Batch.EventDispatcher.Type> types,
+                    long windowMillis,
+                    int expectedEvents,
+                    double falsePositiveRate,
+                    @NonNull Clock clock)
+    {
+        if (windowMillis <= 0 || expectedEvents <= 0) {
+            throw new IllegalArgumentException("Window and expected events must be greater than 0");
+        }
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+        }
+        this.types = types.isEmpty() ? EnumSet.noneOf(Batch.EventDispatcher.Type.class) : EnumSet.copyOf(types);
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+
+        double ln2 = Math.log(2);
+        double bits = -expectedEvents * Math.log(falsePositiveRate / 2) / (ln2 * ln2);
+        long words = Math.min((long) Math.ceil(bits / 64), Integer.MAX_VALUE / 64);
+        this.bitCount = (int) words * 64;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedEvents * ln2));
+
+        current = new long[(int) words];
+        previous = new long[(int) words];
+        generationStart = clock.elapsedMillis();
+    }
+
+    /**
+     * @return Whether events of this type are deduplicated
+     */
+    boolean isFiltered(@NonNull Batch.EventDispatcher.Type type)
+    {
+        return types.contains(type);
+    }
+
+    /**
+     * Check whether an event was already seen, and remember it
+     *
+     * @return true if the event should be dropped
+     */
+    boolean isDuplicate(@NonNull Batch.EventDispatcher.Type type,
+                        @Nullable String trackingId,
+                        @Nullable String deeplink)
+    {
+        if (!types.contains(type) || (trackingId == null && (deeplink == null || type.isNotificationEvent()))) {
+            return false;
+        }
+
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, type.ordinal());
+        hash = hash(hash, trackingId);
+        hash = hash(hash, deeplink);
+        long h1 = mix(hash);
+        long h2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+
+        synchronized (this) {
+            rotate();
+            boolean inCurrent = true;
+            boolean inPrevious = true;
+            for (int i = 0; i < hashCount; i++) {
+                int bit = (int) (((h1 + i * h2) >>> 1) % bitCount);
+                long mask = 1L << bit;
+                int word = bit >>> 6;
+                inCurrent &= (current[word] & mask) != 0;
+                inPrevious &= (previous[word] & mask) != 0;
+                current[word] |= mask;
+            }
+            if (inCurrent || inPrevious) {
+                duplicateCount++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private void rotate()
+    {
+        long now = clock.elapsedMillis();
+        long elapsed = now - generationStart;
+        if (elapsed < windowMillis) {
+            return;
+        }
+        long[] cleared = previous;
+        Arrays.fill(cleared, 0);
+        if (elapsed >= 2 * windowMillis) {
+            // Nothing was added during the last window
+            Arrays.fill(current, 0);
+        }
+        previous = current;
+        current = cleared;
+        generationStart = now;
+    }
+
+    synchronized long getDuplicateCount()
+    {
+        return duplicateCount;
+    }
+
+    /**
+     * @return Memory used by both generations, in bytes
+     */
+    long getMemoryBytes()
+    {
+        return 2L * bitCount / 8;
+    }
+
+    int getBitCount()
+    {
+        return bitCount;
+    }
+
+    int getHashCount()
+    {
+        return hashCount;
+    }
+
+    /**
+     * FNV-1a step over a string's characters, with a separator so that ("ab", null) and ("a", "b") differ
+     */
+    private static long hash(long hash, @Nullable String value)
+    {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                hash = hash(hash, value.charAt(i));
+            }
+        }
+        return hash(hash, value == null ? 0x10000 : 0x10001);
+    }
+
+    private static long hash(long hash, int value)
+    {
+        return (hash ^ value) * 0x100000001b3L;
+    }
+
+    /**
+     * Murmur3 finalizer, spreading the FNV hash over all the bits
+     */
+    private static long mix(long hash)
+    {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Values an event is identified by, read once from its payload
+     * They are handed on with the event, so that building its properties doesn't read them again.
+     */
+    static final class Key
+    {
+        @Nullable
+        final String trackingId;
+
+        @Nullable
+        final String deeplink;
+
+        Key(@NonNull Batch.EventDispatcher.Payload payload)
+        {
+            this.trackingId = payload.getTrackingId();
+            this.deeplink = payload.getDeeplink();
+        }
+    }
+}
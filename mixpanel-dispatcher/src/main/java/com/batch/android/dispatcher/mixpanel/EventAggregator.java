@@ -0,0 +1,218 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.batch.android.Batch;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregates notification display (and optionally dismiss) events sharing the same properties
+ * A single event is sent for each aggregate, with the number of events it represents, once its
+ * time window expired or once it reached the maximum count.
+ */
+final class EventAggregator
+{
+    /**
+     * Property holding the number of aggregated events
+     */
+    static final String COUNT_KEY = "batch_event_count";
+
+    private final MixpanelDispatcher dispatcher;
+    private final long windowMillis;
+    private final int maxCount;
+    private final boolean includeDismiss;
+    private final Clock clock;
+
+    /**
+     * Scheduler flushing expired aggregates, null if they are only flushed manually
+     */
+    @Nullable
+    private final ScheduledExecutorService scheduler;
+
+    private final Runnable flushExpiredRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            flushExpired();
+        }
+    };
+
+    /**
+     * Aggregates in creation order, which is also their expiration order
+     */
+    private final LinkedHashMap<Key, Aggregate> aggregates = new LinkedHashMap<>();
+
+    EventAggregator(@NonNull MixpanelDispatcher dispatcher,
+                    long windowMillis,
+                    int maxCount,
+                    boolean includeDismiss,
+                    @NonNull Clock clock,
+                    @Nullable ScheduledExecutorService scheduler)
+    {
+        if (windowMillis <= 0 || maxCount <= 0) {
+            throw new IllegalArgumentException("Aggregation window and count must be greater than 0");
+        }
+        this.dispatcher = dispatcher;
+        this.windowMillis = windowMillis;
+        this.maxCount = maxCount;
+        this.includeDismiss = includeDismiss;
+        this.clock = clock;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Add an event to its aggregate
+     *
+     * @return false if this type of event isn't aggregated, and should be sent as is
+     */
+    boolean add(@NonNull Batch.EventDispatcher.Type type,
+                @NonNull String eventName,
+                @NonNull Map<String, Object> params)
+    {
+        if (type != Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY &&
+                !(includeDismiss && type == Batch.EventDispatcher.Type.NOTIFICATION_DISMISS)) {
+            return false;
+        }
+
+        Key key = new Key(type, params);
+        Aggregate full = null;
+        boolean created = false;
+        synchronized (this) {
+            Aggregate aggregate = aggregates.get(key);
+            if (aggregate == null) {
+                aggregate = new Aggregate(type, eventName, params, clock.elapsedMillis() + windowMillis);
+                aggregates.put(key, aggregate);
+                created = true;
+            }
+            aggregate.count++;
+            if (aggregate.count >= maxCount) {
+                aggregates.remove(key);
+                full = aggregate;
+            }
+        }
+
+        if (full != null) {
+            send(full);
+        } else if (created && scheduler != null) {
+            scheduler.schedule(flushExpiredRunnable, windowMillis, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Send the aggregates whose time window expired
+     */
+    void flushExpired()
+    {
+        long now = clock.elapsedMillis();
+        List<Aggregate> expired = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Aggregate> iterator = aggregates.values().iterator();
+            while (iterator.hasNext()) {
+                Aggregate aggregate = iterator.next();
+                if (aggregate.deadline > now) {
+                    break;
+                }
+                iterator.remove();
+                expired.add(aggregate);
+            }
+        }
+        for (Aggregate aggregate : expired) {
+            send(aggregate);
+        }
+    }
+
+    /**
+     * Send all the aggregates, whether their time window expired or not
+     */
+    void flushAll()
+    {
+        List<Aggregate> all;
+        synchronized (this) {
+            all = new ArrayList<>(aggregates.values());
+            aggregates.clear();
+        }
+        for (Aggregate aggregate : all) {
+            send(aggregate);
+        }
+    }
+
+    /**
+     * Stop the scheduler and send all the aggregates
+     */
+    void shutdown()
+    {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        flushAll();
+    }
+
+    synchronized int getAggregateCount()
+    {
+        return aggregates.size();
+    }
+
+    private void send(Aggregate aggregate)
+    {
+        aggregate.params.put(COUNT_KEY, aggregate.count);
+        dispatcher.send(aggregate.type, aggregate.eventName, aggregate.params);
+    }
+
+    private static final class Key
+    {
+        final Batch.EventDispatcher.Type type;
+        final Map<String, Object> params;
+
+        Key(Batch.EventDispatcher.Type type, Map<String, Object> params)
+        {
+            this.type = type;
+            this.params = params;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return type == key.type && params.equals(key.params);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * type.hashCode() + params.hashCode();
+        }
+    }
+
+    private static final class Aggregate
+    {
+        final Batch.EventDispatcher.Type type;
+        final String eventName;
+        final Map<String, Object> params;
+        final long deadline;
+        int count = 0;
+
+        Aggregate(Batch.EventDispatcher.Type type, String eventName, Map<String, Object> params, long deadline)
+        {
+            this.type = type;
+            this.eventName = eventName;
+            this.params = params;
+            this.deadline = deadline;
+        }
+    }
+}
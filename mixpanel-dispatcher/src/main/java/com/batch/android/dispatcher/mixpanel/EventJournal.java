@@ -0,0 +1,577 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+
+import com.batch.android.Batch;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the events handed to Mixpanel, backed by a memory-mapped file
+ *
+ * An event is appended before being sent to Mixpanel and marked as delivered once track
+ * returned, so that events that were pending when the process got killed can be replayed on
+ * the next launch. Writes to the mapping land in the page cache as soon as they are made, so
+ * they survive the process being killed without having to sync the file.
+ *
+ * File layout: a magic number followed by records. A record is:
+ * - status: 1 byte, 0 for the end of the journal, then pending or delivered
+ * - id: 4 bytes
+ * - body length: 4 bytes
+ * - CRC32 of the id and body: 4 bytes
+ * - body: the event type ordinal, then the properties with known keys written as a single byte,
+ *   and values tagged as null, string, integer or double
+ * The status is written last, so a record torn by a crash is either seen as the end of the
+ * journal or fails its checksum, which also ends the journal.
+ *
+ * When the journal is full, pending records are copied to a new file that replaces the
+ * current one. When there is no pending record, the journal is simply cleared.
+ */
+final class EventJournal implements Closeable
+{
+    static final int NO_RECORD = -1;
+
+    private static final int MAGIC = 0x424d4a31;
+    private static final int FILE_HEADER_SIZE = 4;
+    private static final int RECORD_HEADER_SIZE = 13;
+
+    private static final byte STATUS_END = 0;
+    private static final byte STATUS_PENDING = 1;
+    private static final byte STATUS_DELIVERED = 2;
+
+    /**
+     * Keys written as a single byte, their index being the byte value
+     */
+    private static final String[] KNOWN_KEYS = {
+            "utm_campaign", "utm_source", "utm_medium", "utm_content",
+            "$source", "batch_tracking_id", "batch_webview_analytics_id"
+    };
+    private static final int CUSTOM_KEY = 0xFF;
+
+    private static final int VALUE_NULL = 0;
+    private static final int VALUE_STRING = 1;
+    private static final int VALUE_INTEGER = 2;
+    private static final int VALUE_DOUBLE = 3;
+
+    private final File file;
+    private final int capacity;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    /**
+     * Offset where the next record will be written
+     */
+    private int position;
+    private int nextId;
+
+    /**
+     * Pending records ids and offsets, sorted by id
+     */
+    private int[] pendingIds = new int[8];
+    private int[] pendingOffsets = new int[8];
+    private int pendingCount = 0;
+
+    /**
+     * Records that were pending when the journal was opened
+     */
+    private List<Record> recoveredRecords;
+
+    private final CRC32 crc = new CRC32();
+    private byte[] scratch = new byte[256];
+
+    private EventJournal(@NonNull File file, int capacity)
+    {
+        this.file = file;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Open a journal, reading the records that were pending when it was last used
+     *
+     * @param file Journal file, created if needed
+     * @param capacity Size of the journal file in bytes
+     */
+    @NonNull
+    static EventJournal open(@NonNull File file, int capacity) throws IOException
+    {
+        if (capacity < FILE_HEADER_SIZE + RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Journal capacity is too small");
+        }
+        EventJournal journal = new EventJournal(file, capacity);
+        journal.load();
+        return journal;
+    }
+
+    private void load() throws IOException
+    {
+        boolean exists = file.exists() && file.length() >= FILE_HEADER_SIZE;
+        int existingLength = exists ? (int) Math.min(file.length(), Integer.MAX_VALUE) : capacity;
+        map(file, existingLength);
+
+        List<Record> records = new ArrayList<>();
+        boolean cleanEnd = true;
+        position = FILE_HEADER_SIZE;
+        nextId = 0;
+        if (exists && buffer.getInt(0) == MAGIC) {
+            cleanEnd = readRecords(records);
+        } else {
+            buffer.putInt(0, MAGIC);
+            // A new file is filled with zeros, but an unknown one has to be cleared
+            cleanEnd = !exists;
+        }
+
+        if (existingLength != capacity) {
+            // Resized: move the pending records to a journal of the right size
+            try {
+                compact(capacity);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        } else if (!cleanEnd) {
+            // A torn record might be followed by garbage that could look like a record later on
+            zero(position, capacity);
+        }
+        recoveredRecords = records;
+    }
+
+    /**
+     * Read the records of the journal, stopping at its end or at the first corrupted record
+     *
+     * @return false if a corrupted record was found
+     */
+    private boolean readRecords(List<Record> records)
+    {
+        int offset = FILE_HEADER_SIZE;
+        int limit = buffer.capacity();
+        while (offset + RECORD_HEADER_SIZE <= limit) {
+            byte status = buffer.get(offset);
+            if (status == STATUS_END) {
+                position = offset;
+                return true;
+            }
+            int id = buffer.getInt(offset + 1);
+            int length = buffer.getInt(offset + 5);
+            if ((status != STATUS_PENDING && status != STATUS_DELIVERED) ||
+                    length < 0 || length > limit - offset - RECORD_HEADER_SIZE) {
+                position = offset;
+                return false;
+            }
+            ensureScratch(length);
+            buffer.position(offset + RECORD_HEADER_SIZE);
+            buffer.get(scratch, 0, length);
+            if (buffer.getInt(offset + 9) != checksum(id, length)) {
+                position = offset;
+                return false;
+            }
+
+            nextId = Math.max(nextId, id + 1);
+            if (status == STATUS_PENDING) {
+                Record record = decode(id, offset + RECORD_HEADER_SIZE, length);
+                if (record != null) {
+                    records.add(record);
+                    addPending(id, offset);
+                }
+            }
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        position = offset;
+        return true;
+    }
+
+    /**
+     * Get the records that were still pending when the journal was opened, and forget about them
+     * They stay in the journal until they are marked as delivered.
+     */
+    @NonNull
+    synchronized List<Record> takeRecoveredRecords()
+    {
+        List<Record> records = recoveredRecords;
+        recoveredRecords = Collections.emptyList();
+        return records;
+    }
+
+    /**
+     * Append a pending event to the journal
+     *
+     * @return The record id, or {@link #NO_RECORD} if the event couldn't be written
+     */
+    synchronized int append(@NonNull Batch.EventDispatcher.Type type, @NonNull Map<String, Object> params)
+    {
+        if (buffer == null) {
+            return NO_RECORD;
+        }
+        int length = encode(type, params);
+        int recordSize = RECORD_HEADER_SIZE + length;
+        if (recordSize > capacity - FILE_HEADER_SIZE) {
+            return NO_RECORD;
+        }
+
+        if (pendingCount == 0 && position > FILE_HEADER_SIZE) {
+            // Everything has been delivered: clear the journal rather than growing it
+            zero(FILE_HEADER_SIZE, position);
+            position = FILE_HEADER_SIZE;
+        }
+        if (position + recordSize > capacity) {
+            try {
+                compact(capacity);
+            } catch (IOException e) {
+                return NO_RECORD;
+            }
+            if (position + recordSize > capacity) {
+                return NO_RECORD;
+            }
+        }
+
+        int id = nextId++;
+        int offset = position;
+        buffer.putInt(offset + 1, id);
+        buffer.putInt(offset + 5, length);
+        buffer.putInt(offset + 9, checksum(id, length));
+        buffer.position(offset + RECORD_HEADER_SIZE);
+        buffer.put(scratch, 0, length);
+        // Written last: the record only exists once it is complete
+        buffer.put(offset, STATUS_PENDING);
+
+        position += recordSize;
+        addPending(id, offset);
+        return id;
+    }
+
+    /**
+     * Mark a record as delivered, so that it won't be replayed
+     */
+    synchronized void markDelivered(int id)
+    {
+        if (buffer == null || id == NO_RECORD) {
+            return;
+        }
+        int index = Arrays.binarySearch(pendingIds, 0, pendingCount, id);
+        if (index < 0) {
+            return;
+        }
+        buffer.put(pendingOffsets[index], STATUS_DELIVERED);
+        System.arraycopy(pendingIds, index + 1, pendingIds, index, pendingCount - index - 1);
+        System.arraycopy(pendingOffsets, index + 1, pendingOffsets, index, pendingCount - index - 1);
+        pendingCount--;
+    }
+
+    synchronized int getPendingCount()
+    {
+        return pendingCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        buffer = null;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Copy the pending records to a new journal file replacing the current one
+     * Records that don't fit in the new capacity are dropped, oldest first. If the new file
+     * can't be written or can't replace the current one, the journal is left untouched.
+     */
+    private void compact(int newCapacity) throws IOException
+    {
+        int keptBytes = 0;
+        int firstKept = pendingCount;
+        while (firstKept > 0) {
+            int size = recordSize(pendingOffsets[firstKept - 1]);
+            if (FILE_HEADER_SIZE + keptBytes + size > newCapacity) {
+                break;
+            }
+            keptBytes += size;
+            firstKept--;
+        }
+
+        File compactedFile = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(compactedFile, "rw");
+        int[] compactedOffsets = new int[pendingOffsets.length];
+        FileChannel compactedChannel;
+        MappedByteBuffer compacted;
+        try {
+            raf.setLength(0);
+            raf.setLength(newCapacity);
+            compactedChannel = raf.getChannel();
+            compacted = compactedChannel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+            compacted.putInt(0, MAGIC);
+            int offset = FILE_HEADER_SIZE;
+            for (int i = firstKept; i < pendingCount; i++) {
+                int from = pendingOffsets[i];
+                int size = recordSize(from);
+                for (int j = 0; j < size; j++) {
+                    compacted.put(offset + j, buffer.get(from + j));
+                }
+                compactedOffsets[i - firstKept] = offset;
+                offset += size;
+            }
+            compacted.force();
+
+            // The new file stays mapped through the rename, so the journal never goes unmapped
+            if (!compactedFile.renameTo(file)) {
+                throw new IOException("Could not replace the journal file");
+            }
+        } catch (IOException e) {
+            raf.close();
+            compactedFile.delete();
+            throw e;
+        }
+
+        channel.close();
+        channel = compactedChannel;
+        buffer = compacted;
+        System.arraycopy(pendingIds, firstKept, pendingIds, 0, pendingCount - firstKept);
+        pendingOffsets = compactedOffsets;
+        pendingCount -= firstKept;
+        position = FILE_HEADER_SIZE + keptBytes;
+    }
+
+    private void map(File target, int length) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(target, "rw");
+        if (raf.length() < length) {
+            raf.setLength(length);
+        }
+        channel = raf.getChannel();
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+    }
+
+    private int recordSize(int offset)
+    {
+        return RECORD_HEADER_SIZE + buffer.getInt(offset + 5);
+    }
+
+    private void zero(int from, int to)
+    {
+        for (int i = from; i < to; i++) {
+            buffer.put(i, (byte) 0);
+        }
+    }
+
+    private void addPending(int id, int offset)
+    {
+        if (pendingCount == pendingIds.length) {
+            pendingIds = Arrays.copyOf(pendingIds, pendingCount * 2);
+            pendingOffsets = Arrays.copyOf(pendingOffsets, pendingCount * 2);
+        }
+        pendingIds[pendingCount] = id;
+        pendingOffsets[pendingCount] = offset;
+        pendingCount++;
+    }
+
+    /**
+     * Checksum of a record id and of its body, which must be in the scratch buffer
+     */
+    private int checksum(int id, int length)
+    {
+        crc.reset();
+        crc.update(id >>> 24);
+        crc.update(id >>> 16);
+        crc.update(id >>> 8);
+        crc.update(id);
+        crc.update(scratch, 0, length);
+        return (int) crc.getValue();
+    }
+
+    // region Record encoding
+
+    /**
+     * Encode an event in the scratch buffer
+     *
+     * @return The encoded length
+     */
+    private int encode(Batch.EventDispatcher.Type type, Map<String, Object> params)
+    {
+        int length = 0;
+        length = writeByte(length, type.ordinal());
+        length = writeVarInt(length, params.size());
+        for (Map.Entry<String, Object> entry : params.entrySet()) {
+            int keyIndex = knownKeyIndex(entry.getKey());
+            if (keyIndex >= 0) {
+                length = writeByte(length, keyIndex);
+            } else {
+                length = writeByte(length, CUSTOM_KEY);
+                length = writeString(length, entry.getKey());
+            }
+            length = writeValue(length, entry.getValue());
+        }
+        return length;
+    }
+
+    private static int knownKeyIndex(String key)
+    {
+        for (int i = 0; i < KNOWN_KEYS.length; i++) {
+            if (KNOWN_KEYS[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int writeByte(int offset, int value)
+    {
+        ensureScratch(offset + 1);
+        scratch[offset] = (byte) value;
+        return offset + 1;
+    }
+
+    private int writeVarInt(int offset, int value)
+    {
+        while ((value & ~0x7F) != 0) {
+            offset = writeByte(offset, (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        return writeByte(offset, value);
+    }
+
+    private int writeValue(int offset, Object value)
+    {
+        if (value == null) {
+            return writeByte(offset, VALUE_NULL);
+        }
+        if (value instanceof Integer) {
+            offset = writeByte(offset, VALUE_INTEGER);
+            int integer = (Integer) value;
+            // Zigzag encoding, so that small negative values stay small
+            return writeVarInt(offset, (integer << 1) ^ (integer >> 31));
+        }
+        if (value instanceof Double) {
+            offset = writeByte(offset, VALUE_DOUBLE);
+            long bits = Double.doubleToLongBits((Double) value);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                offset = writeByte(offset, (int) (bits >>> shift));
+            }
+            return offset;
+        }
+        offset = writeByte(offset, VALUE_STRING);
+        return writeString(offset, value.toString());
+    }
+
+    /**
+     * Write a nullable string: its UTF-8 length plus one (0 for null), then its bytes
+     */
+    private int writeString(int offset, String value)
+    {
+        if (value == null) {
+            return writeVarInt(offset, 0);
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        offset = writeVarInt(offset, bytes.length + 1);
+        ensureScratch(offset + bytes.length);
+        System.arraycopy(bytes, 0, scratch, offset, bytes.length);
+        return offset + bytes.length;
+    }
+
+    private void ensureScratch(int size)
+    {
+        if (size > scratch.length) {
+            scratch = Arrays.copyOf(scratch, Math.max(size, scratch.length * 2));
+        }
+    }
+
+    /**
+     * Decode a record body
+     *
+     * @return The record, or null if its event type or a property key isn't known anymore
+     */
+    private Record decode(int id, int offset, int length)
+    {
+        int[] cursor = {offset};
+        int typeOrdinal = buffer.get(cursor[0]++) & 0xFF;
+        Batch.EventDispatcher.Type[] types = Batch.EventDispatcher.Type.values();
+        if (typeOrdinal >= types.length) {
+            return null;
+        }
+        int count = readVarInt(cursor);
+        Map<String, Object> params = new PropertyMap();
+        for (int i = 0; i < count; i++) {
+            int keyIndex = buffer.get(cursor[0]++) & 0xFF;
+            if (keyIndex != CUSTOM_KEY && keyIndex >= KNOWN_KEYS.length) {
+                return null;
+            }
+            String key = keyIndex == CUSTOM_KEY ? readString(cursor) : KNOWN_KEYS[keyIndex];
+            params.put(key, readValue(cursor));
+        }
+        return new Record(id, types[typeOrdinal], params);
+    }
+
+    private int readVarInt(int[] cursor)
+    {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(cursor[0]++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private Object readValue(int[] cursor)
+    {
+        int tag = buffer.get(cursor[0]++);
+        if (tag == VALUE_INTEGER) {
+            int zigzag = readVarInt(cursor);
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        if (tag == VALUE_DOUBLE) {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = (bits << 8) | (buffer.get(cursor[0]++) & 0xFF);
+            }
+            return Double.longBitsToDouble(bits);
+        }
+        return tag == VALUE_STRING ? readString(cursor) : null;
+    }
+
+    private String readString(int[] cursor)
+    {
+        int length = readVarInt(cursor) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(cursor[0]++);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // endregion
+
+    /**
+     * An event read back from the journal
+     */
+    static final class Record
+    {
+        final int id;
+        final Batch.EventDispatcher.Type type;
+        final Map<String, Object> params;
+
+        Record(int id, Batch.EventDispatcher.Type type, Map<String, Object> params)
+        {
+            this.id = id;
+            this.type = type;
+            this.params = params;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.batch.android.Batch;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mapping of Batch events to Mixpanel events
+ *
+ * For each event type, the mapping controls the Mixpanel event name, which UTM tags are read from
+ * the deeplink, which custom payload keys are copied, how properties are renamed, and the
+ * priority of the events in the asynchronous dispatch mode.
+ * Types can also be suppressed: they are then ignored before any parsing.
+ * A mapping is compiled once when built, so it doesn't add any work when dispatching events.
+ *
+ * Mappings are created with a {@link Builder}, or from JSON:
+ * <pre>
+ * {
+ *   "events": {
+ *     "NOTIFICATION_DISPLAY": {
+ *       "name": "push_display",
+ *       "deeplink_keys": ["utm_campaign"],
+ *       "custom_payload_keys": ["utm_campaign", "promo_code"],
+ *       "rename": {"utm_campaign": "campaign"},
+ *       "priority": "HIGH"
+ *     },
+ *     "MESSAGING_CLOSE": {"suppress": true}
+ *   },
+ *   "rename": {"$source": "integration"}
+ * }
+ * </pre>
+ * Types and settings that aren't specified keep their default value.
+ * See {@link MixpanelDispatcher#setEventMapping(Context, EventMapping)}.
+ */
+public final class EventMapping
+{
+    static final String SOURCE_KEY = "$source";
+    static final String MEDIUM_KEY = "utm_medium";
+    static final String CAMPAIGN_KEY = "utm_campaign";
+    static final String SOURCE_UTM_KEY = "utm_source";
+    static final String CONTENT_KEY = "utm_content";
+    static final String TRACKING_ID_KEY = "batch_tracking_id";
+    static final String WEBVIEW_ANALYTICS_ID_KEY = "batch_webview_analytics_id";
+
+    private static final Batch.EventDispatcher.Type[] TYPES = Batch.EventDispatcher.Type.values();
+
+    /**
+     * Mapping used when none was set
+     */
+    static final EventMapping DEFAULT = new Builder().build();
+
+    /**
+     * Compiled plans, indexed by type ordinal. A null plan means that the type is suppressed.
+     */
+    private final EventPlan[] plans;
+
+    private EventMapping(@NonNull EventPlan[] plans)
+    {
+        this.plans = plans;
+    }
+
+    /**
+     * @return The plan of an event type, or null if this type is suppressed
+     */
+    @Nullable
+    EventPlan getPlan(@NonNull Batch.EventDispatcher.Type type)
+    {
+        return plans[type.ordinal()];
+    }
+
+    /**
+     * Parse a mapping from JSON, see the format in this class' documentation
+     *
+     * @throws JSONException if the JSON is invalid, or uses an unknown event type or UTM tag
+     */
+    @NonNull
+    public static EventMapping fromJson(@NonNull String json) throws JSONException
+    {
+        Builder builder = new Builder();
+        JSONObject root = new JSONObject(json);
+        try {
+            JSONObject renames = root.optJSONObject("rename");
+            if (renames != null) {
+                Iterator<String> keys = renames.keys();
+                while (keys.hasNext()) {
+                    String from = keys.next();
+                    builder.renameProperty(from, renames.getString(from));
+                }
+            }
+
+            JSONObject events = root.optJSONObject("events");
+            if (events != null) {
+                Iterator<String> typeNames = events.keys();
+                while (typeNames.hasNext()) {
+                    String typeName = typeNames.next();
+                    parseType(builder, Batch.EventDispatcher.Type.valueOf(typeName), events.getJSONObject(typeName));
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new JSONException("Invalid event mapping: " + e.getMessage());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Read a mapping from a JSON file in the app's assets
+     *
+     * @throws IOException if the file couldn't be read
+     * @throws JSONException if the JSON is invalid, or uses an unknown event type or UTM tag
+     */
+    @NonNull
+    public static EventMapping fromAsset(@NonNull Context context, @NonNull String fileName)
+            throws IOException, JSONException
+    {
+        InputStream input = context.getAssets().open(fileName);
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+            return fromJson(new String(output.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            input.close();
+        }
+    }
+
+    private static void parseType(Builder builder,
+                                  Batch.EventDispatcher.Type type,
+                                  JSONObject config) throws JSONException
+    {
+        if (config.optBoolean("suppress", false)) {
+            builder.suppress(type);
+            return;
+        }
+        if (config.has("name")) {
+            builder.setEventName(type, config.getString("name"));
+        }
+        if (config.has("deeplink_keys")) {
+            builder.setDeeplinkKeys(type, toStringArray(config.getJSONArray("deeplink_keys")));
+        }
+        if (config.has("custom_payload_keys")) {
+            builder.setCustomPayloadKeys(type, toStringArray(config.getJSONArray("custom_payload_keys")));
+        }
+        if (config.has("priority")) {
+            builder.setPriority(type, EventPriority.valueOf(config.getString("priority")));
+        }
+        JSONObject renames = config.optJSONObject("rename");
+        if (renames != null) {
+            Iterator<String> keys = renames.keys();
+            while (keys.hasNext()) {
+                String from = keys.next();
+                builder.renameProperty(type, from, renames.getString(from));
+            }
+        }
+    }
+
+    private static String[] toStringArray(JSONArray array) throws JSONException
+    {
+        String[] strings = new String[array.length()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = array.getString(i);
+        }
+        return strings;
+    }
+
+    /**
+     * Default Mixpanel event name of a type
+     */
+    static String getDefaultEventName(Batch.EventDispatcher.Type type)
+    {
+        switch (type) {
+            case NOTIFICATION_DISPLAY:
+                return "batch_notification_display";
+            case NOTIFICATION_OPEN:
+                return "batch_notification_open";
+            case NOTIFICATION_DISMISS:
+                return "batch_notification_dismiss";
+            case MESSAGING_SHOW:
+                return "batch_in_app_show";
+            case MESSAGING_CLOSE:
+                return "batch_in_app_close";
+            case MESSAGING_AUTO_CLOSE:
+                return "batch_in_app_auto_close";
+            case MESSAGING_CLOSE_ERROR:
+                return "batch_in_app_close_error";
+            case MESSAGING_CLICK:
+                return "batch_in_app_click";
+            case MESSAGING_WEBVIEW_CLICK:
+                return "batch_in_app_webview_click";
+        }
+        return "batch_unknown";
+    }
+
+    /**
+     * Default priority of a type in the asynchronous dispatch mode
+     */
+    static EventPriority getDefaultPriority(Batch.EventDispatcher.Type type)
+    {
+        switch (type) {
+            case NOTIFICATION_OPEN:
+            case MESSAGING_CLICK:
+            case MESSAGING_WEBVIEW_CLICK:
+                return EventPriority.HIGH;
+            case NOTIFICATION_DISPLAY:
+            case NOTIFICATION_DISMISS:
+            case MESSAGING_AUTO_CLOSE:
+                return EventPriority.LOW;
+            default:
+                return EventPriority.NORMAL;
+        }
+    }
+
+    /**
+     * Builder of {@link EventMapping}, starting from the default mapping
+     */
+    public static final class Builder
+    {
+        private final TypeConfig[] configs = new TypeConfig[TYPES.length];
+        private final Map<String, String> renames = new HashMap<>();
+
+        public Builder()
+        {
+            for (Batch.EventDispatcher.Type type : TYPES) {
+                configs[type.ordinal()] = new TypeConfig(type);
+            }
+        }
+
+        /**
+         * Set the Mixpanel event name of an event type
+         */
+        @NonNull
+        public Builder setEventName(@NonNull Batch.EventDispatcher.Type type, @NonNull String eventName)
+        {
+            configs[type.ordinal()].eventName = eventName;
+            return this;
+        }
+
+        /**
+         * Don't send events of this type to Mixpanel
+         */
+        @NonNull
+        public Builder suppress(@NonNull Batch.EventDispatcher.Type type)
+        {
+            configs[type.ordinal()].suppressed = true;
+            return this;
+        }
+
+        /**
+         * Set the UTM tags read from the deeplink of an event type
+         * By default, notification events read all the UTM tags, and in-app events only read
+         * utm_content. When no tag is read, the deeplink isn't parsed at all.
+         *
+         * @param utmKeys Some of utm_campaign, utm_medium, utm_source and utm_content
+         */
+        @NonNull
+        public Builder setDeeplinkKeys(@NonNull Batch.EventDispatcher.Type type, @NonNull String... utmKeys)
+        {
+            for (String key : utmKeys) {
+                if (!Arrays.asList(DeeplinkScanner.KEYS).contains(key)) {
+                    throw new IllegalArgumentException("Unknown UTM tag: " + key);
+                }
+            }
+            configs[type.ordinal()].deeplinkKeys = new ArrayList<>(Arrays.asList(utmKeys));
+            return this;
+        }
+
+        /**
+         * Set the custom payload keys copied to the events of a type, overriding the other properties
+         * By default, utm_campaign, utm_medium and utm_source are copied.
+         */
+        @NonNull
+        public Builder setCustomPayloadKeys(@NonNull Batch.EventDispatcher.Type type, @NonNull String... keys)
+        {
+            configs[type.ordinal()].customPayloadKeys = new ArrayList<>(Arrays.asList(keys));
+            return this;
+        }
+
+        /**
+         * Set the priority of the events of a type in the asynchronous dispatch mode
+         * By default, notification opens and in-app clicks are {@link EventPriority#HIGH},
+         * notification displays and dismisses and in-app auto closes are {@link EventPriority#LOW},
+         * and other in-app events are {@link EventPriority#NORMAL}.
+         */
+        @NonNull
+        public Builder setPriority(@NonNull Batch.EventDispatcher.Type type, @NonNull EventPriority priority)
+        {
+            configs[type.ordinal()].priority = priority;
+            return this;
+        }
+
+        /**
+         * Rename a property of the events of a type
+         * This takes priority over the renames of all the types.
+         */
+        @NonNull
+        public Builder renameProperty(@NonNull Batch.EventDispatcher.Type type,
+                                      @NonNull String from,
+                                      @NonNull String to)
+        {
+            configs[type.ordinal()].renames.put(from, to);
+            return this;
+        }
+
+        /**
+         * Rename a property of all events
+         */
+        @NonNull
+        public Builder renameProperty(@NonNull String from, @NonNull String to)
+        {
+            renames.put(from, to);
+            return this;
+        }
+
+        /**
+         * Compile the mapping
+         */
+        @NonNull
+        public EventMapping build()
+        {
+            EventPlan[] plans = new EventPlan[TYPES.length];
+            for (Batch.EventDispatcher.Type type : TYPES) {
+                TypeConfig config = configs[type.ordinal()];
+                if (!config.suppressed) {
+                    plans[type.ordinal()] = compile(type, config);
+                }
+            }
+            return new EventMapping(plans);
+        }
+
+        private EventPlan compile(Batch.EventDispatcher.Type type, TypeConfig config)
+        {
+            String[] deeplinkKeys = null;
+            if (!config.deeplinkKeys.isEmpty()) {
+                deeplinkKeys = new String[DeeplinkScanner.KEYS.length];
+                for (int i = 0; i < DeeplinkScanner.KEYS.length; i++) {
+                    if (config.deeplinkKeys.contains(DeeplinkScanner.KEYS[i])) {
+                        deeplinkKeys[i] = rename(config, DeeplinkScanner.KEYS[i]);
+                    }
+                }
+            }
+
+            String[] customPayloadKeys = config.customPayloadKeys.toArray(new String[0]);
+            String[] customPayloadPropertyKeys = new String[customPayloadKeys.length];
+            for (int i = 0; i < customPayloadKeys.length; i++) {
+                customPayloadPropertyKeys[i] = rename(config, customPayloadKeys[i]);
+            }
+
+            return new EventPlan(config.eventName,
+                    !type.isNotificationEvent(),
+                    config.priority,
+                    rename(config, SOURCE_KEY),
+                    rename(config, MEDIUM_KEY),
+                    rename(config, CAMPAIGN_KEY),
+                    rename(config, TRACKING_ID_KEY),
+                    rename(config, WEBVIEW_ANALYTICS_ID_KEY),
+                    deeplinkKeys,
+                    customPayloadKeys,
+                    customPayloadPropertyKeys);
+        }
+
+        private String rename(TypeConfig config, String key)
+        {
+            String renamed = config.renames.get(key);
+            if (renamed == null) {
+                renamed = renames.get(key);
+            }
+            return renamed != null ? renamed : key;
+        }
+    }
+
+    private static final class TypeConfig
+    {
+        String eventName;
+        boolean suppressed = false;
+        List<String> deeplinkKeys;
+        List<String> customPayloadKeys;
+        EventPriority priority;
+        final Map<String, String> renames = new HashMap<>();
+
+        TypeConfig(Batch.EventDispatcher.Type type)
+        {
+            eventName = getDefaultEventName(type);
+            // Types unknown to this dispatcher are ignored, as their payload may not have the
+            // properties of notification and in-app events
+            suppressed = !type.isNotificationEvent() && !type.isMessagingEvent();
+            if (type.isNotificationEvent()) {
+                deeplinkKeys = new ArrayList<>(Arrays.asList(DeeplinkScanner.KEYS));
+            } else {
+                deeplinkKeys = new ArrayList<>(Arrays.asList(CONTENT_KEY));
+            }
+            customPayloadKeys = new ArrayList<>(Arrays.asList(CAMPAIGN_KEY, MEDIUM_KEY, SOURCE_UTM_KEY));
+            priority = getDefaultPriority(type);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * How the dispatcher turns an event type into a Mixpanel event, compiled from an {@link EventMapping}
+ * Property keys are already renamed, so building an event doesn't look anything up.
+ */
+final class EventPlan
+{
+    final String eventName;
+
+    /**
+     * Whether the event gets the in-app properties, rather than the notification ones
+     */
+    final boolean inApp;
+
+    /**
+     * Priority of the events in the asynchronous dispatch mode
+     */
+    final EventPriority priority;
+
+    final String sourceKey;
+    final String mediumKey;
+    final String campaignKey;
+    final String trackingIdKey;
+    final String webViewAnalyticsIdKey;
+
+    /**
+     * Property key of each UTM tag extracted from the deeplink, indexed like
+     * {@link DeeplinkScanner#KEYS}, null for tags that aren't extracted.
+     * The array itself is null when the deeplink isn't parsed at all.
+     */
+    @Nullable
+    final String[] deeplinkKeys;
+
+    /**
+     * Custom payload keys copied to the event, and their property keys
+     */
+    final String[] customPayloadKeys;
+    final String[] customPayloadPropertyKeys;
+
+    EventPlan(@NonNull String eventName,
+              boolean inApp,
+              @NonNull EventPriority priority,
+              @NonNull String sourceKey,
+              @NonNull String mediumKey,
+              @NonNull String campaignKey,
+              @NonNull String trackingIdKey,
+              @NonNull String webViewAnalyticsIdKey,
+              @Nullable String[] deeplinkKeys,
+              @NonNull String[] customPayloadKeys,
+              @NonNull String[] customPayloadPropertyKeys)
+    {
+        this.eventName = eventName;
+        this.inApp = inApp;
+        this.priority = priority;
+        this.sourceKey = sourceKey;
+        this.mediumKey = mediumKey;
+        this.campaignKey = campaignKey;
+        this.trackingIdKey = trackingIdKey;
+        this.webViewAnalyticsIdKey = webViewAnalyticsIdKey;
+        this.deeplinkKeys = deeplinkKeys;
+        this.customPayloadKeys = customPayloadKeys;
+        this.customPayloadPropertyKeys = customPayloadPropertyKeys;
+    }
+}
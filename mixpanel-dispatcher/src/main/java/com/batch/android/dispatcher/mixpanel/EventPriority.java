@@ -0,0 +1,25 @@
+package com.batch.android.dispatcher.mixpanel;
+
+/**
+ * Priority of an event type in the asynchronous dispatch mode
+ * Queued events are dispatched by decreasing priority, and when the queue is full, the oldest
+ * event of the lowest priority is dropped to make room for events of a higher priority.
+ * See {@link EventMapping.Builder#setPriority(com.batch.android.Batch.EventDispatcher.Type, EventPriority)}
+ */
+public enum EventPriority
+{
+    /**
+     * Conversion events: notification opens and in-app clicks by default
+     */
+    HIGH,
+
+    /**
+     * Other in-app events by default
+     */
+    NORMAL,
+
+    /**
+     * Events that can be shed first: notification displays and dismisses, and in-app auto closes by default
+     */
+    LOW
+}
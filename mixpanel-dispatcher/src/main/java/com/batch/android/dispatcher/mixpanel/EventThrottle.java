@@ -0,0 +1,135 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+
+import com.batch.android.Batch;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per event type sampling and token bucket rate limiting
+ * Events are checked before anything is parsed or allocated for them. Sampling is applied first,
+ * so that sampled out events don't use the rate limit's tokens.
+ * Types without sampling nor rate limit are accepted without locking.
+ */
+final class EventThrottle
+{
+    /**
+     * Property holding the sample rate of sampled events, so that their counts can be re-weighted
+     */
+    static final String SAMPLE_RATE_KEY = "batch_sample_rate";
+
+    private static final Batch.EventDispatcher.Type[] TYPES = Batch.EventDispatcher.Type.values();
+
+    private final Clock clock;
+    private final TypeThrottle[] throttles = new TypeThrottle[TYPES.length];
+
+    private final AtomicLongArray sampledOut = new AtomicLongArray(TYPES.length);
+    private final AtomicLongArray rateLimited = new AtomicLongArray(TYPES.length);
+
+    EventThrottle(@NonNull Clock clock)
+    {
+        this.clock = clock;
+        for (int i = 0; i < throttles.length; i++) {
+            throttles[i] = new TypeThrottle();
+        }
+    }
+
+    /**
+     * @param sampleRate Fraction of the events to keep, between 0 and 1
+     */
+    void setSampleRate(@NonNull Batch.EventDispatcher.Type type, double sampleRate)
+    {
+        if (!(sampleRate >= 0 && sampleRate <= 1)) {
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+        }
+        throttles[type.ordinal()].sampleRate = sampleRate;
+    }
+
+    /**
+     * @param burst Maximum number of events accepted at once, 0 to remove the limit
+     * @param eventsPerSecond Rate at which the burst refills
+     */
+    void setRateLimit(@NonNull Batch.EventDispatcher.Type type, int burst, double eventsPerSecond)
+    {
+        if (burst < 0 || !(eventsPerSecond >= 0)) {
+            throw new IllegalArgumentException("Rate limits cannot be negative");
+        }
+        throttles[type.ordinal()].setRateLimit(burst, eventsPerSecond, clock.elapsedMillis());
+    }
+
+    /**
+     * Check whether an event can be dispatched, counting it if it can't
+     * The sample rate may change before a kept event is sent, so the event carries the rate that
+     * was applied to it.
+     *
+     * @return Sample rate the event was kept at, or NaN if it can't be dispatched
+     */
+    double tryAcquire(@NonNull Batch.EventDispatcher.Type type)
+    {
+        TypeThrottle throttle = throttles[type.ordinal()];
+        double sampleRate = throttle.sampleRate;
+        if (sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+            sampledOut.incrementAndGet(type.ordinal());
+            return Double.NaN;
+        }
+        if (throttle.limited && !throttle.tryTakeToken(clock.elapsedMillis())) {
+            rateLimited.incrementAndGet(type.ordinal());
+            return Double.NaN;
+        }
+        return sampleRate;
+    }
+
+    @NonNull
+    ThrottleStats getStats()
+    {
+        long[] sampledOutCounts = new long[TYPES.length];
+        long[] rateLimitedCounts = new long[TYPES.length];
+        for (int i = 0; i < TYPES.length; i++) {
+            sampledOutCounts[i] = sampledOut.get(i);
+            rateLimitedCounts[i] = rateLimited.get(i);
+        }
+        return new ThrottleStats(sampledOutCounts, rateLimitedCounts);
+    }
+
+    private static final class TypeThrottle
+    {
+        volatile double sampleRate = 1;
+
+        /**
+         * Whether a rate limit is set, read without locking
+         */
+        volatile boolean limited = false;
+
+        private int burst;
+        private double tokensPerMilli;
+        private double tokens;
+        private long lastRefill;
+
+        synchronized void setRateLimit(int burst, double eventsPerSecond, long now)
+        {
+            this.burst = burst;
+            this.tokensPerMilli = eventsPerSecond / 1000d;
+            this.tokens = burst;
+            this.lastRefill = now;
+            this.limited = burst > 0;
+        }
+
+        synchronized boolean tryTakeToken(long now)
+        {
+            if (!limited) {
+                return true;
+            }
+            if (now > lastRefill) {
+                tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerMilli);
+                lastRefill = now;
+            }
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
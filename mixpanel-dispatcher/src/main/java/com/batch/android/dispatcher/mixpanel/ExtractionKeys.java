@@ -0,0 +1,191 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Immutable set of the keys extracted from deeplinks and custom payloads
+ *
+ * The UTM tags of {@link DeeplinkScanner#KEYS} come first, at their usual index, followed by the
+ * keys registered with {@link MixpanelDispatcher#addExtractionKey}, each with the property it is
+ * copied to. Keys are ASCII lowercased, and found with a single lookup in an open addressing hash
+ * table, so matching a deeplink parameter costs the same however many keys are registered.
+ */
+final class ExtractionKeys
+{
+    static final int NOT_FOUND = -1;
+
+    /**
+     * UTM tags only
+     */
+    static final ExtractionKeys DEFAULT = new ExtractionKeys(DeeplinkScanner.KEYS, new String[DeeplinkScanner.KEYS.length]);
+
+    private final String[] keys;
+
+    /**
+     * Property of each registered key, null for the UTM tags
+     */
+    private final String[] propertyNames;
+
+    /**
+     * Key index + 1 for each slot, 0 for empty slots
+     */
+    private final int[] table;
+    private final int mask;
+
+    private final int minLength;
+    private final int maxLength;
+
+    private ExtractionKeys(@NonNull String[] keys, @NonNull String[] propertyNames)
+    {
+        this.keys = keys;
+        this.propertyNames = propertyNames;
+
+        int capacity = Integer.highestOneBit(Math.max(keys.length, 1) * 2) * 2;
+        table = new int[capacity];
+        mask = capacity - 1;
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int i = 0; i < keys.length; i++) {
+            int slot = keys[i].hashCode() & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+            min = Math.min(min, keys[i].length());
+            max = Math.max(max, keys[i].length());
+        }
+        minLength = min;
+        maxLength = max;
+    }
+
+    /**
+     * @return A copy of these keys, with the given key extracted to the given property
+     */
+    @NonNull
+    ExtractionKeys with(@NonNull String key, @NonNull String propertyName)
+    {
+        if (key.isEmpty()) {
+            throw new IllegalArgumentException("Extraction keys cannot be empty");
+        }
+        String lowercaseKey = toLowerCaseAscii(key);
+        int index = indexOf(lowercaseKey, 0, lowercaseKey.length());
+        if (index != NOT_FOUND && index < DeeplinkScanner.KEYS.length) {
+            throw new IllegalArgumentException("UTM tags are extracted by the event mapping: " + key);
+        }
+        if (index != NOT_FOUND) {
+            String[] newPropertyNames = propertyNames.clone();
+            newPropertyNames[index] = propertyName;
+            return new ExtractionKeys(keys, newPropertyNames);
+        }
+        String[] newKeys = Arrays.copyOf(keys, keys.length + 1);
+        String[] newPropertyNames = Arrays.copyOf(propertyNames, propertyNames.length + 1);
+        newKeys[keys.length] = lowercaseKey;
+        newPropertyNames[keys.length] = propertyName;
+        return new ExtractionKeys(newKeys, newPropertyNames);
+    }
+
+    /**
+     * @return A copy of these keys, without the given registered key
+     */
+    @NonNull
+    ExtractionKeys without(@NonNull String key)
+    {
+        String lowercaseKey = toLowerCaseAscii(key);
+        int index = indexOf(lowercaseKey, 0, lowercaseKey.length());
+        if (index < DeeplinkScanner.KEYS.length) {
+            return this;
+        }
+        String[] newKeys = new String[keys.length - 1];
+        String[] newPropertyNames = new String[keys.length - 1];
+        System.arraycopy(keys, 0, newKeys, 0, index);
+        System.arraycopy(propertyNames, 0, newPropertyNames, 0, index);
+        System.arraycopy(keys, index + 1, newKeys, index, keys.length - index - 1);
+        System.arraycopy(propertyNames, index + 1, newPropertyNames, index, keys.length - index - 1);
+        return new ExtractionKeys(newKeys, newPropertyNames);
+    }
+
+    int size()
+    {
+        return keys.length;
+    }
+
+    /**
+     * @return Whether keys were registered in addition to the UTM tags
+     */
+    boolean hasRegisteredKeys()
+    {
+        return keys.length > DeeplinkScanner.KEYS.length;
+    }
+
+    @NonNull
+    String getKey(int index)
+    {
+        return keys[index];
+    }
+
+    /**
+     * @return The property a registered key is copied to, null for UTM tags
+     */
+    @Nullable
+    String getPropertyName(int index)
+    {
+        return propertyNames[index];
+    }
+
+    /**
+     * Find which key is in the given range, ignoring ASCII case
+     *
+     * @return The key index, or {@link #NOT_FOUND}
+     */
+    int indexOf(@NonNull String s, int start, int end)
+    {
+        int length = end - start;
+        if (length < minLength || length > maxLength) {
+            return NOT_FOUND;
+        }
+        // Same as the lowercased String.hashCode()
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + toLowerCaseAscii(s.charAt(i));
+        }
+        int slot = hash & mask;
+        while (true) {
+            int entry = table[slot];
+            if (entry == 0) {
+                return NOT_FOUND;
+            }
+            String key = keys[entry - 1];
+            if (key.length() == length && regionEqualsIgnoreAsciiCase(s, start, key)) {
+                return entry - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private static boolean regionEqualsIgnoreAsciiCase(String s, int start, String lowercaseKey)
+    {
+        for (int i = 0; i < lowercaseKey.length(); i++) {
+            if (toLowerCaseAscii(s.charAt(start + i)) != lowercaseKey.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char toLowerCaseAscii(char c)
+    {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static String toLowerCaseAscii(String s)
+    {
+        char[] chars = s.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = toLowerCaseAscii(chars[i]);
+        }
+        return new String(chars);
+    }
+}
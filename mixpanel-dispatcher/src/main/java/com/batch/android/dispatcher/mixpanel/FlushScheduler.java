@@ -0,0 +1,146 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flushes the MixpanelAPI instances soon after high priority events, rather than waiting for
+ * Mixpanel's own flush timer
+ *
+ * Each tracked event sets a flush deadline depending on its priority: a short delay for
+ * {@link EventPriority#HIGH} events, a long one for the others. A pending deadline is only ever
+ * moved earlier, so the events tracked until then are merged into a single flush. Deadlines are
+ * never set less than the minimum interval after the previous flush, limiting radio wakeups.
+ */
+final class FlushScheduler
+{
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final MixpanelDispatcher dispatcher;
+    private final long highPriorityDelayMillis;
+    private final long lowPriorityDelayMillis;
+    private final long minIntervalMillis;
+    private final Clock clock;
+
+    /**
+     * Scheduler running the flushes when due, null if they are only run manually
+     */
+    @Nullable
+    private final ScheduledExecutorService scheduler;
+
+    private final Runnable flushDueRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            flushIfDue();
+        }
+    };
+
+    private long deadline = NO_DEADLINE;
+    private boolean flushed = false;
+    private long lastFlush;
+    private long flushCount = 0;
+
+    /**
+     * @param highPriorityDelayMillis Delay before flushing after a high priority event
+     * @param lowPriorityDelayMillis Delay before flushing after a normal or low priority event
+     * @param minIntervalMillis Minimum time between two flushes
+     */
+    FlushScheduler(@NonNull MixpanelDispatcher dispatcher,
+                   long highPriorityDelayMillis,
+                   long lowPriorityDelayMillis,
+                   long minIntervalMillis,
+                   @NonNull Clock clock,
+                   @Nullable ScheduledExecutorService scheduler)
+    {
+        if (highPriorityDelayMillis < 0 || lowPriorityDelayMillis < 0 || minIntervalMillis < 0) {
+            throw new IllegalArgumentException("Flush delays and interval cannot be negative");
+        }
+        this.dispatcher = dispatcher;
+        this.highPriorityDelayMillis = highPriorityDelayMillis;
+        this.lowPriorityDelayMillis = lowPriorityDelayMillis;
+        this.minIntervalMillis = minIntervalMillis;
+        this.clock = clock;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Schedule a flush for an event that was handed to Mixpanel
+     */
+    void onEventTracked(@NonNull EventPriority priority)
+    {
+        long delay = priority == EventPriority.HIGH ? highPriorityDelayMillis : lowPriorityDelayMillis;
+        long now = clock.elapsedMillis();
+        long newDeadline = now + delay;
+        synchronized (this) {
+            if (flushed) {
+                newDeadline = Math.max(newDeadline, lastFlush + minIntervalMillis);
+            }
+            if (newDeadline >= deadline) {
+                // Merged into the pending flush
+                return;
+            }
+            deadline = newDeadline;
+        }
+        if (scheduler != null) {
+            // Runs scheduled for later deadlines find nothing due, or a newer deadline
+            scheduler.schedule(flushDueRunnable, newDeadline - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Flush the instances if the pending flush is due
+     *
+     * @return Whether the instances were flushed
+     */
+    boolean flushIfDue()
+    {
+        synchronized (this) {
+            long now = clock.elapsedMillis();
+            if (deadline > now) {
+                return false;
+            }
+            deadline = NO_DEADLINE;
+            flushed = true;
+            lastFlush = now;
+            flushCount++;
+        }
+        dispatcher.flushInstances();
+        return true;
+    }
+
+    /**
+     * Stop the scheduler, and flush the instances if a flush is pending
+     */
+    void shutdown()
+    {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        boolean pending;
+        synchronized (this) {
+            pending = deadline != NO_DEADLINE;
+            deadline = NO_DEADLINE;
+        }
+        if (pending) {
+            dispatcher.flushInstances();
+        }
+    }
+
+    /**
+     * @return Time of the pending flush, or -1 if none is pending
+     */
+    synchronized long getDeadline()
+    {
+        return deadline == NO_DEADLINE ? -1 : deadline;
+    }
+
+    synchronized long getFlushCount()
+    {
+        return flushCount;
+    }
+}
@@ -0,0 +1,121 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Snapshot of a latency histogram
+ * Durations are counted in buckets whose bounds are powers of two: the first bucket holds the
+ * durations under 1024 nanoseconds, and each following bucket holds durations up to twice as long
+ * as the previous one. The last bucket holds all the longer durations.
+ */
+public final class LatencyHistogram
+{
+    static final int BUCKET_COUNT = 21;
+
+    private static final int FIRST_BUCKET_SHIFT = 10;
+
+    private final long[] counts;
+    private final long totalNanos;
+    private final long totalCount;
+
+    LatencyHistogram(@NonNull long[] counts, long totalNanos)
+    {
+        this.counts = counts;
+        this.totalNanos = totalNanos;
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        this.totalCount = total;
+    }
+
+    /**
+     * Find the bucket of a duration
+     */
+    static int bucketFor(long nanos)
+    {
+        int bucket = 64 - Long.numberOfLeadingZeros(nanos >>> FIRST_BUCKET_SHIFT);
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @return Number of buckets
+     */
+    public int getBucketCount()
+    {
+        return BUCKET_COUNT;
+    }
+
+    /**
+     * @param bucket Bucket index, from 0 to {@link #getBucketCount()} excluded
+     * @return Exclusive upper bound of the bucket's durations, in nanoseconds, or
+     * {@link Long#MAX_VALUE} for the last bucket
+     */
+    public long getBucketUpperBoundNanos(int bucket)
+    {
+        if (bucket >= BUCKET_COUNT - 1) {
+            return Long.MAX_VALUE;
+        }
+        return 1L << (bucket + FIRST_BUCKET_SHIFT);
+    }
+
+    /**
+     * @param bucket Bucket index, from 0 to {@link #getBucketCount()} excluded
+     * @return Number of durations in the bucket
+     */
+    public long getCountInBucket(int bucket)
+    {
+        return counts[bucket];
+    }
+
+    /**
+     * @return Number of recorded durations
+     */
+    public long getCount()
+    {
+        return totalCount;
+    }
+
+    /**
+     * @return Sum of the recorded durations, in nanoseconds
+     */
+    public long getTotalNanos()
+    {
+        return totalNanos;
+    }
+
+    /**
+     * Estimate a percentile of the recorded durations
+     *
+     * @param percentile Percentile, between 0 and 100
+     * @return Upper bound of the bucket holding the percentile, in nanoseconds, or 0 if no
+     * duration was recorded
+     */
+    public long getPercentileNanos(double percentile)
+    {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(totalCount * percentile / 100d);
+        long cumulated = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            cumulated += counts[bucket];
+            if (cumulated >= rank && cumulated > 0) {
+                return getBucketUpperBoundNanos(bucket);
+            }
+        }
+        return getBucketUpperBoundNanos(BUCKET_COUNT - 1);
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return "LatencyHistogram{" +
+                "count=" + totalCount +
+                ", totalNanos=" + totalNanos +
+                ", p50=" + getPercentileNanos(50) +
+                ", p99=" + getPercentileNanos(99) +
+                '}';
+    }
+}
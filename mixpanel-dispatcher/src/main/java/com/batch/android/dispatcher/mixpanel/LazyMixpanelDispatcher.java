@@ -0,0 +1,30 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+
+import com.batch.android.Batch;
+import com.batch.android.BatchEventDispatcher;
+
+/**
+ * Dispatcher handed to Batch when it starts, loading the Mixpanel dispatcher on the first event
+ * Batch creates the registrar and gets its dispatcher while the application starts. This class
+ * only references Batch types, so {@link MixpanelDispatcher}, its event mapping, parsing and
+ * throttling classes, and the Mixpanel SDK classes it uses are loaded and initialized when the
+ * first event is dispatched, or when the application configures the dispatcher, rather than on
+ * the cold start path.
+ */
+final class LazyMixpanelDispatcher implements BatchEventDispatcher
+{
+    static final LazyMixpanelDispatcher INSTANCE = new LazyMixpanelDispatcher();
+
+    private LazyMixpanelDispatcher()
+    {
+    }
+
+    @Override
+    public void dispatchEvent(@NonNull Batch.EventDispatcher.Type type,
+                              @NonNull Batch.EventDispatcher.Payload payload)
+    {
+        MixpanelRegistrar.getInstance(null).dispatchEvent(type, payload);
+    }
+}
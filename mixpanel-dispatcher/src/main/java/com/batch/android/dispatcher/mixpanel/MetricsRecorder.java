@@ -0,0 +1,93 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+
+import com.batch.android.Batch;
+
+/**
+ * Receives the dispatcher's metrics as events go through it
+ * Implementations must not allocate, as they are called for every event.
+ */
+interface MetricsRecorder
+{
+    /**
+     * Recorder used when metrics are disabled
+     */
+    MetricsRecorder NOOP = new MetricsRecorder()
+    {
+        @Override
+        public void onEventReceived(@NonNull Batch.EventDispatcher.Type type)
+        {
+        }
+
+        @Override
+        public void onEventDispatched(@NonNull Batch.EventDispatcher.Type type)
+        {
+        }
+
+        @Override
+        public void onEventDropped(@NonNull Batch.EventDispatcher.Type type)
+        {
+        }
+
+        @Override
+        public void onParseFailure(@NonNull Batch.EventDispatcher.Type type)
+        {
+        }
+
+        @Override
+        public long startTimer()
+        {
+            return 0;
+        }
+
+        @Override
+        public void recordParseTime(@NonNull Batch.EventDispatcher.Type type, long startNanos)
+        {
+        }
+
+        @Override
+        public void recordTrackTime(@NonNull Batch.EventDispatcher.Type type, long startNanos)
+        {
+        }
+    };
+
+    /**
+     * An event was received from the Batch SDK
+     */
+    void onEventReceived(@NonNull Batch.EventDispatcher.Type type);
+
+    /**
+     * An event was handed to Mixpanel
+     */
+    void onEventDispatched(@NonNull Batch.EventDispatcher.Type type);
+
+    /**
+     * An event was dropped because no MixpanelAPI instance was set, and it couldn't be buffered
+     */
+    void onEventDropped(@NonNull Batch.EventDispatcher.Type type);
+
+    /**
+     * The deeplink of an event couldn't be parsed
+     */
+    void onParseFailure(@NonNull Batch.EventDispatcher.Type type);
+
+    /**
+     * @return A start time to give to one of the record methods
+     */
+    long startTimer();
+
+    /**
+     * Record the time spent extracting the UTM tags of a deeplink
+     *
+     * @param startNanos Value returned by {@link #startTimer()} before parsing
+     */
+    void recordParseTime(@NonNull Batch.EventDispatcher.Type type, long startNanos);
+
+    /**
+     * Record the time spent in MixpanelAPI#track
+     *
+     * @param startNanos Value returned by {@link #startTimer()} before tracking
+     */
+    void recordTrackTime(@NonNull Batch.EventDispatcher.Type type, long startNanos);
+}
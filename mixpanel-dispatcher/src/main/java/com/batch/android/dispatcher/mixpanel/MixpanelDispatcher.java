@@ -1,18 +1,29 @@
 package com.batch.android.dispatcher.mixpanel;
 
 import android.content.Context;
-import android.net.Uri;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.batch.android.Batch;
 import com.batch.android.BatchEventDispatcher;
 import com.mixpanel.android.mpmetrics.MixpanelAPI;
 
-import java.util.HashMap;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Mixpanel Event Dispatcher
@@ -21,68 +32,786 @@ import java.util.Set;
 public class MixpanelDispatcher implements BatchEventDispatcher
 {
     /**
-     * Mixpanel UTM tag keys
+     * Default limits of the buffer of events dispatched before a MixpanelAPI instance is set
+     */
+    private static final int DEFAULT_PRE_INIT_BUFFER_MAX_EVENTS = 100;
+    private static final int DEFAULT_PRE_INIT_BUFFER_MAX_BYTES = 64 * 1024;
+
+    /**
+     * Name of the event journal file, in the no backup files directory
+     */
+    private static final String JOURNAL_FILE_NAME = "com.batch.android.dispatcher.mixpanel.journal";
+
+    /**
+     * MixpanelAPI instance events are sent to, null until one is set
+     * Written under {@link #preInitLock} once the buffered events were sent, and read without
+     * locking when dispatching events.
+     */
+    volatile MixpanelAPI mixpanelInstance = null;
+
+    /**
+     * Other MixpanelAPI instances events are sent to, after the main one
+     * Copied on write under {@link #preInitLock}, and read without locking when dispatching events.
+     */
+    volatile MixpanelTarget[] additionalTargets = MixpanelTarget.NONE;
+
+    /**
+     * Events dispatched before a MixpanelAPI instance was set, null when disabled
+     * Guarded by {@link #preInitLock}, which also guards setting the instance
+     */
+    PreInitBuffer preInitBuffer = new PreInitBuffer(DEFAULT_PRE_INIT_BUFFER_MAX_EVENTS,
+            DEFAULT_PRE_INIT_BUFFER_MAX_BYTES);
+
+    final Object preInitLock = new Object();
+
+    /**
+     * Journal of the events that haven't been handed to Mixpanel yet, null when disabled
+     */
+    volatile EventJournal journal = null;
+
+    /**
+     * Aggregator of display events, null when disabled
+     */
+    volatile EventAggregator aggregator = null;
+
+    /**
+     * Cache of parsed deeplinks, null when disabled
+     */
+    volatile DeeplinkCache deeplinkCache = null;
+
+    /**
+     * Queue of the asynchronous dispatch mode, null when events are dispatched synchronously
+     */
+    volatile AsyncEventQueue asyncQueue = null;
+
+    /**
+     * Mapping of Batch events to Mixpanel events
+     */
+    volatile EventMapping eventMapping = EventMapping.DEFAULT;
+
+    /**
+     * Keys extracted from deeplinks and custom payloads, in addition to the UTM tags
+     * Copied on write under the class lock.
+     */
+    volatile ExtractionKeys extractionKeys = ExtractionKeys.DEFAULT;
+
+    /**
+     * Recorder of the dispatcher metrics, {@link MetricsRecorder#NOOP} when disabled
+     */
+    volatile MetricsRecorder metrics = MetricsRecorder.NOOP;
+
+    /**
+     * Byte budgets of the extracted property values, null when values aren't limited
+     */
+    volatile PayloadBudget payloadBudget = null;
+
+    /**
+     * Filter of duplicate events, null when disabled
+     */
+    volatile DuplicateFilter duplicateFilter = null;
+
+    /**
+     * Circuit breaker around MixpanelAPI#track, null when disabled
+     */
+    volatile CircuitBreaker circuitBreaker = null;
+
+    /**
+     * Scheduler of MixpanelAPI flushes, null when Mixpanel flushes on its own timer only
+     */
+    volatile FlushScheduler flushScheduler = null;
+
+    /**
+     * Sampling and rate limiting of events
+     */
+    final EventThrottle throttle;
+
+    MixpanelDispatcher()
+    {
+        this(Clock.SYSTEM);
+    }
+
+    MixpanelDispatcher(@NonNull Clock clock)
+    {
+        throttle = new EventThrottle(clock);
+    }
+
+    /**
+     * Set the MixpanelAPI instance that the dispatcher will use.
+     *
+     * It is recommended to call this method as early as possible, like in your
+     * Application's onCreate.
+     *
+     * Calling this anywhere else, like an Activity's onCreate, might make the dispatcher
+     * miss events.
+     *
+     * Events dispatched before this call are kept in a bounded buffer, and sent to the
+     * instance in order. See {@link #setPreInitBufferLimits(Context, int, int)}.
+     *
+     * @param context Your application context
+     * @param instance MixpanelAPI instance
+     */
+    public static void setMixpanelInstance(@NonNull Context context, @NonNull MixpanelAPI instance)
+    {
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        dispatcher.setInstance(instance);
+    }
+
+    /**
+     * Add a MixpanelAPI instance events are also sent to, like the one of another project.
+     *
+     * Events are parsed once, and the same properties are sent to the main instance and to all
+     * the additional ones. Additional instances receive events once the main instance is set
+     * with {@link #setMixpanelInstance(Context, MixpanelAPI)}, including the events buffered
+     * or journaled until then.
+     * Adding an instance again replaces the event types it accepts.
+     *
+     * @param context Your application context
+     * @param instance MixpanelAPI instance
+     * @param types Types of the events to send to this instance. All events are sent if empty.
+     */
+    public static void addMixpanelInstance(@NonNull Context context,
+                                           @NonNull MixpanelAPI instance,
+                                           @NonNull Batch.EventDispatcher.Type... types)
+    {
+        Set<Batch.EventDispatcher.Type> typeSet = types.length > 0 ? EnumSet.copyOf(Arrays.asList(types)) : null;
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        dispatcher.addTarget(new MixpanelTarget(instance, typeSet));
+    }
+
+    /**
+     * Stop sending events to a MixpanelAPI instance added with
+     * {@link #addMixpanelInstance(Context, MixpanelAPI, Batch.EventDispatcher.Type...)}.
+     *
+     * @param context Your application context
+     * @param instance MixpanelAPI instance
+     */
+    public static void removeMixpanelInstance(@NonNull Context context, @NonNull MixpanelAPI instance)
+    {
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        dispatcher.removeTarget(instance);
+    }
+
+    /**
+     * Set the limits of the buffer keeping the events dispatched before
+     * {@link #setMixpanelInstance(Context, MixpanelAPI)} is called.
+     *
+     * Once a limit is reached, new events are dropped.
+     * By default, the buffer keeps up to 100 events and 64 KiB of event data.
+     * Events already buffered are kept if they fit in the new limits. The others, and all of
+     * them when disabling the buffer, are dropped: they are counted by
+     * {@link DispatcherMetrics#getDroppedCount(Batch.EventDispatcher.Type)}, and removed from
+     * the journal.
+     *
+     * @param context Your application context
+     * @param maxEvents Maximum number of buffered events, 0 to disable the buffer
+     * @param maxBytes Maximum estimated size of the buffered events, in bytes
+     */
+    public static void setPreInitBufferLimits(@NonNull Context context, int maxEvents, int maxBytes)
+    {
+        if (maxEvents < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Buffer limits cannot be negative");
+        }
+        PreInitBuffer newBuffer = null;
+        if (maxEvents > 0 && maxBytes > 0) {
+            newBuffer = new PreInitBuffer(maxEvents, maxBytes);
+        }
+        MixpanelRegistrar.getInstance(context).setPreInitBuffer(newBuffer);
+    }
+
+    /**
+     * Enable the journal of events.
+     *
+     * Events are written to a small memory-mapped file before being handed to Mixpanel, and
+     * removed from it once Mixpanel queued them. If the process gets killed in between, the
+     * events are sent the next time {@link #setMixpanelInstance(Context, MixpanelAPI)} is called.
+     * An event may be sent twice if the process is killed right after Mixpanel queued it.
+     *
+     * When the asynchronous dispatch mode is enabled, events are written to the journal when
+     * the worker thread handles them.
+     *
+     * This opens the journal file, so you should call it from a background thread.
+     *
+     * @param context Your application context
+     * @param maxBytes Size of the journal file, in bytes. 0 disables the journal and deletes its file.
+     */
+    public static void setJournalSize(@NonNull Context context, int maxBytes)
+    {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Journal size cannot be negative");
+        }
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        File journalFile = new File(context.getApplicationContext().getNoBackupFilesDir(), JOURNAL_FILE_NAME);
+        EventJournal journal = null;
+        if (maxBytes > 0) {
+            try {
+                journal = EventJournal.open(journalFile, maxBytes);
+            } catch (IOException | RuntimeException e) {
+                Log.e("BatchMixpanelDispatcher", "Could not open the event journal: " + e.getLocalizedMessage());
+            }
+        }
+        dispatcher.setJournal(journal);
+        if (maxBytes == 0 && journalFile.exists() && !journalFile.delete()) {
+            Log.e("BatchMixpanelDispatcher", "Could not delete the event journal");
+        }
+    }
+
+    /**
+     * Enable the cache of parsed deeplinks.
+     *
+     * Campaigns usually send the same deeplink to all of their recipients, and a single
+     * notification or in-app message triggers several events: the cache keeps the UTM tags
+     * extracted from the most recently used deeplinks so that they are only parsed once.
+     *
+     * Changing the size clears the cache and resets its counters.
+     *
+     * @param context Your application context
+     * @param maxSize Maximum number of deeplinks to keep, 0 to disable the cache
+     */
+    public static void setDeeplinkCacheSize(@NonNull Context context, int maxSize)
+    {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Cache size cannot be negative");
+        }
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        dispatcher.deeplinkCache = maxSize > 0 ? new DeeplinkCache(maxSize) : null;
+    }
+
+    /**
+     * Get the hit, miss and eviction counters of the deeplink cache.
+     *
+     * @param context Your application context
+     * @return A snapshot of the cache counters, or null if the cache is disabled
+     */
+    @Nullable
+    public static DeeplinkCacheStats getDeeplinkCacheStats(@NonNull Context context)
+    {
+        DeeplinkCache cache = MixpanelRegistrar.getInstance(context).deeplinkCache;
+        return cache != null ? cache.getStats() : null;
+    }
+
+    /**
+     * Set how Batch events are mapped to Mixpanel events.
+     *
+     * The mapping controls, for each event type, the Mixpanel event name, the UTM tags read
+     * from the deeplink, the custom payload keys copied to the event, and property renames.
+     * Suppressed types are ignored before their deeplink is parsed.
+     *
+     * @param context Your application context
+     * @param mapping Event mapping, or null to restore the default one
+     */
+    public static void setEventMapping(@NonNull Context context, @Nullable EventMapping mapping)
+    {
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        dispatcher.eventMapping = mapping != null ? mapping : EventMapping.DEFAULT;
+    }
+
+    /**
+     * Extract a key from the deeplink and the custom payload of all events, like utm_term or gclid.
+     *
+     * The key is matched case insensitively in the deeplink's query and fragment, and looked up
+     * lowercased in the custom payload. Like UTM tags, custom payload values take priority over
+     * query values, which take priority over fragment values.
+     * All keys are matched in a single scan of the deeplink, with one lookup per parameter, so
+     * registering more keys doesn't make parsing slower.
+     * UTM tags handled by the {@link EventMapping} can't be registered. Registering a key
+     * again changes its property.
+     *
+     * @param context Your application context
+     * @param key Deeplink and custom payload key
+     * @param propertyName Mixpanel property the value is copied to
+     */
+    public static synchronized void addExtractionKey(@NonNull Context context,
+                                                     @NonNull String key,
+                                                     @NonNull String propertyName)
+    {
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        dispatcher.extractionKeys = dispatcher.extractionKeys.with(key, propertyName);
+    }
+
+    /**
+     * Stop extracting a key registered with {@link #addExtractionKey(Context, String, String)}.
+     *
+     * @param context Your application context
+     * @param key Deeplink and custom payload key
+     */
+    public static synchronized void removeExtractionKey(@NonNull Context context, @NonNull String key)
+    {
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        dispatcher.extractionKeys = dispatcher.extractionKeys.without(key);
+    }
+
+    /**
+     * Limit the size of the property values extracted from deeplinks and custom payloads.
+     *
+     * Values are measured in UTF-8 bytes, both one by one and all the extracted values of an
+     * event together, in precedence order: custom payload values, then query values, then
+     * fragment values. Deeplink values are cut before being decoded. A dropped value lets a
+     * source of lower precedence set the property.
+     * Events with a truncated or dropped value get a "batch_truncated_properties" property,
+     * listing the properties that went over the budget.
+     *
+     * Enabling the budget again resets its counter of saved bytes.
+     *
+     * @param context Your application context
+     * @param maxPropertyBytes Maximum size of a value
+     * @param maxEventBytes Maximum size of all the extracted values of an event
+     * @param policy Whether oversized values are truncated or dropped
+     */
+    public static void enablePayloadBudget(@NonNull Context context,
+                                           int maxPropertyBytes,
+                                           int maxEventBytes,
+                                           @NonNull OversizedValuePolicy policy)
+    {
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        dispatcher.payloadBudget = new PayloadBudget(maxPropertyBytes, maxEventBytes, policy);
+    }
+
+    /**
+     * Stop limiting the size of property values.
+     *
+     * @param context Your application context
+     */
+    public static void disablePayloadBudget(@NonNull Context context)
+    {
+        MixpanelRegistrar.getInstance(context).payloadBudget = null;
+    }
+
+    /**
+     * Get the number of UTF-8 bytes truncated or dropped from property values since the payload
+     * budget was enabled.
+     *
+     * @param context Your application context
+     * @return Saved bytes, 0 if the payload budget is disabled
+     */
+    public static long getPayloadBytesSaved(@NonNull Context context)
+    {
+        PayloadBudget budget = MixpanelRegistrar.getInstance(context).payloadBudget;
+        return budget != null ? budget.getSavedBytes() : 0;
+    }
+
+    /**
+     * Enable the suppression of duplicate events.
+     *
+     * Batch may report the same event more than once, for example when a notification is
+     * refreshed or an activity recreated. Events of the given types with the same tracking id
+     * and deeplink are only sent once per time window. Events without tracking id nor deeplink,
+     * and notification events without tracking id, are never considered duplicates.
+     *
+     * Seen events are remembered in a fixed-size probabilistic structure: an event seen for the
+     * first time may be wrongly dropped, with the given probability, as long as no more than
+     * the expected number of events are dispatched per window. Memory use grows with the
+     * expected number of events, and shrinks as the false positive rate grows: about 2.7 KiB
+     * per 1000 expected events at a 1% rate.
+     *
+     * @param context Your application context
+     * @param windowMillis Minimum time an event is remembered. Events are forgotten after twice this time.
+     * @param expectedEvents Number of events of the given types expected per window
+     * @param falsePositiveRate Probability that a new event is dropped, between 0 and 1 excluded
+     * @param types Types of the events to deduplicate. Defaults to in-app shows. Notification
+     *              events are only deduplicated when their payload has a tracking id, as
+     *              different pushes can share a deeplink.
+     */
+    public static void enableDeduplication(@NonNull Context context,
+                                           long windowMillis,
+                                           int expectedEvents,
+                                           double falsePositiveRate,
+                                           @NonNull Batch.EventDispatcher.Type... types)
+    {
+        Set<Batch.EventDispatcher.Type> typeSet = types.length > 0 ?
+                EnumSet.copyOf(Arrays.asList(types)) :
+                EnumSet.of(Batch.EventDispatcher.Type.MESSAGING_SHOW);
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        dispatcher.duplicateFilter = new DuplicateFilter(typeSet, windowMillis, expectedEvents,
+                falsePositiveRate, Clock.SYSTEM);
+    }
+
+    /**
+     * Disable the suppression of duplicate events.
+     *
+     * @param context Your application context
+     */
+    public static void disableDeduplication(@NonNull Context context)
+    {
+        MixpanelRegistrar.getInstance(context).duplicateFilter = null;
+    }
+
+    /**
+     * Get the number of events dropped as duplicates since deduplication was enabled.
+     *
+     * @param context Your application context
+     * @return Number of dropped duplicates, 0 if deduplication is disabled
+     */
+    public static long getDuplicateEventCount(@NonNull Context context)
+    {
+        DuplicateFilter filter = MixpanelRegistrar.getInstance(context).duplicateFilter;
+        return filter != null ? filter.getDuplicateCount() : 0;
+    }
+
+    /**
+     * Set the fraction of the events of a type that are sent to Mixpanel.
+     *
+     * Events are sampled before their deeplink is parsed. Sampled events get a
+     * "batch_sample_rate" property holding the sample rate, so that their counts can be re-weighted.
+     *
+     * @param context Your application context
+     * @param type Event type
+     * @param sampleRate Fraction of the events to send, between 0 and 1. 1 sends all events.
+     */
+    public static void setSampleRate(@NonNull Context context,
+                                     @NonNull Batch.EventDispatcher.Type type,
+                                     double sampleRate)
+    {
+        MixpanelRegistrar.getInstance(context).throttle.setSampleRate(type, sampleRate);
+    }
+
+    /**
+     * Limit the rate at which the events of a type are sent to Mixpanel, with a token bucket.
+     *
+     * Up to burst events can be sent at once, after which events are dropped until the bucket
+     * refills at the given rate. Events are rate limited before their deeplink is parsed.
+     *
+     * @param context Your application context
+     * @param type Event type
+     * @param burst Maximum number of events sent at once, 0 to remove the limit
+     * @param eventsPerSecond Sustained number of events sent per second
+     */
+    public static void setRateLimit(@NonNull Context context,
+                                    @NonNull Batch.EventDispatcher.Type type,
+                                    int burst,
+                                    double eventsPerSecond)
+    {
+        MixpanelRegistrar.getInstance(context).throttle.setRateLimit(type, burst, eventsPerSecond);
+    }
+
+    /**
+     * Get the number of events rejected by sampling and rate limiting.
+     *
+     * @param context Your application context
+     * @return A snapshot of the rejected events counters
+     */
+    @NonNull
+    public static ThrottleStats getThrottleStats(@NonNull Context context)
+    {
+        return MixpanelRegistrar.getInstance(context).throttle.getStats();
+    }
+
+    /**
+     * Enable or disable the dispatcher metrics.
+     *
+     * The dispatcher counts the events it receives, dispatches to Mixpanel, drops because no
+     * MixpanelAPI instance was set, and whose deeplink couldn't be parsed. It also measures the
+     * time spent parsing deeplinks and in MixpanelAPI#track.
+     * Metrics are disabled by default, and cost nothing when disabled.
+     *
+     * Enabling metrics again resets them.
+     *
+     * @param context Your application context
+     * @param enabled Whether metrics should be recorded
+     */
+    public static void setMetricsEnabled(@NonNull Context context, boolean enabled)
+    {
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        dispatcher.metrics = enabled ? new AtomicMetricsRecorder() : MetricsRecorder.NOOP;
+    }
+
+    /**
+     * Get the dispatcher metrics, to forward them to your own telemetry.
+     *
+     * @param context Your application context
+     * @return A snapshot of the metrics, or null if they are disabled
+     */
+    @Nullable
+    public static DispatcherMetrics getMetrics(@NonNull Context context)
+    {
+        MetricsRecorder recorder = MixpanelRegistrar.getInstance(context).metrics;
+        if (recorder instanceof AtomicMetricsRecorder) {
+            return ((AtomicMetricsRecorder) recorder).getSnapshot();
+        }
+        return null;
+    }
+
+    /**
+     * Enable the asynchronous dispatch mode.
+     *
+     * Events received from the Batch SDK are queued and sent to Mixpanel from a dedicated
+     * worker thread, rather than on the thread that dispatched them, which is often the main thread.
+     *
+     * Queued events are sent by decreasing {@link EventPriority}, set by the {@link EventMapping}.
+     * When the queue is full, the oldest queued event of a lower priority than the new one is
+     * dropped first, so that opens and clicks are kept over displays. See
+     * {@link #getDroppedQueuedEventCount(Context, Batch.EventDispatcher.Type)}.
+     *
+     * @param context Your application context
+     * @param capacity Maximum number of events waiting to be sent to Mixpanel
+     * @param overflowPolicy What to do with new events when the queue is full of events of the
+     *                       same or a higher priority
+     * @param blockTimeoutMillis How long to wait for room in the queue when using {@link OverflowPolicy#BLOCK}
+     */
+    public static synchronized void enableAsyncDispatch(@NonNull Context context,
+                                                        int capacity,
+                                                        @NonNull OverflowPolicy overflowPolicy,
+                                                        long blockTimeoutMillis)
+    {
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        AsyncEventQueue previousQueue = dispatcher.asyncQueue;
+        // The new queue only starts sending once the previous one sent its events
+        dispatcher.asyncQueue = new AsyncEventQueue(dispatcher, capacity, overflowPolicy, blockTimeoutMillis,
+                previousQueue);
+        if (previousQueue != null) {
+            shutdownQueue(previousQueue, blockTimeoutMillis);
+        }
+    }
+
+    /**
+     * Get the number of events of a type dropped because the asynchronous dispatch queue was full.
+     *
+     * @param context Your application context
+     * @param type Event type
+     * @return Number of dropped events since asynchronous dispatch was enabled, 0 if it is disabled
+     */
+    public static long getDroppedQueuedEventCount(@NonNull Context context, @NonNull Batch.EventDispatcher.Type type)
+    {
+        AsyncEventQueue queue = MixpanelRegistrar.getInstance(context).asyncQueue;
+        return queue != null ? queue.getDroppedCount(type) : 0;
+    }
+
+    /**
+     * Dispatch events in bulk, for example to replay events kept by the app.
+     *
+     * Deeplinks are parsed and properties built in parallel on a pool with one thread per core,
+     * then events are sent to Mixpanel in the order of the list, from the calling thread: call
+     * this from a background thread. On single core devices and for small lists, properties are
+     * built on the calling thread.
+     * Payloads may be read from several threads, so they must not be modified during this call.
+     * Events are sent right away even if the asynchronous dispatch mode is enabled.
+     *
+     * @param context Your application context
+     * @param events Events to dispatch, in order
+     */
+    public static void dispatchEvents(@NonNull Context context, @NonNull List<BulkEvent> events)
+    {
+        MixpanelRegistrar.getInstance(context).dispatchEvents(events, BulkPropertiesTask.sharedPool());
+    }
+
+    /**
+     * Wait until the events queued by the asynchronous dispatch mode have been sent to Mixpanel,
+     * then send the display events that are being aggregated.
+     *
+     * @param context Your application context
+     * @param timeoutMillis Maximum time to wait for the asynchronous dispatch queue
+     * @return true if all events queued before this call were handled before the timeout expired
      */
-    private static final String CAMPAIGN = "utm_campaign";
-    private static final String SOURCE = "utm_source";
-    private static final String MEDIUM = "utm_medium";
-    private static final String CONTENT = "utm_content";
-    private static final String INTEGRATION_ID = "$source";
+    public static boolean flush(@NonNull Context context, long timeoutMillis)
+    {
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        boolean flushed = true;
+        AsyncEventQueue queue = dispatcher.asyncQueue;
+        if (queue != null) {
+            try {
+                flushed = queue.flush(timeoutMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                flushed = false;
+            }
+        }
+        EventAggregator currentAggregator = dispatcher.aggregator;
+        if (currentAggregator != null) {
+            currentAggregator.flushAll();
+        }
+        return flushed;
+    }
 
     /**
-     * UTM tag keys
+     * Enable the aggregation of notification display events.
+     *
+     * Display events sharing the same UTM tags are combined into a single event, with a
+     * "batch_event_count" property holding the number of displays. Each aggregated event is sent
+     * once its time window expired, or once it reached the maximum count.
+     * Other events, like notification opens, are still sent right away.
+     *
+     * Aggregated events are only written to the journal once they are sent.
+     *
+     * @param context Your application context
+     * @param windowMillis How long displays are aggregated before being sent
+     * @param maxCount Number of displays after which the aggregated event is sent right away
+     * @param includeDismiss Whether notification dismiss events should be aggregated too
      */
-    private static final String UTM_CAMPAIGN = "utm_campaign";
-    private static final String UTM_SOURCE = "utm_source";
-    private static final String UTM_MEDIUM = "utm_medium";
-    private static final String UTM_CONTENT = "utm_content";
+    public static synchronized void enableDisplayAggregation(@NonNull Context context,
+                                                             long windowMillis,
+                                                             int maxCount,
+                                                             boolean includeDismiss)
+    {
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "BatchMixpanelAggregator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        EventAggregator previousAggregator = dispatcher.aggregator;
+        dispatcher.aggregator = new EventAggregator(dispatcher, windowMillis, maxCount, includeDismiss,
+                Clock.SYSTEM, scheduler);
+        if (previousAggregator != null) {
+            previousAggregator.shutdown();
+        }
+    }
 
     /**
-     * Key used to dispatch the Batch tracking Id on Mixpanel
+     * Disable the aggregation of notification display events, sending the pending aggregated events.
+     *
+     * @param context Your application context
      */
-    private static final String BATCH_TRACKING_ID = "batch_tracking_id";
+    public static synchronized void disableDisplayAggregation(@NonNull Context context)
+    {
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        EventAggregator previousAggregator = dispatcher.aggregator;
+        dispatcher.aggregator = null;
+        if (previousAggregator != null) {
+            previousAggregator.shutdown();
+        }
+    }
 
     /**
-     * Key used to dispatch the webview click analytics ID
+     * Enable adaptive flushes of the MixpanelAPI instances.
+     *
+     * Mixpanel sends its queued events on its own timer, so an event may wait up to a minute
+     * before being sent, and be lost if the app is killed in the meantime. Once enabled,
+     * {@link MixpanelAPI#flush()} is called shortly after high priority events, like notification
+     * opens and in-app clicks, and after a longer delay for the others, so that they are merged
+     * into rare flushes. Priorities can be changed with {@link EventMapping.Builder#setPriority}.
+     *
+     * @param context Your application context
+     * @param highPriorityDelayMillis Delay before flushing after a high priority event
+     * @param lowPriorityDelayMillis Delay before flushing after another event
+     * @param minIntervalMillis Minimum time between two flushes, limiting radio wakeups
      */
-    private static final String BATCH_WEBVIEW_ANALYTICS_ID = "batch_webview_analytics_id";
+    public static synchronized void enableAdaptiveFlush(@NonNull Context context,
+                                                        long highPriorityDelayMillis,
+                                                        long lowPriorityDelayMillis,
+                                                        long minIntervalMillis)
+    {
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "BatchMixpanelFlush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        FlushScheduler previousScheduler = dispatcher.flushScheduler;
+        dispatcher.flushScheduler = new FlushScheduler(dispatcher, highPriorityDelayMillis,
+                lowPriorityDelayMillis, minIntervalMillis, Clock.SYSTEM, scheduler);
+        if (previousScheduler != null) {
+            previousScheduler.shutdown();
+        }
+    }
 
     /**
-     * Event name used when logging on Mixpanel
+     * Disable adaptive flushes, flushing the MixpanelAPI instances if a flush was pending.
+     *
+     * @param context Your application context
      */
-    private static final String NOTIFICATION_DISPLAY_NAME = "batch_notification_display";
-    private static final String NOTIFICATION_OPEN_NAME = "batch_notification_open";
-    private static final String NOTIFICATION_DISMISS_NAME = "batch_notification_dismiss";
-    private static final String MESSAGING_SHOW_NAME = "batch_in_app_show";
-    private static final String MESSAGING_CLOSE_NAME = "batch_in_app_close";
-    private static final String MESSAGING_AUTO_CLOSE_NAME = "batch_in_app_auto_close";
-    private static final String MESSAGING_CLOSE_ERROR_NAME = "batch_in_app_close_error";
-    private static final String MESSAGING_CLICK_NAME = "batch_in_app_click";
-    private static final String MESSAGING_WEBVIEW_CLICK_NAME = "batch_in_app_webview_click";
-    private static final String UNKNOWN_EVENT_NAME = "batch_unknown";
+    public static synchronized void disableAdaptiveFlush(@NonNull Context context)
+    {
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        FlushScheduler previousScheduler = dispatcher.flushScheduler;
+        dispatcher.flushScheduler = null;
+        if (previousScheduler != null) {
+            previousScheduler.shutdown();
+        }
+    }
 
-    MixpanelAPI mixpanelInstance = null;
+    /**
+     * Enable the circuit breaker around MixpanelAPI#track.
+     *
+     * A locked or full Mixpanel store can make tracking an event throw or block, on the thread
+     * Batch dispatched the event from. Once enabled, calls that throw are caught, and calls that
+     * throw or take longer than the slow call threshold are counted as failures. After enough
+     * consecutive failures the breaker opens: events are held in a small buffer instead of
+     * being sent. Once the open duration elapsed, the next event is sent to check whether
+     * Mixpanel recovered. If it did, the held events are sent, otherwise the breaker opens again.
+     *
+     * Events are dropped when the buffer is full. If the journal is enabled, dropped events and
+     * events whose call threw are sent again on the next launch.
+     *
+     * While the breaker is enabled, exceptions thrown by MixpanelAPI#track are logged and don't
+     * reach the thread the event was dispatched from. Without it, they are thrown to that thread.
+     * Errors are counted as failures, then thrown either way.
+     *
+     * @param context Your application context
+     * @param failureThreshold Consecutive failed or slow calls opening the breaker
+     * @param slowCallMillis Duration over which a call is slow
+     * @param openMillis Time the breaker stays open before sending an event again
+     * @param maxHeldEvents Maximum number of events held while the breaker is open, up to 64 KiB of event data
+     */
+    public static synchronized void enableCircuitBreaker(@NonNull Context context,
+                                                         int failureThreshold,
+                                                         long slowCallMillis,
+                                                         long openMillis,
+                                                         int maxHeldEvents)
+    {
+        MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
+        dispatcher.setCircuitBreaker(new CircuitBreaker(failureThreshold, slowCallMillis, openMillis,
+                maxHeldEvents, Clock.SYSTEM));
+    }
 
-    MixpanelDispatcher()
+    /**
+     * Disable the circuit breaker, sending the held events.
+     *
+     * @param context Your application context
+     */
+    public static synchronized void disableCircuitBreaker(@NonNull Context context)
     {
+        MixpanelRegistrar.getInstance(context).setCircuitBreaker(null);
     }
 
     /**
-     * Set the MixpanelAPI instance that the dispatcher will use.
+     * Get the state and the counters of the circuit breaker.
      *
-     * It is recommended to call this method as early as possible, like in your
-     * Application's onCreate.
+     * @param context Your application context
+     * @return A snapshot of the breaker state, or null if it is disabled
+     */
+    @Nullable
+    public static CircuitBreakerStats getCircuitBreakerStats(@NonNull Context context)
+    {
+        CircuitBreaker breaker = MixpanelRegistrar.getInstance(context).circuitBreaker;
+        return breaker != null ? breaker.getStats() : null;
+    }
+
+    /**
+     * Disable the asynchronous dispatch mode, sending the queued events to Mixpanel and
+     * stopping the worker thread.
      *
-     * Calling this anywhere else, like an Activity's onCreate, might make the dispatcher
-     * miss events.
+     * Events are dispatched synchronously after this call.
      *
      * @param context Your application context
-     * @param instance MixpanelAPI instance
+     * @param timeoutMillis Maximum time to wait for the worker thread to finish. Events that
+     *                      are still queued when it expires are sent from the calling thread.
      */
-    public static void setMixpanelInstance(@NonNull Context context, @NonNull MixpanelAPI instance)
+    public static synchronized void shutdown(@NonNull Context context, long timeoutMillis)
     {
         MixpanelDispatcher dispatcher = MixpanelRegistrar.getInstance(context);
-        dispatcher.mixpanelInstance = instance;
+        AsyncEventQueue queue = dispatcher.asyncQueue;
+        if (queue != null) {
+            dispatcher.asyncQueue = null;
+            shutdownQueue(queue, timeoutMillis);
+        }
+    }
+
+    private static void shutdownQueue(AsyncEventQueue queue, long timeoutMillis)
+    {
+        try {
+            queue.shutdown(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
@@ -95,169 +824,617 @@ public class MixpanelDispatcher implements BatchEventDispatcher
     public void dispatchEvent(@NonNull Batch.EventDispatcher.Type type,
                               @NonNull Batch.EventDispatcher.Payload payload)
     {
-        Map<String, Object> mixpanelParams = null;
-        if (type.isNotificationEvent()) {
-            mixpanelParams = getNotificationParams(payload);
-        } else if (type.isMessagingEvent()) {
-            mixpanelParams = getInAppParams(payload);
+        metrics.onEventReceived(type);
+        EventPlan plan = eventMapping.getPlan(type);
+        if (plan == null) {
+            return;
+        }
+        DuplicateFilter filter = duplicateFilter;
+        DuplicateFilter.Key key = null;
+        if (filter != null && filter.isFiltered(type)) {
+            key = new DuplicateFilter.Key(payload);
+            if (filter.isDuplicate(type, key.trackingId, key.deeplink)) {
+                return;
+            }
+        }
+        double sampleRate = throttle.tryAcquire(type);
+        if (Double.isNaN(sampleRate)) {
+            return;
+        }
+        AsyncEventQueue queue = asyncQueue;
+        if (queue != null && queue.submit(type, plan.priority, payload, key, sampleRate)) {
+            return;
+        }
+        dispatchEventNow(type, payload, key, sampleRate);
+    }
+
+    /**
+     * Build the Mixpanel properties of an event and send it, on the calling thread
+     *
+     * @param key Values the event was deduplicated on, null if it wasn't
+     * @param sampleRate Sample rate the event was kept at
+     */
+    void dispatchEventNow(@NonNull Batch.EventDispatcher.Type type,
+                          @NonNull Batch.EventDispatcher.Payload payload,
+                          @Nullable DuplicateFilter.Key key,
+                          double sampleRate)
+    {
+        EventPlan plan = eventMapping.getPlan(type);
+        if (plan == null || !hasSink(type)) {
+            return;
+        }
+        dispatchProperties(type, plan, getProperties(plan, type, payload, key), sampleRate);
+    }
+
+    /**
+     * Dispatch events in bulk, building their properties on the given pool, then sending them in
+     * order from the calling thread
+     * Events go through the same mapping, deduplication and throttling as
+     * {@link #dispatchEvent}, in order, but never through the asynchronous dispatch queue.
+     * A single threaded pool would only add forking to the sequential build, so properties are
+     * then built on the calling thread.
+     *
+     * @param pool Pool building the properties, null to build them on the calling thread
+     */
+    void dispatchEvents(@NonNull List<BulkEvent> events, @Nullable ForkJoinPool pool)
+    {
+        int count = events.size();
+        EventPlan[] plans = new EventPlan[count];
+        double[] sampleRates = new double[count];
+        DuplicateFilter filter = duplicateFilter;
+        DuplicateFilter.Key[] keys = filter != null ? new DuplicateFilter.Key[count] : null;
+        for (int i = 0; i < count; i++) {
+            BulkEvent event = events.get(i);
+            metrics.onEventReceived(event.type);
+            EventPlan plan = eventMapping.getPlan(event.type);
+            if (plan == null) {
+                continue;
+            }
+            if (filter != null && filter.isFiltered(event.type)) {
+                DuplicateFilter.Key key = new DuplicateFilter.Key(event.payload);
+                if (filter.isDuplicate(event.type, key.trackingId, key.deeplink)) {
+                    continue;
+                }
+                keys[i] = key;
+            }
+            double sampleRate = throttle.tryAcquire(event.type);
+            if (Double.isNaN(sampleRate) || !hasSink(event.type)) {
+                continue;
+            }
+            plans[i] = plan;
+            sampleRates[i] = sampleRate;
         }
-        mixpanelParams.put(INTEGRATION_ID, "batch");
 
-        if (mixpanelInstance != null) {
-            mixpanelInstance.trackMap(getMixpanelEventName(type), mixpanelParams);
+        @SuppressWarnings("unchecked")
+        Map<String, Object>[] properties = new Map[count];
+        BulkPropertiesTask task = new BulkPropertiesTask(this, events, plans, keys, properties, 0, count);
+        if (pool != null && pool.getParallelism() > 1 && count > BulkPropertiesTask.CHUNK_SIZE) {
+            pool.invoke(task);
         } else {
-            Log.e("BatchMixpanelDispatcher", "Tried to send a mixpanel event, but no" +
-                    "instance was set. Did you call MixpanelDispatcher.setMixpanelInstance()" +
-                    "in your Application's onCreate?");
+            task.compute();
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (plans[i] != null) {
+                dispatchProperties(events.get(i).type, plans[i], properties[i], sampleRates[i]);
+            }
+        }
+    }
+
+    /**
+     * Send the properties built for an event, or add them to their aggregate
+     *
+     * @param sampleRate Sample rate the event was kept at
+     */
+    private void dispatchProperties(@NonNull Batch.EventDispatcher.Type type,
+                                    @NonNull EventPlan plan,
+                                    @NonNull Map<String, Object> mixpanelParams,
+                                    double sampleRate)
+    {
+        if (sampleRate < 1) {
+            mixpanelParams.put(EventThrottle.SAMPLE_RATE_KEY, sampleRate);
+        }
+
+        String eventName = plan.eventName;
+        EventAggregator currentAggregator = aggregator;
+        if (currentAggregator != null && currentAggregator.add(type, eventName, mixpanelParams)) {
+            return;
         }
+        send(type, eventName, mixpanelParams);
     }
 
-    private static Map<String, Object> getInAppParams(Batch.EventDispatcher.Payload payload)
+    /**
+     * Send an event to Mixpanel, journaling it first, or buffer it if no instance is set yet
+     */
+    void send(@NonNull Batch.EventDispatcher.Type type,
+              @NonNull String eventName,
+              @NonNull Map<String, Object> mixpanelParams)
     {
-        Map<String, Object> mixpanelParams = new HashMap<>();
-        mixpanelParams.put(CAMPAIGN, payload.getTrackingId());
-        mixpanelParams.put(MEDIUM, "in-app");
-        mixpanelParams.put(BATCH_TRACKING_ID, payload.getTrackingId());
+        EventJournal currentJournal = journal;
+        int journalId = currentJournal != null ? currentJournal.append(type, mixpanelParams) : EventJournal.NO_RECORD;
 
-        String webViewAnalyticsId = payload.getWebViewAnalyticsID();
-        if (webViewAnalyticsId != null) {
-            mixpanelParams.put(BATCH_WEBVIEW_ANALYTICS_ID, webViewAnalyticsId);
+        MixpanelAPI instance = mixpanelInstance;
+        if (instance == null) {
+            instance = bufferEvent(type, eventName, mixpanelParams, journalId);
+        }
+        if (instance != null) {
+            track(instance, type, eventName, mixpanelParams, journalId);
         }
+    }
 
-        String deeplink = payload.getDeeplink();
-        if (deeplink != null) {
+    /**
+     * Set the MixpanelAPI instance, and send it the events left in the journal by a previous
+     * process, then the ones buffered until now
+     * They are sent under {@link #preInitLock}, before the instance is published: events
+     * dispatched meanwhile wait for the lock in {@link #bufferEvent}, and are sent after them.
+     */
+    void setInstance(@NonNull MixpanelAPI instance)
+    {
+        synchronized (preInitLock) {
             try {
-                deeplink = deeplink.trim();
-                Uri uri = Uri.parse(deeplink);
-                if (uri.isHierarchical()) {
-                    String fragment = uri.getFragment();
-                    if (fragment != null && !fragment.isEmpty()) {
-                        Map<String, String> fragments = getFragmentMap(fragment);
-                        // Copy from fragment part of the deeplink
-                        copyValueFromMap(fragments, UTM_CONTENT, mixpanelParams, CONTENT);
+                if (journal != null) {
+                    replay(instance, journal.takeRecoveredRecords());
+                }
+                if (preInitBuffer != null) {
+                    for (PreInitBuffer.PendingEvent event : preInitBuffer.drain()) {
+                        track(instance, event.type, event.eventName, event.params, event.journalId);
                     }
-                    // Copy from query parameters of the deeplink
-                    copyValueFromQuery(uri, UTM_CONTENT, mixpanelParams, CONTENT);
                 }
-            } catch (Exception e) {
-                Log.e("BatchMixpanelDispatcher", "Something went wrong parsing deeplink: " + e.getLocalizedMessage());
+            } finally {
+                mixpanelInstance = instance;
             }
         }
-        // Load from custom payload
-        copyValueFromPayload(payload, UTM_CAMPAIGN, mixpanelParams, CAMPAIGN);
-        copyValueFromPayload(payload, UTM_MEDIUM, mixpanelParams, MEDIUM);
-        copyValueFromPayload(payload, UTM_SOURCE, mixpanelParams, SOURCE);
-        return mixpanelParams;
     }
 
-    private static Map<String, Object> getNotificationParams(Batch.EventDispatcher.Payload payload)
+    /**
+     * Replace the pre-init buffer, moving the buffered events to the new one
+     * Events that don't fit in it, or all of them if it is null, are dropped and removed from
+     * the journal.
+     */
+    void setPreInitBuffer(@Nullable PreInitBuffer newBuffer)
+    {
+        int droppedCount = 0;
+        synchronized (preInitLock) {
+            if (preInitBuffer != null) {
+                EventJournal currentJournal = journal;
+                for (PreInitBuffer.PendingEvent event : preInitBuffer.drain()) {
+                    if (newBuffer == null || !newBuffer.add(event.type, event.eventName, event.params, event.journalId)) {
+                        metrics.onEventDropped(event.type);
+                        if (currentJournal != null) {
+                            // Dropped on purpose, so it isn't sent on the next launch either
+                            currentJournal.markDelivered(event.journalId);
+                        }
+                        droppedCount++;
+                    }
+                }
+            }
+            preInitBuffer = newBuffer;
+        }
+        if (droppedCount > 0) {
+            Log.e("BatchMixpanelDispatcher", "Dropped " + droppedCount + " buffered events that " +
+                    "didn't fit in the new pre-init buffer limits");
+        }
+    }
+
+    /**
+     * Replace the circuit breaker, sending the events the previous one held through the new one
+     * With a breaker, RuntimeExceptions thrown while tracking are caught and logged; with none,
+     * they are thrown to the caller. Errors are always thrown, once the breaker recorded the
+     * call as failed.
+     */
+    void setCircuitBreaker(@Nullable CircuitBreaker breaker)
+    {
+        CircuitBreaker previousBreaker = circuitBreaker;
+        circuitBreaker = breaker;
+        MixpanelAPI instance = mixpanelInstance;
+        if (previousBreaker != null && instance != null) {
+            for (PreInitBuffer.PendingEvent event : previousBreaker.drain()) {
+                track(instance, event.type, event.eventName, event.params, event.journalId);
+            }
+        }
+    }
+
+    void addTarget(@NonNull MixpanelTarget target)
+    {
+        synchronized (preInitLock) {
+            MixpanelTarget[] targets = withoutTarget(additionalTargets, target.instance);
+            MixpanelTarget[] newTargets = Arrays.copyOf(targets, targets.length + 1);
+            newTargets[targets.length] = target;
+            additionalTargets = newTargets;
+        }
+    }
+
+    void removeTarget(@NonNull MixpanelAPI instance)
+    {
+        synchronized (preInitLock) {
+            additionalTargets = withoutTarget(additionalTargets, instance);
+        }
+    }
+
+    private static MixpanelTarget[] withoutTarget(MixpanelTarget[] targets, MixpanelAPI instance)
     {
-        Map<String, Object> mixpanelParams = new HashMap();
-        mixpanelParams.put(MEDIUM, "push");
+        for (int i = 0; i < targets.length; i++) {
+            if (targets[i].instance == instance) {
+                MixpanelTarget[] newTargets = new MixpanelTarget[targets.length - 1];
+                System.arraycopy(targets, 0, newTargets, 0, i);
+                System.arraycopy(targets, i + 1, newTargets, i, targets.length - i - 1);
+                return newTargets;
+            }
+        }
+        return targets;
+    }
 
-        String deeplink = payload.getDeeplink();
-        if (deeplink != null) {
+    /**
+     * Set the event journal, sending its recovered events if a MixpanelAPI instance is already set
+     */
+    void setJournal(@Nullable EventJournal newJournal)
+    {
+        EventJournal previousJournal;
+        MixpanelAPI instance;
+        List<EventJournal.Record> recoveredEvents = null;
+        synchronized (preInitLock) {
+            previousJournal = journal;
+            journal = newJournal;
+            instance = mixpanelInstance;
+            if (instance != null && newJournal != null) {
+                recoveredEvents = newJournal.takeRecoveredRecords();
+            }
+        }
+        if (previousJournal != null) {
             try {
-                deeplink = deeplink.trim();
-                Uri uri = Uri.parse(deeplink);
-                if(uri.isHierarchical()) {
-                    String fragment = uri.getFragment();
-                    if (fragment != null && !fragment.isEmpty()) {
-                        Map<String, String> fragments = getFragmentMap(fragment);
-                        // Copy from fragment part of the deeplink
-                        copyValueFromMap(fragments, UTM_CAMPAIGN, mixpanelParams, CAMPAIGN);
-                        copyValueFromMap(fragments, UTM_MEDIUM, mixpanelParams, MEDIUM);
-                        copyValueFromMap(fragments, UTM_SOURCE, mixpanelParams, SOURCE);
-                        copyValueFromMap(fragments, UTM_CONTENT, mixpanelParams, CONTENT);
-                    }
+                previousJournal.close();
+            } catch (IOException e) {
+                Log.e("BatchMixpanelDispatcher", "Could not close the event journal: " + e.getLocalizedMessage());
+            }
+        }
+        if (recoveredEvents != null) {
+            replay(instance, recoveredEvents);
+        }
+    }
 
-                    // Copy from query parameters of the deeplink
-                    copyValueFromQuery(uri, UTM_CAMPAIGN, mixpanelParams, CAMPAIGN);
-                    copyValueFromQuery(uri, UTM_MEDIUM, mixpanelParams, MEDIUM);
-                    copyValueFromQuery(uri, UTM_SOURCE, mixpanelParams, SOURCE);
-                    copyValueFromQuery(uri, UTM_CONTENT, mixpanelParams, CONTENT);
+    private void replay(MixpanelAPI instance, List<EventJournal.Record> records)
+    {
+        EventMapping mapping = eventMapping;
+        for (EventJournal.Record record : records) {
+            EventPlan plan = mapping.getPlan(record.type);
+            if (plan != null) {
+                track(instance, record.type, plan.eventName, record.params, record.id);
+            } else {
+                // The type is now suppressed, it won't ever be sent
+                EventJournal currentJournal = journal;
+                if (currentJournal != null) {
+                    currentJournal.markDelivered(record.id);
                 }
-            } catch (Exception e) {
-                Log.e("BatchMixpanelDispatcher", "Something went wrong parsing deeplink: " + e.getLocalizedMessage());
             }
         }
-        // Load from custom payload
-        copyValueFromPayload(payload, UTM_CAMPAIGN, mixpanelParams, CAMPAIGN);
-        copyValueFromPayload(payload, UTM_MEDIUM, mixpanelParams, MEDIUM);
-        copyValueFromPayload(payload, UTM_SOURCE, mixpanelParams, SOURCE);
-        return mixpanelParams;
     }
 
-    private static Map<String, String> getFragmentMap(String fragment)
+    /**
+     * Send an event through the circuit breaker, if enabled
+     * An event is held if the breaker is open. When a call closes it, the held events are sent.
+     * Calls that throw a RuntimeException are caught, and their event is left in the journal to be
+     * sent again on the next launch. Errors are thrown once the call has been recorded, so that a
+     * probe that threw doesn't leave the breaker waiting for it.
+     */
+    private void track(MixpanelAPI instance,
+                       Batch.EventDispatcher.Type type,
+                       String eventName,
+                       Map<String, Object> mixpanelParams,
+                       int journalId)
+    {
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker == null) {
+            trackNow(instance, type, eventName, mixpanelParams, journalId);
+            return;
+        }
+        if (!breaker.tryAcquire(type, eventName, mixpanelParams, journalId)) {
+            return;
+        }
+        long start = breaker.startCall();
+        boolean failed = true;
+        List<PreInitBuffer.PendingEvent> releasedEvents;
+        try {
+            trackNow(instance, type, eventName, mixpanelParams, journalId);
+            failed = false;
+        } catch (RuntimeException e) {
+            Log.e("BatchMixpanelDispatcher", "Mixpanel failed to track an event: " + e.getLocalizedMessage());
+        } finally {
+            releasedEvents = breaker.onCallCompleted(start, failed);
+        }
+        if (releasedEvents != null) {
+            for (PreInitBuffer.PendingEvent event : releasedEvents) {
+                track(instance, event.type, event.eventName, event.params, event.journalId);
+            }
+        }
+    }
+
+    /**
+     * Send an event to the main MixpanelAPI instance and to the additional ones accepting it,
+     * and remove it from the journal
+     * The properties are frozen, and converted once to the JSONObject shared by all instances,
+     * rather than letting each instance's trackMap convert them again.
+     */
+    private void trackNow(MixpanelAPI instance,
+                          Batch.EventDispatcher.Type type,
+                          String eventName,
+                          Map<String, Object> mixpanelParams,
+                          int journalId)
     {
-        String[] params = fragment.split("&");
-        Map<String, String> map = new HashMap<>();
-        for (String param : params) {
-            String[] parts = param.split("=");
-            if (parts.length >= 2) {
-                map.put(parts[0].toLowerCase(), parts[1]);
+        Map<String, Object> sharedParams = PropertyMap.freeze(mixpanelParams);
+        JSONObject properties;
+        try {
+            properties = PropertyMap.toJSONObject(sharedParams);
+        } catch (JSONException e) {
+            // Let Mixpanel convert the properties as it always did
+            properties = null;
+        }
+        MetricsRecorder recorder = metrics;
+        long start = recorder.startTimer();
+        track(instance, eventName, properties, sharedParams);
+        recorder.recordTrackTime(type, start);
+        for (MixpanelTarget target : additionalTargets) {
+            if (target.accepts(type)) {
+                start = recorder.startTimer();
+                track(target.instance, eventName, properties, sharedParams);
+                recorder.recordTrackTime(type, start);
             }
         }
-        return map;
+        recorder.onEventDispatched(type);
+        EventJournal currentJournal = journal;
+        if (currentJournal != null && journalId != EventJournal.NO_RECORD) {
+            currentJournal.markDelivered(journalId);
+        }
+        FlushScheduler currentFlushScheduler = flushScheduler;
+        if (currentFlushScheduler != null) {
+            EventPlan plan = eventMapping.getPlan(type);
+            currentFlushScheduler.onEventTracked(plan != null ? plan.priority : EventMapping.getDefaultPriority(type));
+        }
     }
 
-    private static void copyValueFromMap(Map<String, String> mapFrom,
-                                         String keyFrom,
-                                         Map<String, Object> mapOut,
-                                         String keyOut)
+    private static void track(MixpanelAPI instance,
+                              String eventName,
+                              @Nullable JSONObject properties,
+                              Map<String, Object> mixpanelParams)
     {
-        String value = mapFrom.get(keyFrom);
-        if (value != null) {
-            mapOut.put(keyOut, value);
+        if (properties != null) {
+            instance.track(eventName, properties);
+        } else {
+            instance.trackMap(eventName, mixpanelParams);
+        }
+    }
+
+    /**
+     * Ask the MixpanelAPI instances to send their queued events now
+     */
+    void flushInstances()
+    {
+        MixpanelAPI instance = mixpanelInstance;
+        if (instance != null) {
+            instance.flush();
+        }
+        for (MixpanelTarget target : additionalTargets) {
+            target.instance.flush();
         }
     }
 
-    private static void copyValueFromQuery(Uri uri, String keyFrom, Map<String, Object> mapOut, String keyOut)
+    /**
+     * Check whether an event would be sent, journaled, aggregated or buffered, before building it
+     * Events that would be dropped because no instance is set and the buffer is full don't cost
+     * anything more than this check.
+     */
+    private boolean hasSink(Batch.EventDispatcher.Type type)
     {
-        Set<String> keys = uri.getQueryParameterNames();
-        for (String key : keys) {
-            if (keyFrom.equalsIgnoreCase(key)) {
-                String value = uri.getQueryParameter(key);
-                if (value != null) {
-                    mapOut.put(keyOut, value);
-                    return;
+        if (mixpanelInstance != null || journal != null || aggregator != null) {
+            return true;
+        }
+        synchronized (preInitLock) {
+            if (mixpanelInstance != null || (preInitBuffer != null && preInitBuffer.hasRoom())) {
+                return true;
+            }
+            onEventNotBuffered(type);
+            return false;
+        }
+    }
+
+    private void onEventNotBuffered(Batch.EventDispatcher.Type type)
+    {
+        metrics.onEventDropped(type);
+        Log.e("BatchMixpanelDispatcher", "Tried to send a mixpanel event, but no " +
+                "instance was set and the event could not be buffered. Did you call " +
+                "MixpanelDispatcher.setMixpanelInstance() in your Application's onCreate?");
+    }
+
+    /**
+     * Keep an event until a MixpanelAPI instance is set
+     *
+     * @return The instance to send the event to, if it was set in the meantime
+     */
+    @Nullable
+    private MixpanelAPI bufferEvent(Batch.EventDispatcher.Type type,
+                                    String eventName,
+                                    Map<String, Object> mixpanelParams,
+                                    int journalId)
+    {
+        synchronized (preInitLock) {
+            MixpanelAPI instance = mixpanelInstance;
+            if (instance != null) {
+                return instance;
+            }
+            if (preInitBuffer == null || !preInitBuffer.add(type, eventName, mixpanelParams, journalId)) {
+                onEventNotBuffered(type);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Build the Mixpanel properties of an event, following its plan
+     * Properties are set from the source taking precedence to the one with the lowest, each only
+     * if it isn't set yet: the deeplink isn't parsed if the custom payload sets all the tags it
+     * would give, and each payload accessor is called at most once.
+     * Extracted values are fit in the payload budget in that order.
+     */
+    Map<String, Object> getProperties(EventPlan plan,
+                                      Batch.EventDispatcher.Type type,
+                                      Batch.EventDispatcher.Payload payload)
+    {
+        return getProperties(plan, type, payload, null);
+    }
+
+    /**
+     * @param identity Values already read from the payload to deduplicate the event, null if it wasn't
+     */
+    Map<String, Object> getProperties(EventPlan plan,
+                                      Batch.EventDispatcher.Type type,
+                                      Batch.EventDispatcher.Payload payload,
+                                      @Nullable DuplicateFilter.Key identity)
+    {
+        ExtractionKeys keys = extractionKeys;
+        PayloadBudget budget = payloadBudget;
+        PayloadBudget.EventBudget eventBudget = budget != null ? budget.newEventBudget() : null;
+        Map<String, Object> mixpanelParams = new PropertyMap();
+        mixpanelParams.put(plan.sourceKey, "batch");
+
+        // Load from custom payload, the last key of the plan taking precedence
+        for (int i = plan.customPayloadKeys.length - 1; i >= 0; i--) {
+            String key = plan.customPayloadPropertyKeys[i];
+            if (!mixpanelParams.containsKey(key)) {
+                copyValueFromPayload(payload, plan.customPayloadKeys[i], mixpanelParams, key, eventBudget);
+            }
+        }
+        // Then the registered keys, the last registered one taking precedence
+        for (int i = keys.size() - 1; i >= DeeplinkScanner.KEYS.length; i--) {
+            String key = keys.getPropertyName(i);
+            if (!mixpanelParams.containsKey(key)) {
+                copyValueFromPayload(payload, keys.getKey(i), mixpanelParams, key, eventBudget);
+            }
+        }
+
+        String[] deeplinkKeys = plan.deeplinkKeys;
+        if ((deeplinkKeys != null && hasMissingKey(deeplinkKeys, mixpanelParams)) ||
+                hasMissingRegisteredKey(keys, mixpanelParams)) {
+            String deeplink = identity != null ? identity.deeplink : payload.getDeeplink();
+            if (deeplink != null) {
+                try {
+                    DeeplinkAttribution attribution = getDeeplinkAttribution(type, deeplink, keys, budget);
+                    // Copy from query parameters, or fragment part, of the deeplink
+                    if (deeplinkKeys != null) {
+                        for (int i = deeplinkKeys.length - 1; i >= 0; i--) {
+                            String key = deeplinkKeys[i];
+                            if (key != null && !mixpanelParams.containsKey(key)) {
+                                copyValueFromAttribution(attribution, i, mixpanelParams, key, eventBudget);
+                            }
+                        }
+                    }
+                    for (int i = keys.size() - 1; i >= DeeplinkScanner.KEYS.length; i--) {
+                        String key = keys.getPropertyName(i);
+                        if (!mixpanelParams.containsKey(key)) {
+                            copyValueFromAttribution(attribution, i, mixpanelParams, key, eventBudget);
+                        }
+                    }
+                } catch (Exception e) {
+                    metrics.onParseFailure(type);
+                    Log.e("BatchMixpanelDispatcher", "Something went wrong parsing deeplink: " + e.getLocalizedMessage());
+                }
+            }
+        }
+
+        if (plan.inApp) {
+            if (!mixpanelParams.containsKey(plan.webViewAnalyticsIdKey)) {
+                String webViewAnalyticsId = payload.getWebViewAnalyticsID();
+                if (webViewAnalyticsId != null) {
+                    mixpanelParams.put(plan.webViewAnalyticsIdKey, webViewAnalyticsId);
                 }
             }
+            String trackingId = identity != null ? identity.trackingId : payload.getTrackingId();
+            putIfAbsent(mixpanelParams, plan.trackingIdKey, trackingId);
+            putIfAbsent(mixpanelParams, plan.mediumKey, "in-app");
+            putIfAbsent(mixpanelParams, plan.campaignKey, trackingId);
+        } else {
+            putIfAbsent(mixpanelParams, plan.mediumKey, "push");
+        }
+        if (eventBudget != null) {
+            eventBudget.flag(mixpanelParams);
+        }
+        return mixpanelParams;
+    }
+
+    private static boolean hasMissingKey(String[] keys, Map<String, Object> mixpanelParams)
+    {
+        for (String key : keys) {
+            if (key != null && !mixpanelParams.containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasMissingRegisteredKey(ExtractionKeys keys, Map<String, Object> mixpanelParams)
+    {
+        for (int i = DeeplinkScanner.KEYS.length; i < keys.size(); i++) {
+            if (!mixpanelParams.containsKey(keys.getPropertyName(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same as {@link Map#putIfAbsent}, which isn't available before API 24
+     */
+    private static void putIfAbsent(Map<String, Object> map, String key, Object value)
+    {
+        if (!map.containsKey(key)) {
+            map.put(key, value);
+        }
+    }
+
+    /**
+     * Extract the UTM tags and registered keys of a deeplink, from the cache if enabled
+     */
+    private DeeplinkAttribution getDeeplinkAttribution(Batch.EventDispatcher.Type type,
+                                                       String deeplink,
+                                                       ExtractionKeys keys,
+                                                       PayloadBudget budget)
+    {
+        MetricsRecorder recorder = metrics;
+        long start = recorder.startTimer();
+        deeplink = deeplink.trim();
+        DeeplinkCache cache = deeplinkCache;
+        DeeplinkAttribution attribution = cache != null ?
+                cache.get(deeplink, keys, budget) :
+                DeeplinkScanner.scan(deeplink, keys, budget);
+        recorder.recordParseTime(type, start);
+        return attribution;
+    }
+
+    private static void copyValueFromAttribution(DeeplinkAttribution attribution,
+                                                 int keyFrom,
+                                                 Map<String, Object> mapOut,
+                                                 String keyOut,
+                                                 PayloadBudget.EventBudget eventBudget)
+    {
+        String value = attribution.get(keyFrom);
+        if (eventBudget != null) {
+            value = eventBudget.fit(keyOut, value, attribution.getOversizedBytes(keyFrom));
+        }
+        if (value != null) {
+            mapOut.put(keyOut, value);
         }
     }
 
     private static void copyValueFromPayload(Batch.EventDispatcher.Payload payload,
                                              String keyFrom,
                                              Map<String, Object> mapOut,
-                                             String keyOut)
+                                             String keyOut,
+                                             PayloadBudget.EventBudget eventBudget)
     {
         String value = payload.getCustomValue(keyFrom);
+        if (eventBudget != null) {
+            value = eventBudget.fit(keyOut, value, DeeplinkAttribution.WITHIN_BUDGET);
+        }
         if (value != null) {
             mapOut.put(keyOut, value);
         }
     }
-
-    private static String getMixpanelEventName(Batch.EventDispatcher.Type type) {
-        switch (type) {
-            case NOTIFICATION_DISPLAY:
-                return NOTIFICATION_DISPLAY_NAME;
-            case NOTIFICATION_OPEN:
-                return NOTIFICATION_OPEN_NAME;
-            case NOTIFICATION_DISMISS:
-                return NOTIFICATION_DISMISS_NAME;
-            case MESSAGING_SHOW:
-                return MESSAGING_SHOW_NAME;
-            case MESSAGING_CLOSE:
-                return MESSAGING_CLOSE_NAME;
-            case MESSAGING_AUTO_CLOSE:
-                return MESSAGING_AUTO_CLOSE_NAME;
-            case MESSAGING_CLOSE_ERROR:
-                return MESSAGING_CLOSE_ERROR_NAME;
-            case MESSAGING_CLICK:
-                return MESSAGING_CLICK_NAME;
-            case MESSAGING_WEBVIEW_CLICK:
-                return MESSAGING_WEBVIEW_CLICK_NAME;
-        }
-        return UNKNOWN_EVENT_NAME;
-    }
 }
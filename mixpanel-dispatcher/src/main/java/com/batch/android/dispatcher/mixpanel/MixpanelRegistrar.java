@@ -13,9 +13,14 @@ import com.batch.android.eventdispatcher.DispatcherRegistrar;
 public class MixpanelRegistrar implements DispatcherRegistrar
 {
     /**
-     * Singleton instance
+     * Singleton holder
+     * The class is initialized on first access, which the JVM guarantees to happen once and to
+     * publish safely, without locking afterwards.
      */
-    private static MixpanelDispatcher instance = null;
+    private static final class InstanceHolder
+    {
+        static final MixpanelDispatcher INSTANCE = new MixpanelDispatcher();
+    }
 
     /**
      * Singleton accessor
@@ -24,20 +29,18 @@ public class MixpanelRegistrar implements DispatcherRegistrar
      */
     static MixpanelDispatcher getInstance(Context unused)
     {
-        if (instance == null) {
-            instance = new MixpanelDispatcher();
-        }
-        return instance;
+        return InstanceHolder.INSTANCE;
     }
 
     /**
-     * Singleton accessor
+     * Dispatcher accessor, called by Batch when it starts
+     * The returned dispatcher defers loading the Mixpanel dispatcher until the first event.
      * @param context Context used to initialize the dispatcher
      * @return Dispatcher instance
      */
     @Override
     public BatchEventDispatcher getDispatcher(Context context)
     {
-        return getInstance(context);
+        return LazyMixpanelDispatcher.INSTANCE;
     }
 }
@@ -0,0 +1,38 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.batch.android.Batch;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Additional MixpanelAPI instance events are sent to, with the types of the events it accepts
+ */
+final class MixpanelTarget
+{
+    static final MixpanelTarget[] NONE = new MixpanelTarget[0];
+
+    @NonNull
+    final MixpanelAPI instance;
+
+    /**
+     * Accepted event types, null to accept all of them
+     */
+    @Nullable
+    private final Set<Batch.EventDispatcher.Type> types;
+
+    MixpanelTarget(@NonNull MixpanelAPI instance, @Nullable Set<Batch.EventDispatcher.Type> types)
+    {
+        this.instance = instance;
+        this.types = types == null || types.isEmpty() ? null : EnumSet.copyOf(types);
+    }
+
+    boolean accepts(@NonNull Batch.EventDispatcher.Type type)
+    {
+        return types == null || types.contains(type);
+    }
+}
@@ -0,0 +1,24 @@
+package com.batch.android.dispatcher.mixpanel;
+
+/**
+ * What the asynchronous dispatch mode does with a new event when its queue is full
+ * See {@link MixpanelDispatcher#enableAsyncDispatch(android.content.Context, int, OverflowPolicy, long)}
+ */
+public enum OverflowPolicy
+{
+    /**
+     * Drop the oldest queued event to make room for the new one
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drop the new event
+     */
+    DROP_NEWEST,
+
+    /**
+     * Block the calling thread until there is room in the queue, or until the timeout expires,
+     * in which case the new event is dropped
+     */
+    BLOCK
+}
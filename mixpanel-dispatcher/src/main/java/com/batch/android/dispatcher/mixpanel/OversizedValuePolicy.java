@@ -0,0 +1,18 @@
+package com.batch.android.dispatcher.mixpanel;
+
+/**
+ * What the dispatcher does with a property value over its payload budget
+ * See {@link MixpanelDispatcher#enablePayloadBudget(android.content.Context, int, int, OversizedValuePolicy)}
+ */
+public enum OversizedValuePolicy
+{
+    /**
+     * Keep the longest start of the value that fits in the budget, without splitting characters
+     */
+    TRUNCATE,
+
+    /**
+     * Leave the property out
+     */
+    DROP
+}
@@ -0,0 +1,192 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte budgets of the property values extracted from deeplinks and custom payloads
+ *
+ * Each value is limited to a number of UTF-8 bytes, and so are all the extracted values of an
+ * event together. Values are checked as they are extracted, in the precedence order of
+ * {@link MixpanelDispatcher#getProperties}: deeplink values are cut before being decoded, and
+ * custom payload values before being put in the properties. Properties whose value was truncated
+ * or dropped are listed in {@link #TRUNCATED_PROPERTIES_KEY}.
+ */
+final class PayloadBudget
+{
+    /**
+     * Property listing the properties whose value went over the budget, comma separated
+     */
+    static final String TRUNCATED_PROPERTIES_KEY = "batch_truncated_properties";
+
+    final int maxValueBytes;
+    final int maxEventBytes;
+    final OversizedValuePolicy policy;
+
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    PayloadBudget(int maxValueBytes, int maxEventBytes, @NonNull OversizedValuePolicy policy)
+    {
+        if (maxValueBytes <= 0 || maxEventBytes <= 0) {
+            throw new IllegalArgumentException("Budgets must be greater than 0");
+        }
+        this.maxValueBytes = maxValueBytes;
+        this.maxEventBytes = maxEventBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * @return UTF-8 bytes of the values truncated or dropped so far
+     */
+    long getSavedBytes()
+    {
+        return savedBytes.get();
+    }
+
+    /**
+     * @return The budget of a new event's properties
+     */
+    @NonNull
+    EventBudget newEventBudget()
+    {
+        return new EventBudget();
+    }
+
+    /**
+     * @return Whether a range of this many characters may go over the value budget once decoded
+     * Each character is at most 3 UTF-8 bytes.
+     */
+    boolean mayExceed(int length)
+    {
+        return length > maxValueBytes / 3;
+    }
+
+    /**
+     * @return UTF-8 length of a range of characters
+     */
+    static int utf8Length(@NonNull String s, int start, int end)
+    {
+        int bytes = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return End of the longest start of a range whose UTF-8 length fits in the given bytes,
+     * without splitting a surrogate pair
+     */
+    static int prefixEnd(@NonNull String s, int start, int end, int maxBytes)
+    {
+        int bytes = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            int charBytes = 3;
+            int charLength = 1;
+            if (c < 0x80) {
+                charBytes = 1;
+            } else if (c < 0x800) {
+                charBytes = 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                charBytes = 4;
+                charLength = 2;
+            }
+            if (bytes + charBytes > maxBytes) {
+                return i;
+            }
+            bytes += charBytes;
+            i += charLength - 1;
+        }
+        return end;
+    }
+
+    /**
+     * Budget left for the values of an event, used by a single thread
+     */
+    final class EventBudget
+    {
+        private int remainingBytes = maxEventBytes;
+
+        @Nullable
+        private StringBuilder truncatedProperties;
+
+        /**
+         * Fit an extracted value in the budget
+         *
+         * @param property Property the value is set to
+         * @param value The value, null if the deeplink scanner dropped it
+         * @param oversizedBytes UTF-8 length of the value before the deeplink scanner truncated or
+         * dropped it, or {@link DeeplinkAttribution#WITHIN_BUDGET}
+         * @return The value to set, truncated if needed, or null if it is dropped
+         */
+        @Nullable
+        String fit(@NonNull String property, @Nullable String value, int oversizedBytes)
+        {
+            if (value == null && oversizedBytes == DeeplinkAttribution.WITHIN_BUDGET) {
+                return null;
+            }
+            int bytes = value != null ? utf8Length(value, 0, value.length()) : 0;
+            int originalBytes = oversizedBytes != DeeplinkAttribution.WITHIN_BUDGET ? oversizedBytes : bytes;
+            int limit = Math.min(maxValueBytes, remainingBytes);
+            if (value != null && bytes > limit) {
+                int end = policy == OversizedValuePolicy.TRUNCATE ? prefixEnd(value, 0, value.length(), limit) : 0;
+                value = end > 0 ? value.substring(0, end) : null;
+                bytes = value != null ? utf8Length(value, 0, end) : 0;
+            }
+            remainingBytes -= bytes;
+            if (bytes < originalBytes) {
+                savedBytes.addAndGet(originalBytes - bytes);
+                if (truncatedProperties == null) {
+                    truncatedProperties = new StringBuilder(property);
+                } else if (!isListed(property)) {
+                    truncatedProperties.append(',').append(property);
+                }
+            }
+            return value;
+        }
+
+        /**
+         * @return Whether a property is already listed, a dropped value letting a source of lower
+         * precedence set it
+         */
+        private boolean isListed(String property)
+        {
+            int start = 0;
+            while (start < truncatedProperties.length()) {
+                int end = truncatedProperties.indexOf(",", start);
+                if (end < 0) {
+                    end = truncatedProperties.length();
+                }
+                if (end - start == property.length() && truncatedProperties.indexOf(property, start) == start) {
+                    return true;
+                }
+                start = end + 1;
+            }
+            return false;
+        }
+
+        /**
+         * List the properties whose value went over the budget, if any did
+         */
+        void flag(@NonNull Map<String, Object> mixpanelParams)
+        {
+            if (truncatedProperties != null) {
+                mixpanelParams.put(TRUNCATED_PROPERTIES_KEY, truncatedProperties.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+
+import com.batch.android.Batch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded buffer of the events dispatched before a MixpanelAPI instance was set, also holding
+ * the events sent while the {@link CircuitBreaker} is open
+ * The buffer keeps the earliest events: once one of its limits is reached, new events are dropped.
+ * It isn't thread-safe: {@link MixpanelDispatcher} and {@link CircuitBreaker} guard it with their own lock.
+ */
+final class PreInitBuffer
+{
+    private final int maxEvents;
+    private final int maxBytes;
+
+    private List<PendingEvent> events = new ArrayList<>();
+    private int bytes = 0;
+    private long droppedCount = 0;
+
+    PreInitBuffer(int maxEvents, int maxBytes)
+    {
+        if (maxEvents <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Buffer limits must be greater than 0");
+        }
+        this.maxEvents = maxEvents;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Keep an event until it can be sent
+     *
+     * @param journalId Id of the event in the journal, or {@link EventJournal#NO_RECORD}
+     * @return false if the event was dropped because the buffer is full
+     */
+    boolean add(@NonNull Batch.EventDispatcher.Type type,
+                @NonNull String eventName,
+                @NonNull Map<String, Object> params,
+                int journalId)
+    {
+        int size = estimateSize(eventName, params);
+        if (events.size() >= maxEvents || bytes + size > maxBytes) {
+            droppedCount++;
+            return false;
+        }
+        events.add(new PendingEvent(type, eventName, params, size, journalId));
+        bytes += size;
+        return true;
+    }
+
+    /**
+     * Check whether an event could still be added, before building it
+     * The byte limit is only checked by {@link #add}, as it depends on the event's properties.
+     *
+     * @return false if the event count limit is reached, in which case the event is counted as dropped
+     */
+    boolean hasRoom()
+    {
+        if (events.size() >= maxEvents || bytes >= maxBytes) {
+            droppedCount++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Remove all the buffered events
+     *
+     * @return The buffered events, in the order they were added
+     */
+    @NonNull
+    List<PendingEvent> drain()
+    {
+        List<PendingEvent> drained = events;
+        events = new ArrayList<>();
+        bytes = 0;
+        return drained;
+    }
+
+    int getEventCount()
+    {
+        return events.size();
+    }
+
+    int getBytes()
+    {
+        return bytes;
+    }
+
+    long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+    /**
+     * Estimate the memory used by an event's strings, in bytes
+     */
+    static int estimateSize(@NonNull String eventName, @NonNull Map<String, Object> params)
+    {
+        int chars = eventName.length();
+        for (Map.Entry<String, Object> entry : params.entrySet()) {
+            chars += entry.getKey().length();
+            Object value = entry.getValue();
+            if (value instanceof String) {
+                chars += ((String) value).length();
+            }
+        }
+        return chars * 2;
+    }
+
+    static final class PendingEvent
+    {
+        final Batch.EventDispatcher.Type type;
+        final String eventName;
+        final Map<String, Object> params;
+        final int size;
+        final int journalId;
+
+        PendingEvent(Batch.EventDispatcher.Type type, String eventName, Map<String, Object> params, int size, int journalId)
+        {
+            this.type = type;
+            this.eventName = eventName;
+            this.params = params;
+            this.size = size;
+            this.journalId = journalId;
+        }
+    }
+}
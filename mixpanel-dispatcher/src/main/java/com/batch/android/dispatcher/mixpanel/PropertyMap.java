@@ -0,0 +1,431 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map of Mixpanel event properties, with a fixed slot for each property the dispatcher sets
+ * Building the properties of an event only allocates the map and its slot array, rather than
+ * the table and nodes of a HashMap. Other keys, like the aggregated event count, go to a
+ * HashMap created on demand.
+ * Null values are supported, and equality follows the {@link Map} contract.
+ * Once sent, the map is frozen, and converted to the JSONObject given to all the MixpanelAPI
+ * instances, straight from its slots.
+ */
+final class PropertyMap extends AbstractMap<String, Object>
+{
+    /**
+     * Keys with a slot, in iteration order
+     */
+    static final String[] KEYS = {
+            "$source", "utm_campaign", "utm_medium", "utm_source", "utm_content",
+            "batch_tracking_id", "batch_webview_analytics_id"
+    };
+
+    private static final int[] HASHES = new int[KEYS.length];
+
+    static {
+        for (int i = 0; i < KEYS.length; i++) {
+            HASHES[i] = KEYS[i].hashCode();
+        }
+    }
+
+    private final Object[] values = new Object[KEYS.length];
+
+    /**
+     * Bit i is set when slot i holds a value, which may be null
+     */
+    private int present = 0;
+
+    /**
+     * Properties without a slot, null until one is added
+     */
+    @Nullable
+    private HashMap<String, Object> others = null;
+
+    private int modCount = 0;
+
+    private boolean frozen = false;
+
+    PropertyMap()
+    {
+    }
+
+    /**
+     * Make a map of properties immutable, freezing it if it is a PropertyMap
+     *
+     * @return The immutable map, which is the given one if it was a PropertyMap
+     */
+    @NonNull
+    static Map<String, Object> freeze(@NonNull Map<String, Object> map)
+    {
+        if (map instanceof PropertyMap) {
+            ((PropertyMap) map).frozen = true;
+            return map;
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * Convert properties to the JSONObject MixpanelAPI#trackMap would have built from them
+     *
+     * @throws JSONException if a value can't be put in a JSONObject, like a NaN double
+     */
+    @NonNull
+    static JSONObject toJSONObject(@NonNull Map<String, Object> map) throws JSONException
+    {
+        if (map instanceof PropertyMap) {
+            return ((PropertyMap) map).toJSONObject();
+        }
+        return new JSONObject(map);
+    }
+
+    /**
+     * Build the JSONObject of these properties, without allocating entries
+     * Values are wrapped like {@link JSONObject#JSONObject(Map)} does.
+     */
+    @NonNull
+    JSONObject toJSONObject() throws JSONException
+    {
+        JSONObject json = new JSONObject();
+        for (int i = 0; i < KEYS.length; i++) {
+            if (hasSlot(i)) {
+                json.put(KEYS[i], JSONObject.wrap(values[i]));
+            }
+        }
+        if (others != null) {
+            for (Entry<String, Object> entry : others.entrySet()) {
+                json.put(entry.getKey(), JSONObject.wrap(entry.getValue()));
+            }
+        }
+        return json;
+    }
+
+    private void checkMutable()
+    {
+        if (frozen) {
+            throw new UnsupportedOperationException("Properties cannot be modified once sent");
+        }
+    }
+
+    /**
+     * @return The slot of a key, or -1 if it doesn't have one
+     */
+    private static int slotOf(Object key)
+    {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        int hash = key.hashCode();
+        for (int i = 0; i < KEYS.length; i++) {
+            if (HASHES[i] == hash && (KEYS[i] == key || KEYS[i].equals(key))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean hasSlot(int slot)
+    {
+        return (present & (1 << slot)) != 0;
+    }
+
+    @Override
+    public int size()
+    {
+        return Integer.bitCount(present) + (others != null ? others.size() : 0);
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        int slot = slotOf(key);
+        if (slot >= 0) {
+            return hasSlot(slot);
+        }
+        return others != null && others.containsKey(key);
+    }
+
+    @Override
+    public Object get(Object key)
+    {
+        int slot = slotOf(key);
+        if (slot >= 0) {
+            return values[slot];
+        }
+        return others != null ? others.get(key) : null;
+    }
+
+    @Override
+    public Object put(String key, Object value)
+    {
+        checkMutable();
+        int slot = slotOf(key);
+        if (slot < 0) {
+            if (key == null) {
+                throw new NullPointerException("Property keys cannot be null");
+            }
+            if (others == null) {
+                others = new HashMap<>();
+            }
+            if (!others.containsKey(key)) {
+                modCount++;
+            }
+            return others.put(key, value);
+        }
+        Object previous = values[slot];
+        values[slot] = value;
+        if (!hasSlot(slot)) {
+            present |= 1 << slot;
+            modCount++;
+        }
+        return previous;
+    }
+
+    @Override
+    public Object remove(Object key)
+    {
+        checkMutable();
+        int slot = slotOf(key);
+        if (slot < 0) {
+            if (others == null || !others.containsKey(key)) {
+                return null;
+            }
+            modCount++;
+            return others.remove(key);
+        }
+        return removeSlot(slot);
+    }
+
+    private Object removeSlot(int slot)
+    {
+        Object previous = values[slot];
+        if (hasSlot(slot)) {
+            values[slot] = null;
+            present &= ~(1 << slot);
+            modCount++;
+        }
+        return previous;
+    }
+
+    @Override
+    public void clear()
+    {
+        checkMutable();
+        for (int i = 0; i < values.length; i++) {
+            values[i] = null;
+        }
+        present = 0;
+        others = null;
+        modCount++;
+    }
+
+    @NonNull
+    @Override
+    public Set<Entry<String, Object>> entrySet()
+    {
+        return new EntrySet();
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (o instanceof PropertyMap) {
+            PropertyMap other = (PropertyMap) o;
+            if (present != other.present) {
+                return false;
+            }
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == null ? other.values[i] != null : !values[i].equals(other.values[i])) {
+                    return false;
+                }
+            }
+            boolean empty = others == null || others.isEmpty();
+            boolean otherEmpty = other.others == null || other.others.isEmpty();
+            return empty ? otherEmpty : others.equals(other.others);
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        // Same value as AbstractMap, without iterating through entries
+        int hash = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (hasSlot(i)) {
+                hash += HASHES[i] ^ (values[i] == null ? 0 : values[i].hashCode());
+            }
+        }
+        if (others != null) {
+            hash += others.hashCode();
+        }
+        return hash;
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<String, Object>>
+    {
+        @NonNull
+        @Override
+        public Iterator<Entry<String, Object>> iterator()
+        {
+            return new EntryIterator();
+        }
+
+        @Override
+        public int size()
+        {
+            return PropertyMap.this.size();
+        }
+
+        @Override
+        public void clear()
+        {
+            PropertyMap.this.clear();
+        }
+    }
+
+    /**
+     * Iterates through the slots, then through the other properties
+     */
+    private final class EntryIterator implements Iterator<Entry<String, Object>>
+    {
+        private int nextSlot = nextSlotFrom(0);
+        private int lastSlot = -1;
+        private Iterator<Entry<String, Object>> othersIterator = null;
+        private int expectedModCount = modCount;
+
+        private int nextSlotFrom(int slot)
+        {
+            while (slot < KEYS.length && !hasSlot(slot)) {
+                slot++;
+            }
+            return slot;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (nextSlot < KEYS.length) {
+                return true;
+            }
+            if (othersIterator == null && others != null) {
+                Map<String, Object> iterated = frozen ? Collections.unmodifiableMap(others) : others;
+                othersIterator = iterated.entrySet().iterator();
+            }
+            return othersIterator != null && othersIterator.hasNext();
+        }
+
+        @Override
+        public Entry<String, Object> next()
+        {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (nextSlot < KEYS.length) {
+                lastSlot = nextSlot;
+                nextSlot = nextSlotFrom(nextSlot + 1);
+                return new SlotEntry(lastSlot);
+            }
+            lastSlot = -1;
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return othersIterator.next();
+        }
+
+        @Override
+        public void remove()
+        {
+            checkMutable();
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (lastSlot >= 0) {
+                removeSlot(lastSlot);
+                lastSlot = -1;
+            } else if (othersIterator != null) {
+                othersIterator.remove();
+                modCount++;
+            } else {
+                throw new IllegalStateException();
+            }
+            expectedModCount = modCount;
+        }
+    }
+
+    private final class SlotEntry implements Entry<String, Object>
+    {
+        private final int slot;
+
+        SlotEntry(int slot)
+        {
+            this.slot = slot;
+        }
+
+        @Override
+        public String getKey()
+        {
+            return KEYS[slot];
+        }
+
+        @Override
+        public Object getValue()
+        {
+            return values[slot];
+        }
+
+        @Override
+        public Object setValue(Object value)
+        {
+            checkMutable();
+            Object previous = values[slot];
+            values[slot] = value;
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry<?, ?> entry = (Entry<?, ?>) o;
+            Object value = values[slot];
+            return KEYS[slot].equals(entry.getKey()) &&
+                    (value == null ? entry.getValue() == null : value.equals(entry.getValue()));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            Object value = values[slot];
+            return HASHES[slot] ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString()
+        {
+            return KEYS[slot] + "=" + values[slot];
+        }
+    }
+}
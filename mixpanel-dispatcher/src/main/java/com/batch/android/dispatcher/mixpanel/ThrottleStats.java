@@ -0,0 +1,68 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import androidx.annotation.NonNull;
+
+import com.batch.android.Batch;
+
+/**
+ * Snapshot of the events rejected by sampling and rate limiting, per event type
+ * See {@link MixpanelDispatcher#getThrottleStats(android.content.Context)}
+ */
+public final class ThrottleStats
+{
+    private final long[] sampledOut;
+    private final long[] rateLimited;
+
+    ThrottleStats(long[] sampledOut, long[] rateLimited)
+    {
+        this.sampledOut = sampledOut;
+        this.rateLimited = rateLimited;
+    }
+
+    /**
+     * @return Number of events that weren't sent because they weren't sampled
+     */
+    public long getSampledOutCount(@NonNull Batch.EventDispatcher.Type type)
+    {
+        return sampledOut[type.ordinal()];
+    }
+
+    /**
+     * @return Number of events that weren't sent because their rate limit was exceeded
+     */
+    public long getRateLimitedCount(@NonNull Batch.EventDispatcher.Type type)
+    {
+        return rateLimited[type.ordinal()];
+    }
+
+    /**
+     * @return Number of events that weren't sent, whether they weren't sampled or were rate limited
+     */
+    public long getRejectedCount(@NonNull Batch.EventDispatcher.Type type)
+    {
+        return sampledOut[type.ordinal()] + rateLimited[type.ordinal()];
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder("ThrottleStats{");
+        boolean first = true;
+        for (Batch.EventDispatcher.Type type : Batch.EventDispatcher.Type.values()) {
+            int i = type.ordinal();
+            if (sampledOut[i] == 0 && rateLimited[i] == 0) {
+                continue;
+            }
+            if (!first) {
+                builder.append(", ");
+            }
+            first = false;
+            builder.append(type.name())
+                    .append("={sampledOut=").append(sampledOut[i])
+                    .append(", rateLimited=").append(rateLimited[i])
+                    .append('}');
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,351 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import android.os.Build;
+
+import com.batch.android.Batch;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test the asynchronous dispatch mode
+ */
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+@PrepareForTest(MixpanelAPI.class)
+public class AsyncEventQueueTest {
+    private MixpanelAPI mixpanel;
+    private MixpanelDispatcher mixpanelDispatcher;
+
+    /**
+     * Released to let the first tracked event go through
+     */
+    private CountDownLatch release;
+
+    /**
+     * Counted down when the worker thread started tracking the first event
+     */
+    private CountDownLatch firstEventTracked;
+
+    @Before
+    public void setUp() {
+        mixpanel = PowerMockito.mock(MixpanelAPI.class);
+        release = new CountDownLatch(1);
+        firstEventTracked = new CountDownLatch(1);
+
+        mixpanelDispatcher = new MixpanelDispatcher();
+        mixpanelDispatcher.mixpanelInstance = mixpanel;
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        release.countDown();
+        AsyncEventQueue queue = mixpanelDispatcher.asyncQueue;
+        if (queue != null) {
+            queue.shutdown(1000);
+        }
+    }
+
+    @Test
+    public void testEventsAreDispatchedInOrder() throws InterruptedException {
+        mixpanelDispatcher.asyncQueue = new AsyncEventQueue(mixpanelDispatcher, 10, OverflowPolicy.DROP_NEWEST, 0);
+
+        // Events of the same priority are dispatched in order
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("first"));
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISMISS, payload("second"));
+        Assert.assertTrue(mixpanelDispatcher.asyncQueue.flush(1000));
+
+        InOrder inOrder = Mockito.inOrder(mixpanel);
+        inOrder.verify(mixpanel).track(Mockito.eq("batch_notification_display"), MixpanelDispatcherTest.mapEq(expected("first")));
+        inOrder.verify(mixpanel).track(Mockito.eq("batch_notification_dismiss"), MixpanelDispatcherTest.mapEq(expected("second")));
+    }
+
+    @Test
+    public void testHighPriorityEventsAreDispatchedFirst() throws InterruptedException {
+        AsyncEventQueue queue = startBlockedQueue(3, OverflowPolicy.DROP_NEWEST, 0);
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("second"));
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("third"));
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload("open"));
+
+        release.countDown();
+        Assert.assertTrue(queue.flush(1000));
+        InOrder inOrder = Mockito.inOrder(mixpanel);
+        inOrder.verify(mixpanel).track(Mockito.eq("batch_notification_display"), MixpanelDispatcherTest.mapEq(expected("first")));
+        inOrder.verify(mixpanel).track(Mockito.eq("batch_notification_open"), MixpanelDispatcherTest.mapEq(expected("open")));
+        inOrder.verify(mixpanel).track(Mockito.eq("batch_notification_display"), MixpanelDispatcherTest.mapEq(expected("second")));
+        inOrder.verify(mixpanel).track(Mockito.eq("batch_notification_display"), MixpanelDispatcherTest.mapEq(expected("third")));
+    }
+
+    @Test
+    public void testLowPriorityEventsAreShedFirst() throws InterruptedException {
+        AtomicMetricsRecorder recorder = new AtomicMetricsRecorder();
+        mixpanelDispatcher.metrics = recorder;
+        AsyncEventQueue queue = startBlockedQueue(2, OverflowPolicy.DROP_OLDEST, 0);
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("second"));
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload("open"));
+        // The queue is full: the oldest display is shed for the new open
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload("other_open"));
+        // Opens are never dropped for a display, even with the drop oldest policy
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("third"));
+
+        Assert.assertEquals(2, queue.getDroppedCount(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY));
+        Assert.assertEquals(0, queue.getDroppedCount(Batch.EventDispatcher.Type.NOTIFICATION_OPEN));
+
+        // Between events of the same priority, the overflow policy applies
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload("last_open"));
+        Assert.assertEquals(1, queue.getDroppedCount(Batch.EventDispatcher.Type.NOTIFICATION_OPEN));
+        Assert.assertEquals(3, queue.getDroppedCount());
+        // Queue overflows aren't counted as events dropped for lack of a MixpanelAPI instance
+        Assert.assertEquals(0, recorder.getSnapshot().getDroppedCount(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY));
+        Assert.assertEquals(0, recorder.getSnapshot().getDroppedCount(Batch.EventDispatcher.Type.NOTIFICATION_OPEN));
+
+        release.countDown();
+        Assert.assertTrue(queue.flush(1000));
+        InOrder inOrder = Mockito.inOrder(mixpanel);
+        inOrder.verify(mixpanel).track(Mockito.eq("batch_notification_display"), MixpanelDispatcherTest.mapEq(expected("first")));
+        inOrder.verify(mixpanel).track(Mockito.eq("batch_notification_open"), MixpanelDispatcherTest.mapEq(expected("other_open")));
+        inOrder.verify(mixpanel).track(Mockito.eq("batch_notification_open"), MixpanelDispatcherTest.mapEq(expected("last_open")));
+        Mockito.verifyNoMoreInteractions(mixpanel);
+    }
+
+    @Test
+    public void testDropNewest() throws InterruptedException {
+        AsyncEventQueue queue = startBlockedQueue(OverflowPolicy.DROP_NEWEST, 0);
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("second"));
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("third"));
+        Assert.assertEquals(1, queue.getDroppedCount());
+
+        release.countDown();
+        Assert.assertTrue(queue.flush(1000));
+        assertTracked("first", "second");
+    }
+
+    @Test
+    public void testDropOldest() throws InterruptedException {
+        AsyncEventQueue queue = startBlockedQueue(OverflowPolicy.DROP_OLDEST, 0);
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("second"));
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("third"));
+        Assert.assertEquals(1, queue.getDroppedCount());
+
+        release.countDown();
+        Assert.assertTrue(queue.flush(1000));
+        assertTracked("first", "third");
+    }
+
+    @Test
+    public void testBlockTimeout() throws InterruptedException {
+        AsyncEventQueue queue = startBlockedQueue(OverflowPolicy.BLOCK, 20);
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("second"));
+        long start = System.nanoTime();
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("third"));
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        Assert.assertEquals(1, queue.getDroppedCount());
+
+        release.countDown();
+        Assert.assertTrue(queue.flush(1000));
+        assertTracked("first", "second");
+    }
+
+    @Test
+    public void testQueuedEventsKeepTheirSampleRate() throws InterruptedException {
+        AsyncEventQueue queue = startBlockedQueue(OverflowPolicy.DROP_NEWEST, 0);
+
+        // Kept without sampling: changing the rate while it is queued doesn't make it a sampled event
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("second"));
+        mixpanelDispatcher.throttle.setSampleRate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, 0.5);
+
+        release.countDown();
+        Assert.assertTrue(queue.flush(1000));
+        assertTracked("first", "second");
+    }
+
+    @Test
+    public void testWorkerSurvivesErrors() throws InterruptedException {
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                JSONObject params = invocation.getArgument(1);
+                if ("first".equals(params.opt("utm_campaign"))) {
+                    throw new Error("first");
+                }
+                return null;
+            }
+        }).when(mixpanel).track(Mockito.anyString(), Mockito.<JSONObject>any());
+        AsyncEventQueue queue = new AsyncEventQueue(mixpanelDispatcher, 10, OverflowPolicy.DROP_NEWEST, 0);
+        mixpanelDispatcher.asyncQueue = queue;
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("first"));
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("second"));
+
+        // The event that threw still counts as completed, and the worker goes on
+        Assert.assertTrue(queue.flush(1000));
+        assertTracked("first", "second");
+    }
+
+    @Test
+    public void testReplacementQueueWaitsForThePreviousOne() throws InterruptedException {
+        AsyncEventQueue queue = startBlockedQueue(2, OverflowPolicy.DROP_NEWEST, 0);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("second"));
+
+        AsyncEventQueue replacement = new AsyncEventQueue(mixpanelDispatcher, 10, OverflowPolicy.DROP_NEWEST, 0, queue);
+        mixpanelDispatcher.asyncQueue = replacement;
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("third"));
+        Mockito.verify(mixpanel, Mockito.after(100).times(1)).track(Mockito.anyString(), Mockito.<JSONObject>any());
+
+        release.countDown();
+        queue.shutdown(1000);
+        Assert.assertTrue(replacement.flush(1000));
+        assertTracked("first", "second", "third");
+    }
+
+    @Test
+    public void testFlushTimeout() throws InterruptedException {
+        AsyncEventQueue queue = startBlockedQueue(OverflowPolicy.DROP_NEWEST, 0);
+        Assert.assertFalse(queue.flush(20));
+    }
+
+    @Test
+    public void testShutdown() throws InterruptedException {
+        AsyncEventQueue queue = startBlockedQueue(OverflowPolicy.DROP_NEWEST, 0);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("second"));
+
+        release.countDown();
+        mixpanelDispatcher.asyncQueue = null;
+        queue.shutdown(1000);
+        assertTracked("first", "second");
+
+        // Events are now dispatched synchronously, even if they are handed to the stopped queue
+        Assert.assertFalse(queue.submit(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, EventPriority.LOW, payload("third"), null, 1));
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("third"));
+        assertTracked("first", "second", "third");
+    }
+
+    @Test
+    public void testEventsSubmittedDuringShutdownAreNotLost() throws Exception {
+        final AtomicInteger tracked = new AtomicInteger();
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                tracked.incrementAndGet();
+                return null;
+            }
+        }).when(mixpanel).track(Mockito.anyString(), Mockito.<JSONObject>any());
+
+        final int threads = 4;
+        final int eventsPerThread = 200;
+        for (int round = 0; round < 40; round++) {
+            OverflowPolicy policy = round % 2 == 0 ? OverflowPolicy.DROP_NEWEST : OverflowPolicy.BLOCK;
+            tracked.set(0);
+            AsyncEventQueue queue = new AsyncEventQueue(mixpanelDispatcher, 4, policy, 1000);
+            mixpanelDispatcher.asyncQueue = queue;
+            final CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int j = 0; j < eventsPerThread; j++) {
+                            mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("event"));
+                        }
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+            // Shut down while the submitters are running, without unsetting the queue first
+            Thread.sleep(round % 3);
+            queue.shutdown(1000);
+            for (Future<?> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            executor.shutdown();
+
+            // Every event was either dispatched, by the worker, the shutdown or its caller, or counted as dropped
+            Assert.assertEquals(policy.name(), threads * eventsPerThread, tracked.get() + queue.getDroppedCount());
+            if (policy == OverflowPolicy.BLOCK) {
+                Assert.assertEquals(0, queue.getDroppedCount());
+            }
+        }
+    }
+
+    /**
+     * Start a queue with a capacity of 1 whose worker thread is stuck tracking a first event
+     */
+    private AsyncEventQueue startBlockedQueue(OverflowPolicy policy, long blockTimeoutMillis) throws InterruptedException {
+        return startBlockedQueue(1, policy, blockTimeoutMillis);
+    }
+
+    private AsyncEventQueue startBlockedQueue(int capacity, OverflowPolicy policy, long blockTimeoutMillis) throws InterruptedException {
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                JSONObject params = invocation.getArgument(1);
+                if ("first".equals(params.opt("utm_campaign"))) {
+                    firstEventTracked.countDown();
+                    release.await(1, TimeUnit.SECONDS);
+                }
+                return null;
+            }
+        }).when(mixpanel).track(Mockito.anyString(), Mockito.<JSONObject>any());
+
+        AsyncEventQueue queue = new AsyncEventQueue(mixpanelDispatcher, capacity, policy, blockTimeoutMillis);
+        mixpanelDispatcher.asyncQueue = queue;
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("first"));
+        Assert.assertTrue(firstEventTracked.await(1, TimeUnit.SECONDS));
+        return queue;
+    }
+
+    private void assertTracked(String... campaigns) {
+        InOrder inOrder = Mockito.inOrder(mixpanel);
+        for (String campaign : campaigns) {
+            inOrder.verify(mixpanel).track(Mockito.eq("batch_notification_display"), MixpanelDispatcherTest.mapEq(expected(campaign)));
+        }
+        Mockito.verifyNoMoreInteractions(mixpanel);
+    }
+
+    private static TestEventPayload payload(String campaign) {
+        return new TestEventPayload(null,
+                "https://batch.com?utm_campaign=" + campaign,
+                new HashMap<>());
+    }
+
+    private static Map<String, Object> expected(String campaign) {
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("$source", "batch");
+        expected.put("utm_medium", "push");
+        expected.put("utm_campaign", campaign);
+        return expected;
+    }
+}
@@ -0,0 +1,156 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import android.os.Build;
+
+import com.batch.android.Batch;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Test the bulk dispatch of events
+ */
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+@PrepareForTest(MixpanelAPI.class)
+public class BulkDispatchTest {
+    private MixpanelAPI mixpanel;
+    private MixpanelDispatcher mixpanelDispatcher;
+    private ForkJoinPool pool;
+
+    @Before
+    public void setUp() {
+        mixpanel = PowerMockito.mock(MixpanelAPI.class);
+        pool = new ForkJoinPool(4);
+
+        mixpanelDispatcher = new MixpanelDispatcher();
+        mixpanelDispatcher.mixpanelInstance = mixpanel;
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testEventsAreSentInOrder() {
+        List<BulkEvent> events = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Batch.EventDispatcher.Type type = i % 3 == 0 ?
+                    Batch.EventDispatcher.Type.NOTIFICATION_OPEN :
+                    Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY;
+            events.add(new BulkEvent(type, payload("campaign" + i)));
+        }
+
+        mixpanelDispatcher.dispatchEvents(events, pool);
+
+        List<String> expectedNames = new ArrayList<>();
+        List<Map<String, Object>> expectedParams = new ArrayList<>();
+        for (int i = 0; i < events.size(); i++) {
+            expectedNames.add(i % 3 == 0 ? "batch_notification_open" : "batch_notification_display");
+            expectedParams.add(expected("campaign" + i));
+        }
+        assertTrackedInOrder(expectedNames, expectedParams);
+    }
+
+    @Test
+    public void testEventsAreFilteredInOrder() {
+        mixpanelDispatcher.eventMapping = new EventMapping.Builder()
+                .suppress(Batch.EventDispatcher.Type.NOTIFICATION_DISMISS)
+                .build();
+        mixpanelDispatcher.throttle.setRateLimit(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, 300, 0);
+
+        List<BulkEvent> events = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            events.add(new BulkEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("campaign" + i)));
+            events.add(new BulkEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISMISS, payload("campaign" + i)));
+        }
+
+        mixpanelDispatcher.dispatchEvents(events, pool);
+
+        // The rate limit keeps the first events
+        List<String> expectedNames = new ArrayList<>();
+        List<Map<String, Object>> expectedParams = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            expectedNames.add("batch_notification_display");
+            expectedParams.add(expected("campaign" + i));
+        }
+        assertTrackedInOrder(expectedNames, expectedParams);
+        Assert.assertEquals(700, mixpanelDispatcher.throttle.getStats().getRateLimitedCount(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY));
+    }
+
+    @Test
+    public void testSmallBatchIsBuiltOnCallingThread() {
+        pool.shutdownNow();
+        List<BulkEvent> events = new ArrayList<>();
+        events.add(new BulkEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload("first")));
+        events.add(new BulkEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload("second")));
+
+        mixpanelDispatcher.dispatchEvents(events, pool);
+
+        InOrder inOrder = Mockito.inOrder(mixpanel);
+        inOrder.verify(mixpanel).track(Mockito.eq("batch_notification_open"), MixpanelDispatcherTest.mapEq(expected("first")));
+        inOrder.verify(mixpanel).track(Mockito.eq("batch_notification_open"), MixpanelDispatcherTest.mapEq(expected("second")));
+    }
+
+    @Test
+    public void testSingleThreadedPoolIsNotUsed() {
+        pool.shutdownNow();
+        pool = new ForkJoinPool(1);
+        pool.shutdownNow();
+        List<BulkEvent> events = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            events.add(new BulkEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload("campaign" + i)));
+        }
+
+        mixpanelDispatcher.dispatchEvents(events, pool);
+        mixpanelDispatcher.dispatchEvents(events, null);
+
+        Mockito.verify(mixpanel, Mockito.times(2000)).track(Mockito.eq("batch_notification_open"), Mockito.<JSONObject>any());
+    }
+
+    /**
+     * Check the tracked events with captors, as verifying thousands of calls in order is quadratic
+     */
+    private void assertTrackedInOrder(List<String> expectedNames, List<Map<String, Object>> expectedParams) {
+        ArgumentCaptor<String> names = ArgumentCaptor.forClass(String.class);
+        ArgumentCaptor<JSONObject> params = ArgumentCaptor.forClass(JSONObject.class);
+        Mockito.verify(mixpanel, Mockito.times(expectedNames.size())).track(names.capture(), params.capture());
+        Assert.assertEquals(expectedNames, names.getAllValues());
+        List<Map<String, Object>> trackedParams = new ArrayList<>();
+        for (JSONObject json : params.getAllValues()) {
+            trackedParams.add(MixpanelDispatcherTest.toMap(json));
+        }
+        Assert.assertEquals(expectedParams, trackedParams);
+    }
+
+    private static TestEventPayload payload(String campaign) {
+        return new TestEventPayload(null, "https://batch.com?utm_campaign=" + campaign, new HashMap<>());
+    }
+
+    private static Map<String, Object> expected(String campaign) {
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("$source", "batch");
+        expected.put("utm_medium", "push");
+        expected.put("utm_campaign", campaign);
+        return expected;
+    }
+}
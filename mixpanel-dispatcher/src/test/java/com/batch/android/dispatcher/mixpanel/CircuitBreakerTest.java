@@ -0,0 +1,233 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import android.os.Build;
+
+import com.batch.android.Batch;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Test the circuit breaker around MixpanelAPI#track
+ */
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+@PrepareForTest(MixpanelAPI.class)
+public class CircuitBreakerTest {
+    private static final long SLOW_CALL_MILLIS = 100;
+    private static final long OPEN_MILLIS = 1000;
+
+    private MixpanelAPI mixpanel;
+    private FakeClock clock;
+    private MixpanelDispatcher mixpanelDispatcher;
+
+    @Before
+    public void setUp() {
+        mixpanel = PowerMockito.mock(MixpanelAPI.class);
+        clock = new FakeClock();
+
+        mixpanelDispatcher = new MixpanelDispatcher();
+        mixpanelDispatcher.mixpanelInstance = mixpanel;
+    }
+
+    @Test
+    public void testFailuresTripTheBreaker() {
+        CircuitBreaker breaker = enable(2, 10);
+        failTracking();
+
+        // Failures don't reach the Batch callback thread
+        dispatch("first");
+        Assert.assertEquals(CircuitState.CLOSED, breaker.getState());
+        dispatch("second");
+        Assert.assertEquals(CircuitState.OPEN, breaker.getState());
+
+        // Events are held while the breaker is open
+        dispatch("third");
+        clock.advance(OPEN_MILLIS - 1);
+        dispatch("fourth");
+        Mockito.verify(mixpanel, Mockito.times(2)).track(Mockito.anyString(), Mockito.<JSONObject>any());
+
+        CircuitBreakerStats stats = breaker.getStats();
+        Assert.assertEquals(CircuitState.OPEN, stats.getState());
+        Assert.assertEquals(1, stats.getTripCount());
+        Assert.assertEquals(2, stats.getFailureCount());
+        Assert.assertEquals(0, stats.getSlowCallCount());
+        Assert.assertEquals(2, stats.getHeldEventCount());
+    }
+
+    @Test
+    public void testSuccessResetsConsecutiveFailures() {
+        CircuitBreaker breaker = enable(2, 10);
+
+        failTracking();
+        dispatch("first");
+        Mockito.doNothing().when(mixpanel).track(Mockito.anyString(), Mockito.<JSONObject>any());
+        dispatch("second");
+        failTracking();
+        dispatch("third");
+        Assert.assertEquals(CircuitState.CLOSED, breaker.getState());
+        Assert.assertEquals(2, breaker.getStats().getFailureCount());
+    }
+
+    @Test
+    public void testSuccessfulProbeReleasesHeldEvents() {
+        CircuitBreaker breaker = enable(1, 10);
+        failTracking();
+        dispatch("failed");
+        dispatch("held1");
+        dispatch("held2");
+
+        Mockito.doNothing().when(mixpanel).track(Mockito.anyString(), Mockito.<JSONObject>any());
+        clock.advance(OPEN_MILLIS);
+        dispatch("probe");
+        Assert.assertEquals(CircuitState.CLOSED, breaker.getState());
+        Assert.assertEquals(0, breaker.getStats().getHeldEventCount());
+
+        dispatch("after");
+        Assert.assertEquals(Arrays.asList("failed", "probe", "held1", "held2", "after"), trackedCampaigns());
+    }
+
+    @Test
+    public void testSlowCallsTripAndFailedProbeReopens() {
+        CircuitBreaker breaker = enable(2, 10);
+        slowTracking(SLOW_CALL_MILLIS + 1);
+
+        dispatch("first");
+        dispatch("second");
+        Assert.assertEquals(CircuitState.OPEN, breaker.getState());
+        // Slow calls still tracked their event
+        Assert.assertEquals(Arrays.asList("first", "second"), trackedCampaigns());
+
+        // A single slow probe opens the breaker again, for a whole open duration
+        clock.advance(OPEN_MILLIS);
+        dispatch("probe");
+        Assert.assertEquals(CircuitState.OPEN, breaker.getState());
+        clock.advance(OPEN_MILLIS - SLOW_CALL_MILLIS);
+        dispatch("held");
+        Assert.assertEquals(Arrays.asList("first", "second", "probe"), trackedCampaigns());
+
+        CircuitBreakerStats stats = breaker.getStats();
+        Assert.assertEquals(2, stats.getTripCount());
+        Assert.assertEquals(3, stats.getSlowCallCount());
+        Assert.assertEquals(0, stats.getFailureCount());
+        Assert.assertEquals(1, stats.getHeldEventCount());
+
+        // Calls at the threshold aren't slow
+        slowTracking(SLOW_CALL_MILLIS);
+        clock.advance(SLOW_CALL_MILLIS);
+        dispatch("recovered");
+        Assert.assertEquals(CircuitState.CLOSED, breaker.getState());
+        Assert.assertEquals(Arrays.asList("first", "second", "probe", "recovered", "held"), trackedCampaigns());
+    }
+
+    @Test
+    public void testHoldingBufferIsBounded() {
+        CircuitBreaker breaker = enable(1, 2);
+        failTracking();
+        dispatch("failed");
+        dispatch("held1");
+        dispatch("held2");
+        dispatch("dropped");
+
+        CircuitBreakerStats stats = breaker.getStats();
+        Assert.assertEquals(2, stats.getHeldEventCount());
+        Assert.assertEquals(1, stats.getDroppedEventCount());
+    }
+
+    @Test
+    public void testDisablingSendsHeldEvents() {
+        enable(1, 10);
+        failTracking();
+        dispatch("failed");
+        dispatch("held");
+
+        Mockito.doNothing().when(mixpanel).track(Mockito.anyString(), Mockito.<JSONObject>any());
+        mixpanelDispatcher.setCircuitBreaker(null);
+        Assert.assertEquals(Arrays.asList("failed", "held"), trackedCampaigns());
+    }
+
+    @Test
+    public void testProbeThrowingAnErrorOpensTheBreaker() {
+        CircuitBreaker breaker = enable(1, 10);
+        failTracking();
+        dispatch("failed");
+
+        Mockito.doThrow(new OutOfMemoryError("probe"))
+                .when(mixpanel).track(Mockito.anyString(), Mockito.<JSONObject>any());
+        clock.advance(OPEN_MILLIS);
+        try {
+            dispatch("probe");
+            Assert.fail();
+        } catch (OutOfMemoryError expected) {
+            // Errors aren't swallowed
+        }
+        Assert.assertEquals(CircuitState.OPEN, breaker.getState());
+        Assert.assertEquals(2, breaker.getStats().getFailureCount());
+
+        // The next probe isn't blocked by the one that threw
+        Mockito.doNothing().when(mixpanel).track(Mockito.anyString(), Mockito.<JSONObject>any());
+        clock.advance(OPEN_MILLIS);
+        dispatch("recovered");
+        Assert.assertEquals(CircuitState.CLOSED, breaker.getState());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testFailuresAreThrownWithoutBreaker() {
+        failTracking();
+        dispatch("first");
+    }
+
+    private CircuitBreaker enable(int failureThreshold, int maxHeldEvents) {
+        CircuitBreaker breaker = new CircuitBreaker(failureThreshold, SLOW_CALL_MILLIS, OPEN_MILLIS,
+                maxHeldEvents, clock);
+        mixpanelDispatcher.setCircuitBreaker(breaker);
+        return breaker;
+    }
+
+    private void failTracking() {
+        Mockito.doThrow(new RuntimeException("database is locked"))
+                .when(mixpanel).track(Mockito.anyString(), Mockito.<JSONObject>any());
+    }
+
+    private void slowTracking(final long millis) {
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                clock.advance(millis);
+                return null;
+            }
+        }).when(mixpanel).track(Mockito.anyString(), Mockito.<JSONObject>any());
+    }
+
+    private void dispatch(String campaign) {
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN,
+                new TestEventPayload(null, "https://batch.com?utm_campaign=" + campaign, new HashMap<String, String>()));
+    }
+
+    private List<String> trackedCampaigns() {
+        ArgumentCaptor<JSONObject> captor = ArgumentCaptor.forClass(JSONObject.class);
+        Mockito.verify(mixpanel, Mockito.atLeast(0)).track(Mockito.eq("batch_notification_open"), captor.capture());
+        List<String> campaigns = new ArrayList<>();
+        for (JSONObject properties : captor.getAllValues()) {
+            campaigns.add(properties.optString("utm_campaign"));
+        }
+        return campaigns;
+    }
+}
@@ -0,0 +1,135 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import android.os.Build;
+
+import com.batch.android.Batch;
+import com.batch.android.BatchEventDispatcher;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stress the registrar and the publication of the MixpanelAPI instance from many threads
+ */
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+@PrepareForTest(MixpanelAPI.class)
+public class ConcurrencyStressTest {
+
+    private static final int THREADS = 8;
+    private static final int EVENTS_PER_THREAD = 2000;
+
+    @Test
+    public void testRegistrarReturnsASingleDispatcher() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<BatchEventDispatcher>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(new Callable<BatchEventDispatcher>() {
+                    @Override
+                    public BatchEventDispatcher call() throws Exception {
+                        start.await();
+                        BatchEventDispatcher dispatcher = null;
+                        for (int j = 0; j < 1000; j++) {
+                            BatchEventDispatcher current = MixpanelRegistrar.getInstance(null);
+                            Assert.assertTrue(dispatcher == null || dispatcher == current);
+                            dispatcher = current;
+                        }
+                        return dispatcher;
+                    }
+                }));
+            }
+            start.countDown();
+            BatchEventDispatcher expected = MixpanelRegistrar.getInstance(null);
+            for (Future<BatchEventDispatcher> result : results) {
+                Assert.assertSame(expected, result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testNoEventIsLostWhileInstanceIsSwapped() throws Exception {
+        final AtomicInteger tracked = new AtomicInteger();
+        Answer<Void> countingAnswer = new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                tracked.incrementAndGet();
+                return null;
+            }
+        };
+        final MixpanelAPI first = PowerMockito.mock(MixpanelAPI.class);
+        final MixpanelAPI second = PowerMockito.mock(MixpanelAPI.class);
+        Mockito.doAnswer(countingAnswer).when(first).track(Mockito.anyString(), Mockito.<JSONObject>any());
+        Mockito.doAnswer(countingAnswer).when(second).track(Mockito.anyString(), Mockito.<JSONObject>any());
+
+        // Events dispatched before the first instance is set must all fit in the buffer
+        final MixpanelDispatcher dispatcher = new MixpanelDispatcher();
+        dispatcher.preInitBuffer = new PreInitBuffer(THREADS * EVENTS_PER_THREAD, Integer.MAX_VALUE);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        TestEventPayload payload = new TestEventPayload(null,
+                                "https://batch.com?utm_campaign=stress",
+                                new HashMap<>());
+                        for (int j = 0; j < EVENTS_PER_THREAD; j++) {
+                            dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
+                        }
+                        done.countDown();
+                        return null;
+                    }
+                }));
+            }
+            start.countDown();
+
+            // Swap the instance until all events have been dispatched
+            int swaps = 0;
+            while (!done.await(0, TimeUnit.MILLISECONDS)) {
+                dispatcher.setInstance(swaps % 2 == 0 ? first : second);
+                swaps++;
+                Thread.yield();
+            }
+            for (Future<?> result : results) {
+                result.get(10, TimeUnit.SECONDS);
+            }
+            dispatcher.setInstance(first);
+
+            Assert.assertEquals(THREADS * EVENTS_PER_THREAD, tracked.get());
+            Assert.assertEquals(0, dispatcher.preInitBuffer.getDroppedCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
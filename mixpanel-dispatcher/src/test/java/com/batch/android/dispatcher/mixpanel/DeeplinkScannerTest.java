@@ -0,0 +1,98 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the single pass deeplink UTM scanner against the android.net.Uri based parsing rules
+ */
+public class DeeplinkScannerTest {
+
+    @Test
+    public void testQueryFirstOccurrenceWins() {
+        DeeplinkAttribution attribution = DeeplinkScanner.scan("https://batch.com?UTM_SOURCE=first&utm_source=second");
+        Assert.assertEquals("first", attribution.get(DeeplinkScanner.SOURCE));
+    }
+
+    @Test
+    public void testFragmentLastOccurrenceWins() {
+        DeeplinkAttribution attribution = DeeplinkScanner.scan("https://batch.com#utm_source=first&UTM_SOURCE=second");
+        Assert.assertEquals("second", attribution.get(DeeplinkScanner.SOURCE));
+    }
+
+    @Test
+    public void testQueryDecoding() {
+        DeeplinkAttribution attribution = DeeplinkScanner.scan("https://batch.com?utm_content=a+b%20c%E2%82%AC&utm_medium");
+        Assert.assertEquals("a b c\u20ac", attribution.get(DeeplinkScanner.CONTENT));
+        Assert.assertEquals("", attribution.get(DeeplinkScanner.MEDIUM));
+    }
+
+    @Test
+    public void testFragmentIsDecodedBeforeSplitting() {
+        DeeplinkAttribution attribution = DeeplinkScanner.scan("https://batch.com#utm_source=a+b%26utm_medium%3Dpush");
+        Assert.assertEquals("a+b", attribution.get(DeeplinkScanner.SOURCE));
+        Assert.assertEquals("push", attribution.get(DeeplinkScanner.MEDIUM));
+    }
+
+    @Test
+    public void testFragmentValueStopsAtSeparator() {
+        DeeplinkAttribution attribution = DeeplinkScanner.scan("https://batch.com#utm_source=a=b&utm_medium=&utm_content==c");
+        Assert.assertEquals("a", attribution.get(DeeplinkScanner.SOURCE));
+        Assert.assertNull(attribution.get(DeeplinkScanner.MEDIUM));
+        Assert.assertEquals("", attribution.get(DeeplinkScanner.CONTENT));
+    }
+
+    @Test
+    public void testQueryAfterFragmentIsIgnored() {
+        DeeplinkAttribution attribution = DeeplinkScanner.scan("https://batch.com#utm_source=fragment?utm_source=query");
+        Assert.assertEquals("fragment?utm_source", attribution.get(DeeplinkScanner.SOURCE));
+    }
+
+    @Test
+    public void testNonHierarchicalDeeplink() {
+        Assert.assertSame(DeeplinkAttribution.EMPTY, DeeplinkScanner.scan("mailto:test@batch.com?utm_source=batch"));
+        Assert.assertSame(DeeplinkAttribution.EMPTY, DeeplinkScanner.scan("batch:"));
+    }
+
+    @Test
+    public void testInvalidEscape() {
+        DeeplinkAttribution attribution = DeeplinkScanner.scan("https://batch.com?utm_source=a%zzb&utm_medium=c%");
+        Assert.assertEquals("a\ufffdzb", attribution.get(DeeplinkScanner.SOURCE));
+        Assert.assertEquals("c\ufffd", attribution.get(DeeplinkScanner.MEDIUM));
+    }
+
+    @Test
+    public void testExtractionKeys() {
+        ExtractionKeys keys = ExtractionKeys.DEFAULT;
+        for (int i = 0; i < 50; i++) {
+            keys = keys.with("cmp_" + i, "campaign_" + i);
+        }
+        keys = keys.with("UTM_TERM", "utm_term").with("gclid", "gclid");
+        Assert.assertEquals(56, keys.size());
+
+        DeeplinkAttribution attribution = DeeplinkScanner.scan(
+                "https://batch.com?utm_term=query&Cmp_7=seven&cmp_7=ignored&utm_source=batch#gclid=first&GCLID=last&utm_term=fragment&cmp_49=fortynine",
+                keys);
+        Assert.assertEquals("batch", attribution.get(DeeplinkScanner.SOURCE));
+        Assert.assertEquals("query", attribution.get(keys.indexOf("utm_term", 0, 8)));
+        Assert.assertEquals("seven", attribution.get(keys.indexOf("cmp_7", 0, 5)));
+        Assert.assertEquals("fortynine", attribution.get(keys.indexOf("cmp_49", 0, 6)));
+        Assert.assertEquals("last", attribution.get(keys.indexOf("gclid", 0, 5)));
+        Assert.assertNull(attribution.get(keys.indexOf("cmp_8", 0, 5)));
+        Assert.assertEquals(ExtractionKeys.NOT_FOUND, keys.indexOf("cmp_50", 0, 6));
+        Assert.assertEquals("campaign_7", keys.getPropertyName(keys.indexOf("CMP_7", 0, 5)));
+
+        // The default keys don't see registered ones
+        Assert.assertNull(DeeplinkScanner.scan("https://batch.com?gclid=a", ExtractionKeys.DEFAULT).get(4));
+
+        keys = keys.without("cmp_7");
+        Assert.assertEquals(55, keys.size());
+        Assert.assertEquals(ExtractionKeys.NOT_FOUND, keys.indexOf("cmp_7", 0, 5));
+        Assert.assertEquals("campaign_8", keys.getPropertyName(keys.indexOf("cmp_8", 0, 5)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUtmTagsCantBeRegistered() {
+        ExtractionKeys.DEFAULT.with("Utm_Campaign", "campaign");
+    }
+}
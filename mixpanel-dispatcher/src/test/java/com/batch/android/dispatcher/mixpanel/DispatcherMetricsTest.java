@@ -0,0 +1,104 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import android.os.Build;
+
+import com.batch.android.Batch;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+
+/**
+ * Test the dispatcher metrics
+ */
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+@PrepareForTest(MixpanelAPI.class)
+public class DispatcherMetricsTest {
+    private MixpanelAPI mixpanel;
+    private MixpanelDispatcher mixpanelDispatcher;
+    private AtomicMetricsRecorder recorder;
+
+    @Before
+    public void setUp() {
+        mixpanel = PowerMockito.mock(MixpanelAPI.class);
+        recorder = new AtomicMetricsRecorder();
+
+        mixpanelDispatcher = new MixpanelDispatcher();
+        mixpanelDispatcher.metrics = recorder;
+    }
+
+    @Test
+    public void testCounters() {
+        mixpanelDispatcher.preInitBuffer = new PreInitBuffer(1, 1024);
+
+        // The first event is buffered, the second one is dropped
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("https://batch.com?utm_campaign=first"));
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("https://batch.com?utm_campaign=second"));
+        mixpanelDispatcher.setInstance(mixpanel);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_CLICK, payload(null));
+
+        DispatcherMetrics metrics = recorder.getSnapshot();
+        Assert.assertEquals(2, metrics.getReceivedCount(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY));
+        Assert.assertEquals(1, metrics.getDispatchedCount(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY));
+        Assert.assertEquals(1, metrics.getDroppedCount(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY));
+        Assert.assertEquals(1, metrics.getReceivedCount(Batch.EventDispatcher.Type.MESSAGING_CLICK));
+        Assert.assertEquals(1, metrics.getDispatchedCount(Batch.EventDispatcher.Type.MESSAGING_CLICK));
+        Assert.assertEquals(0, metrics.getDroppedCount(Batch.EventDispatcher.Type.MESSAGING_CLICK));
+        Assert.assertEquals(0, metrics.getReceivedCount(Batch.EventDispatcher.Type.NOTIFICATION_OPEN));
+        Assert.assertEquals(0, metrics.getParseFailureCount(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY));
+    }
+
+    @Test
+    public void testLatencies() {
+        mixpanelDispatcher.setInstance(mixpanel);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload("https://batch.com?utm_campaign=open"));
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload(null));
+
+        DispatcherMetrics metrics = recorder.getSnapshot();
+        // Events without deeplink aren't parsed
+        Assert.assertEquals(1, metrics.getParseLatency(Batch.EventDispatcher.Type.NOTIFICATION_OPEN).getCount());
+        Assert.assertEquals(2, metrics.getTrackLatency(Batch.EventDispatcher.Type.NOTIFICATION_OPEN).getCount());
+        Assert.assertEquals(0, metrics.getTrackLatency(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY).getCount());
+        Assert.assertTrue(metrics.getTrackLatency(Batch.EventDispatcher.Type.NOTIFICATION_OPEN).getPercentileNanos(50) > 0);
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        Assert.assertEquals(0, LatencyHistogram.bucketFor(0));
+        Assert.assertEquals(0, LatencyHistogram.bucketFor(1023));
+        Assert.assertEquals(1, LatencyHistogram.bucketFor(1024));
+        Assert.assertEquals(1, LatencyHistogram.bucketFor(2047));
+        Assert.assertEquals(2, LatencyHistogram.bucketFor(2048));
+        Assert.assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketFor(Long.MAX_VALUE));
+
+        long[] counts = new long[LatencyHistogram.BUCKET_COUNT];
+        counts[0] = 90;
+        counts[3] = 9;
+        counts[LatencyHistogram.BUCKET_COUNT - 1] = 1;
+        LatencyHistogram histogram = new LatencyHistogram(counts, 0);
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(1024, histogram.getPercentileNanos(50));
+        Assert.assertEquals(1024, histogram.getPercentileNanos(90));
+        Assert.assertEquals(8192, histogram.getPercentileNanos(99));
+        Assert.assertEquals(Long.MAX_VALUE, histogram.getPercentileNanos(100));
+        Assert.assertEquals(0, new LatencyHistogram(new long[LatencyHistogram.BUCKET_COUNT], 0).getPercentileNanos(50));
+    }
+
+    @Test
+    public void testMetricsAreDisabledByDefault() {
+        Assert.assertSame(MetricsRecorder.NOOP, new MixpanelDispatcher().metrics);
+    }
+
+    private static TestEventPayload payload(String deeplink) {
+        return new TestEventPayload("tracking_id", deeplink, new HashMap<>());
+    }
+}
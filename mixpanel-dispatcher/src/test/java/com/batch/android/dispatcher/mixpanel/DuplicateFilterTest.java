@@ -0,0 +1,201 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import android.os.Build;
+
+import com.batch.android.Batch;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test the suppression of duplicate events
+ */
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+@PrepareForTest(MixpanelAPI.class)
+public class DuplicateFilterTest {
+    private FakeClock clock;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+    }
+
+    @Test
+    public void testDuplicatesAreForgottenAfterTwoWindows() {
+        DuplicateFilter filter = newFilter(1000, 1000, 0.01);
+
+        Assert.assertFalse(filter.isDuplicate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, "id", "https://batch.com"));
+        Assert.assertTrue(filter.isDuplicate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, "id", "https://batch.com"));
+
+        // Still remembered in the previous generation
+        clock.advance(1500);
+        Assert.assertTrue(filter.isDuplicate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, "id", "https://batch.com"));
+
+        // Seen again in the last window, so still remembered
+        clock.advance(1000);
+        Assert.assertTrue(filter.isDuplicate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, "id", "https://batch.com"));
+
+        clock.advance(2000);
+        Assert.assertFalse(filter.isDuplicate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, "id", "https://batch.com"));
+        Assert.assertEquals(3, filter.getDuplicateCount());
+    }
+
+    @Test
+    public void testEventIdentity() {
+        DuplicateFilter filter = newFilter(1000, 1000, 0.01);
+
+        Assert.assertFalse(filter.isDuplicate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, "ab", null));
+        Assert.assertFalse(filter.isDuplicate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, "a", "b"));
+        Assert.assertFalse(filter.isDuplicate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, null, "ab"));
+        Assert.assertFalse(filter.isDuplicate(Batch.EventDispatcher.Type.MESSAGING_SHOW, "ab", null));
+
+        // Events without identity and types that aren't covered are never duplicates
+        Assert.assertFalse(filter.isDuplicate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, null, null));
+        Assert.assertFalse(filter.isDuplicate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, null, null));
+        Assert.assertFalse(filter.isDuplicate(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, "ab", null));
+        Assert.assertFalse(filter.isDuplicate(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, "ab", null));
+        Assert.assertEquals(0, filter.getDuplicateCount());
+    }
+
+    @Test
+    public void testPushesSharingADeeplinkAreNotDuplicates() {
+        MixpanelAPI mixpanel = PowerMockito.mock(MixpanelAPI.class);
+        MixpanelDispatcher mixpanelDispatcher = new MixpanelDispatcher(clock);
+        mixpanelDispatcher.mixpanelInstance = mixpanel;
+        mixpanelDispatcher.duplicateFilter = newFilter(1000, 1000, 0.01);
+
+        // Two different pushes of the same campaign: push payloads have no tracking id
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY,
+                new TestEventPayload(null, "https://batch.com?utm_campaign=sale", new HashMap<>()));
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY,
+                new TestEventPayload(null, "https://batch.com?utm_campaign=sale", new HashMap<>()));
+        Mockito.verify(mixpanel, Mockito.times(2))
+                .track(Mockito.eq("batch_notification_display"), Mockito.<JSONObject>any());
+        Assert.assertEquals(0, mixpanelDispatcher.duplicateFilter.getDuplicateCount());
+
+        // With a tracking id, a notification event is still deduplicated
+        Assert.assertFalse(mixpanelDispatcher.duplicateFilter.isDuplicate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY,
+                "id", "https://batch.com?utm_campaign=sale"));
+        Assert.assertTrue(mixpanelDispatcher.duplicateFilter.isDuplicate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY,
+                "id", "https://batch.com?utm_campaign=sale"));
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        int expectedEvents = 10000;
+        double falsePositiveRate = 0.01;
+        DuplicateFilter filter = newFilter(60000, expectedEvents, falsePositiveRate);
+
+        // Looking up new events also adds them, so the filter holds the expected number of events at the end
+        int queries = expectedEvents / 10;
+        for (int i = 0; i < expectedEvents - queries; i++) {
+            filter.isDuplicate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, "seen-" + i, null);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < queries; i++) {
+            if (filter.isDuplicate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, "new-" + i, null)) {
+                falsePositives++;
+            }
+        }
+        Assert.assertTrue("False positives: " + falsePositives, falsePositives <= queries * falsePositiveRate);
+    }
+
+    @Test
+    public void testSizing() {
+        DuplicateFilter filter = newFilter(1000, 1000, 0.01);
+
+        // -n * ln(p / 2) / ln(2)^2 = 11028 bits, rounded to 64 bit words
+        Assert.assertEquals(11072, filter.getBitCount());
+        Assert.assertEquals(8, filter.getHashCount());
+        Assert.assertEquals(2768, filter.getMemoryBytes());
+
+        try {
+            newFilter(1000, 1000, 1);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+        try {
+            newFilter(0, 1000, 0.01);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testDuplicatesAreNotDispatched() {
+        MixpanelAPI mixpanel = PowerMockito.mock(MixpanelAPI.class);
+        MixpanelDispatcher mixpanelDispatcher = new MixpanelDispatcher(clock);
+        mixpanelDispatcher.mixpanelInstance = mixpanel;
+        mixpanelDispatcher.duplicateFilter = newFilter(1000, 1000, 0.01);
+        mixpanelDispatcher.throttle.setRateLimit(Batch.EventDispatcher.Type.MESSAGING_SHOW, 2, 0);
+
+        TestEventPayload payload = new TestEventPayload(null, "https://batch.com?utm_campaign=campaign", new HashMap<>());
+        for (int i = 0; i < 3; i++) {
+            mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_SHOW, payload);
+        }
+        // Duplicates don't use the rate limit's tokens
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_SHOW,
+                new TestEventPayload(null, "https://batch.com?utm_campaign=other", new HashMap<>()));
+
+        Mockito.verify(mixpanel, Mockito.times(2))
+                .track(Mockito.eq("batch_in_app_show"), Mockito.<JSONObject>any());
+        Assert.assertEquals(2, mixpanelDispatcher.duplicateFilter.getDuplicateCount());
+        Assert.assertEquals(0, mixpanelDispatcher.throttle.getStats().getRateLimitedCount(Batch.EventDispatcher.Type.MESSAGING_SHOW));
+    }
+
+    @Test
+    public void testIdentityIsReadOnce() {
+        MixpanelAPI mixpanel = PowerMockito.mock(MixpanelAPI.class);
+        MixpanelDispatcher mixpanelDispatcher = new MixpanelDispatcher(clock);
+        mixpanelDispatcher.mixpanelInstance = mixpanel;
+        mixpanelDispatcher.duplicateFilter = newFilter(1000, 1000, 0.01);
+
+        Batch.EventDispatcher.Payload payload = mockPayload("first");
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_SHOW, payload);
+        Mockito.verify(payload, Mockito.times(1)).getTrackingId();
+        Mockito.verify(payload, Mockito.times(1)).getDeeplink();
+
+        Batch.EventDispatcher.Payload bulkPayload = mockPayload("second");
+        mixpanelDispatcher.dispatchEvents(Arrays.asList(new BulkEvent(Batch.EventDispatcher.Type.MESSAGING_SHOW, bulkPayload)),
+                null);
+        Mockito.verify(bulkPayload, Mockito.times(1)).getTrackingId();
+        Mockito.verify(bulkPayload, Mockito.times(1)).getDeeplink();
+
+        // The values read for the filter are the ones sent
+        ArgumentCaptor<JSONObject> captor = ArgumentCaptor.forClass(JSONObject.class);
+        Mockito.verify(mixpanel, Mockito.times(2)).track(Mockito.eq("batch_in_app_show"), captor.capture());
+        Assert.assertEquals("first", captor.getAllValues().get(0).optString("utm_campaign"));
+        Assert.assertEquals("second", captor.getAllValues().get(1).optString("utm_campaign"));
+        Assert.assertEquals("content", captor.getAllValues().get(1).optString("utm_content"));
+    }
+
+    private static Batch.EventDispatcher.Payload mockPayload(String trackingId) {
+        Batch.EventDispatcher.Payload payload = Mockito.mock(Batch.EventDispatcher.Payload.class);
+        Mockito.when(payload.getTrackingId()).thenReturn(trackingId);
+        Mockito.when(payload.getDeeplink()).thenReturn("https://batch.com?utm_content=content");
+        return payload;
+    }
+
+    private DuplicateFilter newFilter(long windowMillis, int expectedEvents, double falsePositiveRate) {
+        return new DuplicateFilter(EnumSet.of(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, Batch.EventDispatcher.Type.MESSAGING_SHOW),
+                windowMillis, expectedEvents, falsePositiveRate, clock);
+    }
+}
@@ -0,0 +1,122 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import android.os.Build;
+
+import com.batch.android.Batch;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test the aggregation of notification display events
+ */
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+@PrepareForTest(MixpanelAPI.class)
+public class EventAggregatorTest {
+    private MixpanelAPI mixpanel;
+    private MixpanelDispatcher mixpanelDispatcher;
+    private FakeClock clock;
+
+    @Before
+    public void setUp() {
+        mixpanel = PowerMockito.mock(MixpanelAPI.class);
+        clock = new FakeClock();
+
+        mixpanelDispatcher = new MixpanelDispatcher();
+        mixpanelDispatcher.mixpanelInstance = mixpanel;
+    }
+
+    @Test
+    public void testDisplaysAreAggregatedOverTimeWindow() {
+        EventAggregator aggregator = enableAggregation(1000, 100, false);
+
+        for (int i = 0; i < 3; i++) {
+            mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("campaign1"));
+        }
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("campaign2"));
+
+        clock.advance(999);
+        aggregator.flushExpired();
+        Mockito.verify(mixpanel, Mockito.never()).track(Mockito.anyString(), Mockito.<JSONObject>any());
+
+        clock.advance(1);
+        aggregator.flushExpired();
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_display"), MixpanelDispatcherTest.mapEq(expected("campaign1", 3)));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_display"), MixpanelDispatcherTest.mapEq(expected("campaign2", 1)));
+        Assert.assertEquals(0, aggregator.getAggregateCount());
+    }
+
+    @Test
+    public void testAggregateIsSentWhenFull() {
+        EventAggregator aggregator = enableAggregation(1000, 2, false);
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("campaign1"));
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("campaign1"));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_display"), MixpanelDispatcherTest.mapEq(expected("campaign1", 2)));
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("campaign1"));
+        Assert.assertEquals(1, aggregator.getAggregateCount());
+    }
+
+    @Test
+    public void testOpensAreSentRightAway() {
+        enableAggregation(1000, 100, false);
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload("campaign1"));
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISMISS, payload("campaign1"));
+
+        Map<String, Object> expected = expected("campaign1", 1);
+        expected.remove(EventAggregator.COUNT_KEY);
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_open"), MixpanelDispatcherTest.mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_dismiss"), MixpanelDispatcherTest.mapEq(expected));
+    }
+
+    @Test
+    public void testDismissAggregation() {
+        EventAggregator aggregator = enableAggregation(1000, 100, true);
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISMISS, payload("campaign1"));
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload("campaign1"));
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISMISS, payload("campaign1"));
+        Assert.assertEquals(2, aggregator.getAggregateCount());
+
+        aggregator.flushAll();
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_dismiss"), MixpanelDispatcherTest.mapEq(expected("campaign1", 2)));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_display"), MixpanelDispatcherTest.mapEq(expected("campaign1", 1)));
+    }
+
+    private EventAggregator enableAggregation(long windowMillis, int maxCount, boolean includeDismiss) {
+        EventAggregator aggregator = new EventAggregator(mixpanelDispatcher, windowMillis, maxCount,
+                includeDismiss, clock, null);
+        mixpanelDispatcher.aggregator = aggregator;
+        return aggregator;
+    }
+
+    private static TestEventPayload payload(String campaign) {
+        return new TestEventPayload(null,
+                "https://batch.com?utm_campaign=" + campaign,
+                new HashMap<>());
+    }
+
+    private static Map<String, Object> expected(String campaign, int count) {
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("$source", "batch");
+        expected.put("utm_medium", "push");
+        expected.put("utm_campaign", campaign);
+        expected.put(EventAggregator.COUNT_KEY, count);
+        return expected;
+    }
+}
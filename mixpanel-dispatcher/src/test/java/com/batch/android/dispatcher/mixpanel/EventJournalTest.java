@@ -0,0 +1,230 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import com.batch.android.Batch;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test the memory-mapped event journal, including its recovery after a crash
+ */
+public class EventJournalTest {
+
+    private static final int CAPACITY = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPendingRecordsAreRecovered() throws IOException {
+        File file = folder.newFile("journal");
+        EventJournal journal = EventJournal.open(file, CAPACITY);
+        Assert.assertTrue(journal.takeRecoveredRecords().isEmpty());
+
+        int delivered = journal.append(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, params("first"));
+        journal.append(Batch.EventDispatcher.Type.MESSAGING_CLICK, params("second"));
+        journal.markDelivered(delivered);
+        Assert.assertEquals(1, journal.getPendingCount());
+        journal.close();
+
+        journal = EventJournal.open(file, CAPACITY);
+        List<EventJournal.Record> records = journal.takeRecoveredRecords();
+        Assert.assertEquals(1, records.size());
+        Assert.assertEquals(Batch.EventDispatcher.Type.MESSAGING_CLICK, records.get(0).type);
+        Assert.assertEquals(params("second"), records.get(0).params);
+
+        // Recovered records stay in the journal until they are delivered
+        Assert.assertTrue(journal.takeRecoveredRecords().isEmpty());
+        journal.close();
+        journal = EventJournal.open(file, CAPACITY);
+        records = journal.takeRecoveredRecords();
+        Assert.assertEquals(1, records.size());
+
+        journal.markDelivered(records.get(0).id);
+        journal.close();
+        journal = EventJournal.open(file, CAPACITY);
+        Assert.assertTrue(journal.takeRecoveredRecords().isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void testCrashBeforeRecordIsCommitted() throws IOException {
+        File file = folder.newFile("journal");
+        EventJournal journal = EventJournal.open(file, CAPACITY);
+        journal.append(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, params("first"));
+        journal.append(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, params("second"));
+        journal.close();
+
+        // The process got killed after writing the second record's body, but before its status
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(recordOffset(raf, 1));
+        raf.write(0);
+        raf.close();
+
+        journal = EventJournal.open(file, CAPACITY);
+        List<EventJournal.Record> records = journal.takeRecoveredRecords();
+        Assert.assertEquals(1, records.size());
+        Assert.assertEquals(params("first"), records.get(0).params);
+
+        // The torn record is overwritten, and the journal is still readable afterwards
+        journal.append(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, params("third"));
+        journal.close();
+        journal = EventJournal.open(file, CAPACITY);
+        records = journal.takeRecoveredRecords();
+        Assert.assertEquals(2, records.size());
+        Assert.assertEquals(params("first"), records.get(0).params);
+        Assert.assertEquals(params("third"), records.get(1).params);
+        journal.close();
+    }
+
+    @Test
+    public void testCrashPartwayThroughRecordBody() throws IOException {
+        File file = folder.newFile("journal");
+        EventJournal journal = EventJournal.open(file, CAPACITY);
+        journal.append(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, params("first"));
+        journal.append(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, params("second"));
+        journal.close();
+
+        // Only the beginning of the second record made it to the disk
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long secondRecord = recordOffset(raf, 1);
+        raf.seek(secondRecord + 5);
+        int length = raf.readInt();
+        raf.seek(secondRecord + 13 + length / 2);
+        raf.write(new byte[length - length / 2]);
+        raf.close();
+
+        journal = EventJournal.open(file, CAPACITY);
+        List<EventJournal.Record> records = journal.takeRecoveredRecords();
+        Assert.assertEquals(1, records.size());
+        Assert.assertEquals(params("first"), records.get(0).params);
+
+        journal.append(Batch.EventDispatcher.Type.NOTIFICATION_DISMISS, params("third"));
+        journal.close();
+        journal = EventJournal.open(file, CAPACITY);
+        records = journal.takeRecoveredRecords();
+        Assert.assertEquals(2, records.size());
+        Assert.assertEquals(Batch.EventDispatcher.Type.NOTIFICATION_DISMISS, records.get(1).type);
+        journal.close();
+    }
+
+    @Test
+    public void testCompactionKeepsPendingRecords() throws IOException {
+        File file = folder.newFile("journal");
+        int capacity = 256;
+        EventJournal journal = EventJournal.open(file, capacity);
+        int pending = journal.append(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, params("pending"));
+        Assert.assertNotEquals(EventJournal.NO_RECORD, pending);
+
+        for (int i = 0; i < 100; i++) {
+            int id = journal.append(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, params("delivered" + i));
+            Assert.assertNotEquals(EventJournal.NO_RECORD, id);
+            journal.markDelivered(id);
+        }
+        Assert.assertEquals(1, journal.getPendingCount());
+        Assert.assertEquals(capacity, file.length());
+        journal.close();
+
+        journal = EventJournal.open(file, capacity);
+        List<EventJournal.Record> records = journal.takeRecoveredRecords();
+        Assert.assertEquals(1, records.size());
+        Assert.assertEquals(params("pending"), records.get(0).params);
+        journal.close();
+    }
+
+    @Test
+    public void testFullJournal() throws IOException {
+        File file = folder.newFile("journal");
+        EventJournal journal = EventJournal.open(file, 128);
+        int appended = 0;
+        while (journal.append(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, params("pending")) != EventJournal.NO_RECORD) {
+            appended++;
+        }
+        Assert.assertTrue(appended > 0);
+        Assert.assertEquals(appended, journal.getPendingCount());
+        journal.close();
+
+        // Shrinking the journal keeps the most recent records
+        journal = EventJournal.open(file, 64);
+        Assert.assertEquals(64, file.length());
+        Assert.assertEquals(1, journal.getPendingCount());
+        journal.close();
+    }
+
+    @Test
+    public void testFailedCompactionKeepsTheJournal() throws IOException {
+        File file = folder.newFile("journal");
+        EventJournal journal = EventJournal.open(file, 256);
+        List<Integer> ids = new ArrayList<>();
+        int id;
+        while ((id = journal.append(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, params("pending"))) != EventJournal.NO_RECORD) {
+            ids.add(id);
+        }
+        Assert.assertTrue(ids.size() > 1);
+        journal.markDelivered(ids.remove(0));
+
+        // A non-empty directory can't be replaced by the compacted file
+        Assert.assertTrue(file.delete());
+        Assert.assertTrue(new File(file, "child").mkdirs());
+        Assert.assertEquals(EventJournal.NO_RECORD, journal.append(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, params("compacted")));
+        Assert.assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        // The journal is still mapped, and its records are still tracked
+        Assert.assertEquals(ids.size(), journal.getPendingCount());
+        for (int pending : ids) {
+            journal.markDelivered(pending);
+        }
+        Assert.assertEquals(0, journal.getPendingCount());
+        Assert.assertNotEquals(EventJournal.NO_RECORD, journal.append(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, params("cleared")));
+        journal.close();
+    }
+
+    @Test
+    public void testCustomKeysAndValueTypes() throws IOException {
+        File file = folder.newFile("journal");
+        EventJournal journal = EventJournal.open(file, CAPACITY);
+        Map<String, Object> params = params("campaign");
+        params.put("batch_tracking_id", null);
+        params.put("custom_\u00e9", "\u20ac");
+        params.put(EventAggregator.COUNT_KEY, 42);
+        params.put("negative", -3);
+        params.put("batch_sample_rate", 0.25);
+        journal.append(Batch.EventDispatcher.Type.MESSAGING_WEBVIEW_CLICK, params);
+        journal.close();
+
+        journal = EventJournal.open(file, CAPACITY);
+        List<EventJournal.Record> records = journal.takeRecoveredRecords();
+        Assert.assertEquals(params, records.get(0).params);
+        journal.close();
+    }
+
+    /**
+     * Find where a record starts, by walking the record headers
+     */
+    private static long recordOffset(RandomAccessFile raf, int index) throws IOException {
+        long offset = 4;
+        for (int i = 0; i < index; i++) {
+            raf.seek(offset + 5);
+            offset += 13 + raf.readInt();
+        }
+        return offset;
+    }
+
+    private static Map<String, Object> params(String campaign) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("$source", "batch");
+        params.put("utm_medium", "push");
+        params.put("utm_campaign", campaign);
+        return params;
+    }
+}
@@ -0,0 +1,153 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import android.os.Build;
+
+import com.batch.android.Batch;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test the configurable mapping of Batch events to Mixpanel events
+ */
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+@PrepareForTest(MixpanelAPI.class)
+public class EventMappingTest {
+    private static final String DEEPLINK = "https://batch.com?utm_source=batchsdk&utm_medium=push-batch&utm_campaign=yoloswag&utm_content=button1";
+
+    private MixpanelAPI mixpanel;
+    private MixpanelDispatcher mixpanelDispatcher;
+
+    @Before
+    public void setUp() {
+        mixpanel = PowerMockito.mock(MixpanelAPI.class);
+
+        mixpanelDispatcher = new MixpanelDispatcher();
+        mixpanelDispatcher.mixpanelInstance = mixpanel;
+    }
+
+    @Test
+    public void testEventNameAndRenames() {
+        mixpanelDispatcher.eventMapping = new EventMapping.Builder()
+                .setEventName(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, "push_open")
+                .setDeeplinkKeys(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, "utm_campaign", "utm_content")
+                .renameProperty(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, "utm_campaign", "campaign")
+                .renameProperty("utm_campaign", "ignored")
+                .renameProperty("$source", "integration")
+                .build();
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, new TestEventPayload(null, DEEPLINK, new HashMap<>()));
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("integration", "batch");
+        expected.put("utm_medium", "push");
+        expected.put("campaign", "yoloswag");
+        expected.put("utm_content", "button1");
+        Mockito.verify(mixpanel).track(Mockito.eq("push_open"), MixpanelDispatcherTest.mapEq(expected));
+    }
+
+    @Test
+    public void testSuppressedTypeIsNotParsed() {
+        mixpanelDispatcher.eventMapping = new EventMapping.Builder()
+                .suppress(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY)
+                .build();
+
+        Batch.EventDispatcher.Payload payload = Mockito.mock(Batch.EventDispatcher.Payload.class);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload);
+
+        Mockito.verifyNoMoreInteractions(payload);
+        Mockito.verify(mixpanel, Mockito.never()).track(Mockito.anyString(), Mockito.<JSONObject>any());
+    }
+
+    @Test
+    public void testCustomPayloadKeys() {
+        mixpanelDispatcher.eventMapping = new EventMapping.Builder()
+                .setDeeplinkKeys(Batch.EventDispatcher.Type.MESSAGING_CLICK)
+                .setCustomPayloadKeys(Batch.EventDispatcher.Type.MESSAGING_CLICK, "promo_code", "utm_source")
+                .renameProperty("promo_code", "promo")
+                .build();
+
+        Map<String, String> customPayload = new HashMap<>();
+        customPayload.put("promo_code", "SUMMER");
+        customPayload.put("utm_source", "newsletter");
+        customPayload.put("utm_campaign", "ignored");
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_CLICK, new TestEventPayload("tracking_id", DEEPLINK, customPayload));
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("$source", "batch");
+        expected.put("utm_medium", "in-app");
+        expected.put("utm_campaign", "tracking_id");
+        expected.put("batch_tracking_id", "tracking_id");
+        expected.put("utm_source", "newsletter");
+        expected.put("promo", "SUMMER");
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_in_app_click"), MixpanelDispatcherTest.mapEq(expected));
+    }
+
+    @Test
+    public void testFromJson() throws JSONException {
+        mixpanelDispatcher.eventMapping = EventMapping.fromJson("{" +
+                "\"events\": {" +
+                "  \"NOTIFICATION_DISPLAY\": {\"suppress\": true}," +
+                "  \"NOTIFICATION_OPEN\": {" +
+                "    \"name\": \"push_open\"," +
+                "    \"deeplink_keys\": [\"utm_campaign\"]," +
+                "    \"custom_payload_keys\": []," +
+                "    \"rename\": {\"utm_campaign\": \"campaign\"}" +
+                "  }" +
+                "}," +
+                "\"rename\": {\"$source\": \"integration\"}" +
+                "}");
+
+        TestEventPayload payload = new TestEventPayload(null, DEEPLINK, new HashMap<>());
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("integration", "batch");
+        expected.put("utm_medium", "push");
+        expected.put("campaign", "yoloswag");
+        Mockito.verify(mixpanel).track(Mockito.eq("push_open"), MixpanelDispatcherTest.mapEq(expected));
+        Mockito.verifyNoMoreInteractions(mixpanel);
+    }
+
+    @Test
+    public void testPriorityFromJson() throws JSONException {
+        EventMapping mapping = EventMapping.fromJson("{\"events\": {\"NOTIFICATION_DISPLAY\": {\"priority\": \"HIGH\"}}}");
+
+        Assert.assertEquals(EventPriority.HIGH, mapping.getPlan(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY).priority);
+        Assert.assertEquals(EventPriority.HIGH, mapping.getPlan(Batch.EventDispatcher.Type.NOTIFICATION_OPEN).priority);
+        Assert.assertEquals(EventPriority.NORMAL, mapping.getPlan(Batch.EventDispatcher.Type.MESSAGING_SHOW).priority);
+    }
+
+    @Test
+    public void testInvalidJson() {
+        String[] invalidMappings = {
+                "{\"events\": {\"UNKNOWN_TYPE\": {}}}",
+                "{\"events\": {\"NOTIFICATION_OPEN\": {\"deeplink_keys\": [\"utm_term\"]}}}",
+                "{\"events\": {\"NOTIFICATION_OPEN\": {\"priority\": \"URGENT\"}}}",
+                "not json"
+        };
+        for (String mapping : invalidMappings) {
+            try {
+                EventMapping.fromJson(mapping);
+                Assert.fail("Mapping should be invalid: " + mapping);
+            } catch (JSONException expected) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import android.os.Build;
+
+import com.batch.android.Batch;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test the sampling and rate limiting of events
+ */
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+@PrepareForTest(MixpanelAPI.class)
+public class EventThrottleTest {
+    private MixpanelAPI mixpanel;
+    private FakeClock clock;
+    private MixpanelDispatcher mixpanelDispatcher;
+
+    @Before
+    public void setUp() {
+        mixpanel = PowerMockito.mock(MixpanelAPI.class);
+        clock = new FakeClock();
+
+        mixpanelDispatcher = new MixpanelDispatcher(clock);
+        mixpanelDispatcher.mixpanelInstance = mixpanel;
+    }
+
+    @Test
+    public void testRateLimit() {
+        mixpanelDispatcher.throttle.setRateLimit(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, 2, 1);
+
+        for (int i = 0; i < 3; i++) {
+            mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload());
+        }
+        // Other types aren't limited
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload());
+        assertTracked("batch_notification_display", 2);
+        assertTracked("batch_notification_open", 1);
+
+        // Half a token isn't enough
+        clock.advance(500);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload());
+        assertTracked("batch_notification_display", 2);
+
+        clock.advance(500);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload());
+        assertTracked("batch_notification_display", 3);
+
+        // The bucket doesn't refill above the burst
+        clock.advance(60000);
+        for (int i = 0; i < 5; i++) {
+            mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload());
+        }
+        assertTracked("batch_notification_display", 5);
+
+        ThrottleStats stats = mixpanelDispatcher.throttle.getStats();
+        Assert.assertEquals(5, stats.getRateLimitedCount(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY));
+        Assert.assertEquals(5, stats.getRejectedCount(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY));
+        Assert.assertEquals(0, stats.getRejectedCount(Batch.EventDispatcher.Type.NOTIFICATION_OPEN));
+
+        // Removing the limit
+        mixpanelDispatcher.throttle.setRateLimit(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, 0, 0);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload());
+        assertTracked("batch_notification_display", 6);
+    }
+
+    @Test
+    public void testRejectedEventsAreNotParsed() {
+        mixpanelDispatcher.throttle.setSampleRate(Batch.EventDispatcher.Type.MESSAGING_WEBVIEW_CLICK, 0);
+
+        Batch.EventDispatcher.Payload payload = Mockito.mock(Batch.EventDispatcher.Payload.class);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_WEBVIEW_CLICK, payload);
+
+        Mockito.verifyNoMoreInteractions(payload);
+        Mockito.verifyNoMoreInteractions(mixpanel);
+        Assert.assertEquals(1, mixpanelDispatcher.throttle.getStats().getSampledOutCount(Batch.EventDispatcher.Type.MESSAGING_WEBVIEW_CLICK));
+    }
+
+    @Test
+    public void testSampleRateIsAttached() {
+        mixpanelDispatcher.throttle.setSampleRate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, 0.5);
+
+        int events = 2000;
+        for (int i = 0; i < events; i++) {
+            mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload());
+        }
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("$source", "batch");
+        expected.put("utm_medium", "push");
+        expected.put("utm_campaign", "campaign");
+        expected.put("batch_sample_rate", 0.5);
+        long sampledOut = mixpanelDispatcher.throttle.getStats().getSampledOutCount(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY);
+        Assert.assertTrue(sampledOut > events * 0.4 && sampledOut < events * 0.6);
+        Mockito.verify(mixpanel, Mockito.times((int) (events - sampledOut)))
+                .track(Mockito.eq("batch_notification_display"), MixpanelDispatcherTest.mapEq(expected));
+    }
+
+    @Test
+    public void testInvalidLimits() {
+        try {
+            mixpanelDispatcher.throttle.setSampleRate(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, 1.5);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+        try {
+            mixpanelDispatcher.throttle.setRateLimit(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, -1, 1);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+    }
+
+    private void assertTracked(String eventName, int times) {
+        Mockito.verify(mixpanel, Mockito.times(times))
+                .track(Mockito.eq(eventName), Mockito.<JSONObject>any());
+    }
+
+    private static TestEventPayload payload() {
+        return new TestEventPayload(null, "https://batch.com?utm_campaign=campaign", new HashMap<>());
+    }
+}
@@ -0,0 +1,18 @@
+package com.batch.android.dispatcher.mixpanel;
+
+/**
+ * Clock only moving forward when told to
+ */
+class FakeClock implements Clock {
+
+    private long now = 0;
+
+    @Override
+    public synchronized long elapsedMillis() {
+        return now;
+    }
+
+    synchronized void advance(long millis) {
+        now += millis;
+    }
+}
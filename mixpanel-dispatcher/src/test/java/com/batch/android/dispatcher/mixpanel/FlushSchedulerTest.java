@@ -0,0 +1,158 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import android.os.Build;
+
+import com.batch.android.Batch;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+
+/**
+ * Test the adaptive flushes of the MixpanelAPI instances
+ */
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+@PrepareForTest(MixpanelAPI.class)
+public class FlushSchedulerTest {
+    private MixpanelAPI mixpanel;
+    private MixpanelDispatcher mixpanelDispatcher;
+    private FakeClock clock;
+    private FlushScheduler flushScheduler;
+
+    @Before
+    public void setUp() {
+        mixpanel = PowerMockito.mock(MixpanelAPI.class);
+        clock = new FakeClock();
+
+        mixpanelDispatcher = new MixpanelDispatcher();
+        mixpanelDispatcher.mixpanelInstance = mixpanel;
+        flushScheduler = new FlushScheduler(mixpanelDispatcher, 1000, 60000, 10000, clock, null);
+        mixpanelDispatcher.flushScheduler = flushScheduler;
+    }
+
+    @Test
+    public void testHighPriorityEventIsFlushedSoon() {
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload());
+        Assert.assertEquals(1000, flushScheduler.getDeadline());
+
+        clock.advance(999);
+        Assert.assertFalse(flushScheduler.flushIfDue());
+        Mockito.verify(mixpanel, Mockito.never()).flush();
+
+        clock.advance(1);
+        Assert.assertTrue(flushScheduler.flushIfDue());
+        Mockito.verify(mixpanel).flush();
+        Assert.assertEquals(-1, flushScheduler.getDeadline());
+
+        // Nothing left to flush
+        clock.advance(60000);
+        Assert.assertFalse(flushScheduler.flushIfDue());
+        Assert.assertEquals(1, flushScheduler.getFlushCount());
+    }
+
+    @Test
+    public void testLowPriorityEventsAreMerged() {
+        for (int i = 0; i < 5; i++) {
+            mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload());
+            clock.advance(10000);
+        }
+        // Later events don't push the deadline back
+        Assert.assertEquals(60000, flushScheduler.getDeadline());
+        Assert.assertFalse(flushScheduler.flushIfDue());
+
+        clock.advance(10000);
+        Assert.assertTrue(flushScheduler.flushIfDue());
+        Mockito.verify(mixpanel).flush();
+    }
+
+    @Test
+    public void testHighPriorityEventBringsFlushForward() {
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload());
+        clock.advance(5000);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_CLICK, payload());
+        Assert.assertEquals(6000, flushScheduler.getDeadline());
+
+        clock.advance(1000);
+        Assert.assertTrue(flushScheduler.flushIfDue());
+        Mockito.verify(mixpanel).flush();
+    }
+
+    @Test
+    public void testMinimumIntervalBetweenFlushes() {
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload());
+        clock.advance(1000);
+        Assert.assertTrue(flushScheduler.flushIfDue());
+
+        // The next flush waits for the minimum interval, and merges the opens
+        clock.advance(2000);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload());
+        clock.advance(2000);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload());
+        Assert.assertEquals(11000, flushScheduler.getDeadline());
+
+        clock.advance(5999);
+        Assert.assertFalse(flushScheduler.flushIfDue());
+        clock.advance(1);
+        Assert.assertTrue(flushScheduler.flushIfDue());
+        Mockito.verify(mixpanel, Mockito.times(2)).flush();
+
+        // Once the interval elapsed, the usual delay applies
+        clock.advance(20000);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload());
+        Assert.assertEquals(32000, flushScheduler.getDeadline());
+    }
+
+    @Test
+    public void testPriorityFollowsEventMapping() {
+        mixpanelDispatcher.eventMapping = new EventMapping.Builder()
+                .setPriority(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, EventPriority.LOW)
+                .build();
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload());
+        Assert.assertEquals(60000, flushScheduler.getDeadline());
+    }
+
+    @Test
+    public void testAllInstancesAreFlushed() {
+        MixpanelAPI other = PowerMockito.mock(MixpanelAPI.class);
+        mixpanelDispatcher.addTarget(new MixpanelTarget(other, null));
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload());
+        clock.advance(1000);
+        flushScheduler.flushIfDue();
+        Mockito.verify(mixpanel).flush();
+        Mockito.verify(other).flush();
+    }
+
+    @Test
+    public void testPendingFlushIsRunOnShutdown() {
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload());
+        flushScheduler.shutdown();
+        Mockito.verify(mixpanel).flush();
+        Assert.assertEquals(-1, flushScheduler.getDeadline());
+    }
+
+    @Test
+    public void testInvalidDelays() {
+        try {
+            new FlushScheduler(mixpanelDispatcher, -1, 1000, 1000, clock, null);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+    }
+
+    private static TestEventPayload payload() {
+        return new TestEventPayload(null, "https://batch.com?utm_campaign=campaign", new HashMap<>());
+    }
+}
@@ -3,27 +3,39 @@ package com.batch.android.dispatcher.mixpanel;
 import android.os.Build;
 
 import com.batch.android.Batch;
-import com.batch.android.BatchMessage;
-import com.batch.android.BatchPushPayload;
 import com.mixpanel.android.mpmetrics.MixpanelAPI;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.powermock.api.mockito.PowerMockito;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 
-import androidx.annotation.NonNull;
-import androidx.annotation.Nullable;
 
 /**
  * Test the Mixpanel Event Dispatcher implementation
@@ -35,6 +47,9 @@ public class MixpanelDispatcherTest {
     private MixpanelAPI mixpanel;
     private MixpanelDispatcher mixpanelDispatcher;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Before
     public void setUp() {
         mixpanel = PowerMockito.mock(MixpanelAPI.class);
@@ -58,7 +73,7 @@ public class MixpanelDispatcherTest {
         expected.put("utm_content", "button1");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_notification_display"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_display"), mapEq(expected));
     }
 
     @Test
@@ -73,7 +88,7 @@ public class MixpanelDispatcherTest {
         expected.put("$source", "batch");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_notification_display"), Mockito.eq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_display"), mapEq(expected));
     }
 
     @Test
@@ -91,7 +106,7 @@ public class MixpanelDispatcherTest {
         expected.put("utm_content", "button1");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_notification_display"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_display"), mapEq(expected));
     }
 
     @Test
@@ -109,7 +124,7 @@ public class MixpanelDispatcherTest {
         expected.put("utm_content", "notif001");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_notification_open"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_open"), mapEq(expected));
     }
 
     @Test
@@ -127,7 +142,7 @@ public class MixpanelDispatcherTest {
         expected.put("utm_content", "notif001");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_notification_open"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_open"), mapEq(expected));
     }
 
     @Test
@@ -149,7 +164,7 @@ public class MixpanelDispatcherTest {
         expected.put("utm_campaign", "heinhein");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_notification_display"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_display"), mapEq(expected));
     }
 
     @Test
@@ -169,7 +184,7 @@ public class MixpanelDispatcherTest {
         expected.put("utm_content", "notif001");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_notification_open"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_open"), mapEq(expected));
     }
 
     @Test
@@ -186,7 +201,7 @@ public class MixpanelDispatcherTest {
         expected.put("utm_campaign", "yoloswag");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_notification_open"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_open"), mapEq(expected));
     }
 
     @Test
@@ -203,7 +218,7 @@ public class MixpanelDispatcherTest {
         expected.put("utm_campaign", "yoloswag");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISMISS, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_notification_dismiss"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_dismiss"), mapEq(expected));
     }
 
     @Test
@@ -220,7 +235,7 @@ public class MixpanelDispatcherTest {
         expected.put("batch_tracking_id", null);
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_SHOW, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_in_app_show"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_in_app_show"), mapEq(expected));
     }
 
     @Test
@@ -238,7 +253,7 @@ public class MixpanelDispatcherTest {
         expected.put("utm_content", "jesuisuncontent");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_SHOW, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_in_app_show"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_in_app_show"), mapEq(expected));
     }
 
     @Test
@@ -256,7 +271,7 @@ public class MixpanelDispatcherTest {
         expected.put("utm_content", "jesuisuncontent");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_SHOW, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_in_app_show"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_in_app_show"), mapEq(expected));
     }
 
     @Test
@@ -273,7 +288,7 @@ public class MixpanelDispatcherTest {
         expected.put("batch_tracking_id", "jesuisunid");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_CLICK, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_in_app_click"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_in_app_click"), mapEq(expected));
     }
 
     @Test
@@ -291,7 +306,7 @@ public class MixpanelDispatcherTest {
         expected.put("utm_content", "jesuisuncontent");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_CLOSE, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_in_app_close"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_in_app_close"), mapEq(expected));
     }
 
     @Test
@@ -309,7 +324,7 @@ public class MixpanelDispatcherTest {
         expected.put("utm_content", "jesuisuncontent00587");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_SHOW, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_in_app_show"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_in_app_show"), mapEq(expected));
     }
 
     @Test
@@ -326,7 +341,7 @@ public class MixpanelDispatcherTest {
         expected.put("batch_tracking_id", "jesuisunid");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_CLOSE_ERROR, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_in_app_close_error"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_in_app_close_error"), mapEq(expected));
     }
 
     @Test
@@ -345,7 +360,7 @@ public class MixpanelDispatcherTest {
         expected.put("batch_webview_analytics_id", "jesuisunbouton");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_WEBVIEW_CLICK, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_in_app_webview_click"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_in_app_webview_click"), mapEq(expected));
     }
 
     @Test
@@ -363,7 +378,7 @@ public class MixpanelDispatcherTest {
         expected.put("utm_content", "jesuisuncontent002");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_AUTO_CLOSE, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_in_app_auto_close"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_in_app_auto_close"), mapEq(expected));
     }
 
     @Test
@@ -381,89 +396,363 @@ public class MixpanelDispatcherTest {
         expected.put("utm_content", "jesuisuncontent");
 
         mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_CLICK, payload);
-        Mockito.verify(mixpanel).trackMap(Mockito.eq("batch_in_app_click"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_in_app_click"), mapEq(expected));
     }
 
-    private static class TestEventPayload implements Batch.EventDispatcher.Payload {
+    @Test
+    public void testDeeplinkCache() {
+        mixpanelDispatcher.deeplinkCache = new DeeplinkCache(1);
 
-        private String trackingId;
-        private String deeplink;
-        private String webViewAnalyticsID;
-        private Map<String, String> customPayload;
+        TestEventPayload payload = new TestEventPayload(null,
+                "  https://batch.com?utm_source=batchsdk&utm_campaign=yoloswag#utm_content=notif001",
+                new HashMap<>());
+        TestEventPayload otherPayload = new TestEventPayload(null,
+                "https://batch.com?utm_source=other",
+                new HashMap<>());
 
-        TestEventPayload(String trackingId,
-                         String deeplink,
-                         Map<String, String> customPayload)
-        {
-            this(trackingId, null, deeplink, customPayload);
-        }
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("$source", "batch");
+        expected.put("utm_medium", "push");
+        expected.put("utm_source", "batchsdk");
+        expected.put("utm_campaign", "yoloswag");
+        expected.put("utm_content", "notif001");
 
-        TestEventPayload(String trackingId,
-                         String webViewAnalyticsID,
-                         String deeplink,
-                         Map<String, String> customPayload)
-        {
-            this.trackingId = trackingId;
-            this.webViewAnalyticsID = webViewAnalyticsID;
-            this.deeplink = deeplink;
-            this.customPayload = customPayload;
-        }
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_display"), mapEq(expected));
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_open"), mapEq(expected));
 
-        @Nullable
-        @Override
-        public String getTrackingId()
-        {
-            return trackingId;
-        }
+        DeeplinkCacheStats stats = mixpanelDispatcher.deeplinkCache.getStats();
+        Assert.assertEquals(1, stats.getHits());
+        Assert.assertEquals(1, stats.getMisses());
+        Assert.assertEquals(0, stats.getEvictions());
 
-        @Nullable
-        @Override
-        public String getWebViewAnalyticsID() {
-            return webViewAnalyticsID;
-        }
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, otherPayload);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
+        stats = mixpanelDispatcher.deeplinkCache.getStats();
+        Assert.assertEquals(1, stats.getHits());
+        Assert.assertEquals(3, stats.getMisses());
+        Assert.assertEquals(2, stats.getEvictions());
+        Assert.assertEquals(1, stats.getSize());
+    }
 
-        @Nullable
-        @Override
-        public String getDeeplink()
-        {
-            return deeplink;
-        }
+    @Test
+    public void testPreInitBufferIsReplayedInOrder() {
+        MixpanelDispatcher dispatcher = new MixpanelDispatcher();
+
+        dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN,
+                new TestEventPayload(null, "https://batch.com?utm_campaign=first", new HashMap<>()));
+        dispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_SHOW,
+                new TestEventPayload("second", null, new HashMap<>()));
+        Mockito.verify(mixpanel, Mockito.never()).track(Mockito.anyString(), Mockito.<JSONObject>any());
+
+        dispatcher.setInstance(mixpanel);
+
+        Map<String, Object> expectedOpen = new HashMap<>();
+        expectedOpen.put("$source", "batch");
+        expectedOpen.put("utm_medium", "push");
+        expectedOpen.put("utm_campaign", "first");
+
+        Map<String, Object> expectedShow = new HashMap<>();
+        expectedShow.put("$source", "batch");
+        expectedShow.put("utm_medium", "in-app");
+        expectedShow.put("utm_campaign", "second");
+        expectedShow.put("batch_tracking_id", "second");
+
+        InOrder inOrder = Mockito.inOrder(mixpanel);
+        inOrder.verify(mixpanel).track(Mockito.eq("batch_notification_open"), mapEq(expectedOpen));
+        inOrder.verify(mixpanel).track(Mockito.eq("batch_in_app_show"), mapEq(expectedShow));
+        Assert.assertEquals(0, dispatcher.preInitBuffer.getEventCount());
+
+        // Events are sent directly once the instance is set
+        dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN,
+                new TestEventPayload(null, "https://batch.com?utm_campaign=first", new HashMap<>()));
+        Mockito.verify(mixpanel, Mockito.times(2)).track(Mockito.eq("batch_notification_open"), mapEq(expectedOpen));
+    }
 
-        @Nullable
-        @Override
-        public String getCustomValue(@NonNull String key)
-        {
-            if (customPayload == null) {
+    @Test
+    public void testEventsDispatchedDuringReplayAreSentAfterIt() throws InterruptedException {
+        final MixpanelDispatcher dispatcher = new MixpanelDispatcher();
+        dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, campaignPayload("buffered1"));
+        dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, campaignPayload("buffered2"));
+
+        // A live event is dispatched from another thread while the first buffered event is being sent
+        final Thread live = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, campaignPayload("live"));
+            }
+        });
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                JSONObject params = invocation.getArgument(1);
+                if ("buffered1".equals(params.opt("utm_campaign"))) {
+                    live.start();
+                    live.join(100);
+                }
                 return null;
             }
-            return customPayload.get(key);
+        }).when(mixpanel).track(Mockito.anyString(), Mockito.<JSONObject>any());
+
+        dispatcher.setInstance(mixpanel);
+        live.join(1000);
+
+        ArgumentCaptor<JSONObject> captor = ArgumentCaptor.forClass(JSONObject.class);
+        Mockito.verify(mixpanel, Mockito.times(3)).track(Mockito.eq("batch_notification_open"), captor.capture());
+        List<String> campaigns = new ArrayList<>();
+        for (JSONObject properties : captor.getAllValues()) {
+            campaigns.add(properties.optString("utm_campaign"));
         }
+        Assert.assertEquals(Arrays.asList("buffered1", "buffered2", "live"), campaigns);
+    }
 
-        @Override
-        public boolean isPositiveAction() {
-            return false;
+    @Test
+    public void testPreInitBufferLimits() {
+        MixpanelDispatcher dispatcher = new MixpanelDispatcher();
+        dispatcher.preInitBuffer = new PreInitBuffer(2, 1024);
+
+        for (int i = 0; i < 3; i++) {
+            dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY,
+                    new TestEventPayload(null, "https://batch.com?utm_campaign=" + i, new HashMap<>()));
         }
+        Assert.assertEquals(2, dispatcher.preInitBuffer.getEventCount());
+        Assert.assertEquals(1, dispatcher.preInitBuffer.getDroppedCount());
+
+        // An event larger than the remaining budget is dropped
+        dispatcher.preInitBuffer = new PreInitBuffer(10, 200);
+        dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY,
+                new TestEventPayload(null, "https://batch.com?utm_campaign=small", new HashMap<>()));
+        dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY,
+                new TestEventPayload(null, "https://batch.com?utm_campaign=" + new String(new char[100]).replace('\0', 'a'), new HashMap<>()));
+        Assert.assertEquals(1, dispatcher.preInitBuffer.getEventCount());
+        Assert.assertEquals(1, dispatcher.preInitBuffer.getDroppedCount());
+        Assert.assertTrue(dispatcher.preInitBuffer.getBytes() <= 200);
+
+        dispatcher.setInstance(mixpanel);
+        Mockito.verify(mixpanel, Mockito.times(1)).track(Mockito.eq("batch_notification_display"), Mockito.<JSONObject>any());
+    }
 
-        @Nullable
-        @Override
-        public BatchMessage getMessagingPayload()
-        {
-            return null;
+    @Test
+    public void testEventsDroppedByNewBufferLimitsAreCounted() throws IOException {
+        MixpanelDispatcher dispatcher = new MixpanelDispatcher();
+        AtomicMetricsRecorder recorder = new AtomicMetricsRecorder();
+        dispatcher.metrics = recorder;
+        dispatcher.setJournal(EventJournal.open(folder.newFile("journal"), 4096));
+        for (int i = 0; i < 3; i++) {
+            dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, campaignPayload("campaign" + i));
         }
 
-        @Nullable
-        @Override
-        public BatchPushPayload getPushPayload()
-        {
-            return null;
+        dispatcher.setPreInitBuffer(new PreInitBuffer(1, 1024));
+        Assert.assertEquals(1, dispatcher.preInitBuffer.getEventCount());
+        Assert.assertEquals(2, recorder.getSnapshot().getDroppedCount(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY));
+        Assert.assertEquals(1, dispatcher.journal.getPendingCount());
+
+        // Disabling the buffer drops the remaining events
+        dispatcher.setPreInitBuffer(null);
+        Assert.assertEquals(3, recorder.getSnapshot().getDroppedCount(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY));
+        Assert.assertEquals(0, dispatcher.journal.getPendingCount());
+
+        dispatcher.setInstance(mixpanel);
+        Mockito.verify(mixpanel, Mockito.never()).track(Mockito.anyString(), Mockito.<JSONObject>any());
+        dispatcher.journal.close();
+    }
+
+    @Test
+    public void testJournalIsReplayedOnNextLaunch() throws IOException {
+        File journalFile = folder.newFile("journal");
+
+        // The process gets killed before the instance is set
+        MixpanelDispatcher killedDispatcher = new MixpanelDispatcher();
+        killedDispatcher.setJournal(EventJournal.open(journalFile, 4096));
+        killedDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN,
+                new TestEventPayload(null, "https://batch.com?utm_campaign=yoloswag", new HashMap<>()));
+        killedDispatcher.journal.close();
+
+        MixpanelDispatcher dispatcher = new MixpanelDispatcher();
+        dispatcher.setJournal(EventJournal.open(journalFile, 4096));
+        dispatcher.setInstance(mixpanel);
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("$source", "batch");
+        expected.put("utm_medium", "push");
+        expected.put("utm_campaign", "yoloswag");
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_open"), mapEq(expected));
+        Assert.assertEquals(0, dispatcher.journal.getPendingCount());
+
+        // Events sent to Mixpanel are removed from the journal
+        dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN,
+                new TestEventPayload(null, "https://batch.com?utm_campaign=yoloswag", new HashMap<>()));
+        Mockito.verify(mixpanel, Mockito.times(2)).track(Mockito.eq("batch_notification_open"), mapEq(expected));
+        Assert.assertEquals(0, dispatcher.journal.getPendingCount());
+        dispatcher.journal.close();
+    }
+
+    @Test
+    public void testPayloadIsReadOnce() {
+        Map<String, String> customPayload = new HashMap<>();
+        customPayload.put("utm_campaign", "custom");
+        TestEventPayload payload = Mockito.spy(new TestEventPayload("tracking_id", "analytics_id",
+                "https://batch.com?utm_campaign=yoloswag&utm_content=button1", customPayload));
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.MESSAGING_WEBVIEW_CLICK, payload);
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("$source", "batch");
+        expected.put("utm_medium", "in-app");
+        expected.put("utm_campaign", "custom");
+        expected.put("utm_content", "button1");
+        expected.put("batch_tracking_id", "tracking_id");
+        expected.put("batch_webview_analytics_id", "analytics_id");
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_in_app_webview_click"), mapEq(expected));
+        Mockito.verify(payload).getTrackingId();
+        Mockito.verify(payload).getWebViewAnalyticsID();
+        Mockito.verify(payload).getDeeplink();
+        Mockito.verify(payload).getCustomValue("utm_campaign");
+        Mockito.verify(payload).getCustomValue("utm_medium");
+        Mockito.verify(payload).getCustomValue("utm_source");
+        Mockito.verifyNoMoreInteractions(payload);
+    }
+
+    @Test
+    public void testDeeplinkIsNotParsedWhenOverridden() {
+        mixpanelDispatcher.eventMapping = new EventMapping.Builder()
+                .setDeeplinkKeys(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, "utm_campaign")
+                .build();
+        Map<String, String> customPayload = new HashMap<>();
+        customPayload.put("utm_campaign", "custom");
+        TestEventPayload payload = Mockito.spy(new TestEventPayload(null, "https://batch.com?utm_campaign=yoloswag", customPayload));
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("$source", "batch");
+        expected.put("utm_medium", "push");
+        expected.put("utm_campaign", "custom");
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_open"), mapEq(expected));
+        Mockito.verify(payload, Mockito.never()).getDeeplink();
+    }
+
+    @Test
+    public void testEventWithoutSinkIsNotBuilt() {
+        MixpanelDispatcher dispatcher = new MixpanelDispatcher();
+        dispatcher.preInitBuffer = new PreInitBuffer(1, 1024);
+        dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN,
+                new TestEventPayload(null, "https://batch.com?utm_campaign=yoloswag", new HashMap<>()));
+
+        // The buffer is full and no instance is set: the event is dropped before reading its payload
+        Batch.EventDispatcher.Payload payload = Mockito.mock(Batch.EventDispatcher.Payload.class);
+        dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
+        dispatcher.preInitBuffer = null;
+        dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload);
+        Mockito.verifyNoMoreInteractions(payload);
+    }
+
+    @Test
+    public void testExtractionKeys() {
+        mixpanelDispatcher.deeplinkCache = new DeeplinkCache(10);
+        String deeplink = "https://batch.com?utm_campaign=yoloswag&utm_term=shoes#gclid=abc";
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN,
+                new TestEventPayload(null, deeplink, new HashMap<>()));
+
+        mixpanelDispatcher.extractionKeys = ExtractionKeys.DEFAULT
+                .with("utm_term", "utm_term")
+                .with("gclid", "google_click_id");
+        Map<String, String> customPayload = new HashMap<>();
+        customPayload.put("utm_term", "boots");
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN,
+                new TestEventPayload(null, deeplink, customPayload));
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("$source", "batch");
+        expected.put("utm_medium", "push");
+        expected.put("utm_campaign", "yoloswag");
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_open"), mapEq(expected));
+
+        // The cached attribution, scanned without the registered keys, isn't used
+        expected.put("utm_term", "boots");
+        expected.put("google_click_id", "abc");
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_open"), mapEq(expected));
+        Assert.assertEquals(2, mixpanelDispatcher.deeplinkCache.getStats().getMisses());
+    }
+
+    @Test
+    public void testTrackedJSONMatchesTrackMapConversion() {
+        mixpanelDispatcher.extractionKeys = ExtractionKeys.DEFAULT.with("gclid", "google_click_id");
+        Map<String, String> customPayload = new HashMap<>();
+        customPayload.put("utm_content", "custom_content");
+        customPayload.put("gclid", "custom_click");
+        String[] deeplinks = {
+                null,
+                "https://batch.com?utm_campaign=yoloswag&utm_source=batchsdk",
+                "https://batch.com/path?ref=home#utm_medium=fragment&utm_content=%E2%82%AC&gclid=abc",
+                "  myapp://product?utm_campaign=&utm_campaign=second&&=  "
+        };
+
+        for (Batch.EventDispatcher.Type type : Batch.EventDispatcher.Type.values()) {
+            for (String deeplink : deeplinks) {
+                for (Map<String, String> custom : Arrays.asList(new HashMap<String, String>(), customPayload)) {
+                    TestEventPayload payload = new TestEventPayload("tracking_id", "webview_id", deeplink, custom);
+                    Mockito.reset(mixpanel);
+                    mixpanelDispatcher.dispatchEvent(type, payload);
+
+                    // What trackMap built from the properties before they were converted directly
+                    EventPlan plan = mixpanelDispatcher.eventMapping.getPlan(type);
+                    Map<String, Object> properties = mixpanelDispatcher.getProperties(plan, type, payload);
+                    JSONObject expectedJson = new JSONObject(properties);
+
+                    ArgumentCaptor<JSONObject> tracked = ArgumentCaptor.forClass(JSONObject.class);
+                    Mockito.verify(mixpanel).track(Mockito.eq(plan.eventName), tracked.capture());
+                    Assert.assertEquals(toMap(expectedJson), toMap(tracked.getValue()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPropertyMapJSONMatchesMapConversion() throws JSONException {
+        String[] keys = {"$source", "utm_campaign", "utm_content", "batch_tracking_id", "batch_event_count", "custom"};
+        Object[] values = {"value", "", "caf\u00e9 \"quoted\"", 3, 0.5, Long.MAX_VALUE, true};
+        Random random = new Random(42);
+        for (int i = 0; i < 200; i++) {
+            PropertyMap map = new PropertyMap();
+            int count = random.nextInt(keys.length + 1);
+            for (int j = 0; j < count; j++) {
+                map.put(keys[random.nextInt(keys.length)], values[random.nextInt(values.length)]);
+            }
+            Assert.assertEquals(toMap(new JSONObject(map)), toMap(map.toJSONObject()));
         }
     }
 
-    public static Map<String, Object> mapEq(Map<String, Object> expected) {
+    private static TestEventPayload campaignPayload(String campaign) {
+        return new TestEventPayload(null, "https://batch.com?utm_campaign=" + campaign, new HashMap<>());
+    }
+
+    /**
+     * Match the JSONObject tracked by the dispatcher against the expected properties
+     */
+    public static JSONObject mapEq(Map<String, Object> expected) {
         return Mockito.argThat(new StringMapObjectMatcher(expected));
     }
 
-    private static class StringMapObjectMatcher implements ArgumentMatcher<Map<String, Object>>
+    /**
+     * Convert a tracked JSONObject back to its properties, JSONObject.NULL values being null
+     */
+    public static Map<String, Object> toMap(JSONObject json) {
+        Map<String, Object> map = new HashMap<>();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = json.opt(key);
+            if (value instanceof JSONObject) {
+                value = toMap((JSONObject) value);
+            }
+            map.put(key, JSONObject.NULL.equals(value) ? null : value);
+        }
+        return map;
+    }
+
+    private static class StringMapObjectMatcher implements ArgumentMatcher<JSONObject>
     {
         Map<String, Object> expected;
 
@@ -472,8 +761,8 @@ public class MixpanelDispatcherTest {
         }
 
         @Override
-        public boolean matches(Map<String, Object> map) {
-            return equalMaps(map, expected);
+        public boolean matches(JSONObject json) {
+            return json != null && equalMaps(toMap(json), expected);
         }
 
         private boolean equalMaps(Map<String, Object> one, Map<String, Object> two) {
@@ -0,0 +1,50 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import android.os.Build;
+
+import com.batch.android.Batch;
+import com.batch.android.BatchEventDispatcher;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test the dispatcher handed to Batch by the registrar
+ */
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+@PrepareForTest(MixpanelAPI.class)
+public class MixpanelRegistrarTest {
+
+    @Test
+    public void testLazyDispatcherForwardsEvents() {
+        BatchEventDispatcher dispatcher = new MixpanelRegistrar().getDispatcher(null);
+        Assert.assertSame(dispatcher, new MixpanelRegistrar().getDispatcher(null));
+        Assert.assertNotSame(MixpanelRegistrar.getInstance(null), dispatcher);
+
+        MixpanelAPI mixpanel = PowerMockito.mock(MixpanelAPI.class);
+        MixpanelRegistrar.getInstance(null).mixpanelInstance = mixpanel;
+        try {
+            dispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN,
+                    new TestEventPayload(null, "https://batch.com?utm_campaign=yoloswag", new HashMap<>()));
+        } finally {
+            MixpanelRegistrar.getInstance(null).mixpanelInstance = null;
+        }
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("$source", "batch");
+        expected.put("utm_medium", "push");
+        expected.put("utm_campaign", "yoloswag");
+        Mockito.verify(mixpanel).track(Mockito.eq("batch_notification_open"), MixpanelDispatcherTest.mapEq(expected));
+    }
+}
@@ -0,0 +1,104 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import android.os.Build;
+
+import com.batch.android.Batch;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.powermock.api.mockito.PowerMockito;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test sending events to several MixpanelAPI instances
+ */
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+@PrepareForTest(MixpanelAPI.class)
+public class MultipleInstancesTest {
+    private MixpanelAPI production;
+    private MixpanelAPI sandbox;
+    private MixpanelDispatcher mixpanelDispatcher;
+
+    @Before
+    public void setUp() {
+        production = PowerMockito.mock(MixpanelAPI.class);
+        sandbox = PowerMockito.mock(MixpanelAPI.class);
+
+        mixpanelDispatcher = new MixpanelDispatcher();
+    }
+
+    @Test
+    public void testPropertiesAreShared() {
+        mixpanelDispatcher.setInstance(production);
+        mixpanelDispatcher.addTarget(new MixpanelTarget(sandbox, null));
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload());
+
+        Map<String, Object> expectedParams = new HashMap<>();
+        expectedParams.put("$source", "batch");
+        expectedParams.put("utm_medium", "push");
+        expectedParams.put("utm_campaign", "campaign");
+        ArgumentCaptor<JSONObject> productionParams = ArgumentCaptor.forClass(JSONObject.class);
+        ArgumentCaptor<JSONObject> sandboxParams = ArgumentCaptor.forClass(JSONObject.class);
+        Mockito.verify(production).track(Mockito.eq("batch_notification_open"), productionParams.capture());
+        Mockito.verify(sandbox).track(Mockito.eq("batch_notification_open"), sandboxParams.capture());
+        Assert.assertEquals(expectedParams, MixpanelDispatcherTest.toMap(productionParams.getValue()));
+        // The properties are converted to JSON once
+        Assert.assertSame(productionParams.getValue(), sandboxParams.getValue());
+    }
+
+    @Test
+    public void testTargetFiltering() {
+        mixpanelDispatcher.setInstance(production);
+        mixpanelDispatcher.addTarget(new MixpanelTarget(sandbox, EnumSet.of(Batch.EventDispatcher.Type.NOTIFICATION_OPEN)));
+
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload());
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload());
+
+        Mockito.verify(production).track(Mockito.eq("batch_notification_open"), Mockito.<JSONObject>any());
+        Mockito.verify(production).track(Mockito.eq("batch_notification_display"), Mockito.<JSONObject>any());
+        Mockito.verify(sandbox).track(Mockito.eq("batch_notification_open"), Mockito.<JSONObject>any());
+        Mockito.verifyNoMoreInteractions(sandbox);
+
+        // Adding the target again replaces its filter
+        mixpanelDispatcher.addTarget(new MixpanelTarget(sandbox, Collections.<Batch.EventDispatcher.Type>emptySet()));
+        Assert.assertEquals(1, mixpanelDispatcher.additionalTargets.length);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_DISPLAY, payload());
+        Mockito.verify(sandbox).track(Mockito.eq("batch_notification_display"), Mockito.<JSONObject>any());
+
+        mixpanelDispatcher.removeTarget(sandbox);
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload());
+        Mockito.verify(production, Mockito.times(2)).track(Mockito.eq("batch_notification_open"), Mockito.<JSONObject>any());
+        Mockito.verifyNoMoreInteractions(sandbox);
+    }
+
+    @Test
+    public void testBufferedEventsAreSentToAllInstances() {
+        mixpanelDispatcher.addTarget(new MixpanelTarget(sandbox, null));
+        mixpanelDispatcher.dispatchEvent(Batch.EventDispatcher.Type.NOTIFICATION_OPEN, payload());
+        Mockito.verifyNoMoreInteractions(sandbox);
+
+        mixpanelDispatcher.setInstance(production);
+
+        Mockito.verify(production).track(Mockito.eq("batch_notification_open"), Mockito.<JSONObject>any());
+        Mockito.verify(sandbox).track(Mockito.eq("batch_notification_open"), Mockito.<JSONObject>any());
+    }
+
+    private static TestEventPayload payload() {
+        return new TestEventPayload(null, "https://batch.com?utm_campaign=campaign", new HashMap<>());
+    }
+}
@@ -0,0 +1,183 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import android.os.Build;
+
+import com.batch.android.Batch;
+import com.mixpanel.android.mpmetrics.MixpanelAPI;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test the byte budgets of extracted property values
+ */
+@Config(sdk = Build.VERSION_CODES.O_MR1)
+@RunWith(RobolectricTestRunner.class)
+@PrepareForTest(MixpanelAPI.class)
+public class PayloadBudgetTest {
+    private MixpanelDispatcher mixpanelDispatcher;
+
+    @Before
+    public void setUp() {
+        mixpanelDispatcher = new MixpanelDispatcher();
+    }
+
+    @Test
+    public void testQueryValueIsTruncated() {
+        PayloadBudget budget = enable(8, 1000, OversizedValuePolicy.TRUNCATE);
+
+        // Five 3 byte characters: only two fit
+        Map<String, Object> properties = getProperties(null,
+                "https://batch.com?utm_content=%E2%82%AC%E2%82%AC%E2%82%AC%E2%82%AC%E2%82%AC&utm_campaign=campaign");
+        Assert.assertEquals("\u20ac\u20ac", properties.get("utm_content"));
+        Assert.assertEquals("campaign", properties.get("utm_campaign"));
+        Assert.assertEquals("utm_content", properties.get(PayloadBudget.TRUNCATED_PROPERTIES_KEY));
+        Assert.assertEquals(9, budget.getSavedBytes());
+    }
+
+    @Test
+    public void testLongQueryValueIsOnlyDecodedUpToTheBudget() {
+        PayloadBudget budget = enable(10, 1000, OversizedValuePolicy.TRUNCATE);
+
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            content.append("a+b");
+        }
+        DeeplinkAttribution attribution = DeeplinkScanner.scan("https://batch.com?utm_content=" + content,
+                ExtractionKeys.DEFAULT, budget);
+        Assert.assertEquals("a ba ba ba", attribution.get(DeeplinkScanner.CONTENT));
+        Assert.assertEquals(3000, attribution.getOversizedBytes(DeeplinkScanner.CONTENT));
+        Assert.assertEquals(DeeplinkAttribution.WITHIN_BUDGET, attribution.getOversizedBytes(DeeplinkScanner.SOURCE));
+    }
+
+    @Test
+    public void testFragmentValueIsTruncatedWithoutSplittingCharacters() {
+        enable(4, 1000, OversizedValuePolicy.TRUNCATE);
+
+        Map<String, Object> properties = getProperties(null, "https://batch.com#utm_content=a\uD83D\uDE00b");
+        Assert.assertEquals("a", properties.get("utm_content"));
+
+        // Escaped fragments are decoded before being split
+        properties = getProperties(null, "https://batch.com#utm_content=%C3%A9%C3%A9%C3%A9");
+        Assert.assertEquals("\u00e9\u00e9", properties.get("utm_content"));
+    }
+
+    @Test
+    public void testMalformedValueIsMeasuredOnceDecoded() {
+        enable(4, 1000, OversizedValuePolicy.TRUNCATE);
+
+        // Each invalid byte is replaced by a 3 byte character
+        Map<String, Object> properties = getProperties(null, "https://batch.com?utm_content=%FF%FF%FF");
+        Assert.assertEquals("\ufffd", properties.get("utm_content"));
+        Assert.assertEquals("utm_content", properties.get(PayloadBudget.TRUNCATED_PROPERTIES_KEY));
+    }
+
+    @Test
+    public void testOversizedValuesAreDropped() {
+        PayloadBudget budget = enable(5, 1000, OversizedValuePolicy.DROP);
+
+        Map<String, String> custom = new HashMap<>();
+        custom.put("utm_source", "newsletter");
+        Map<String, Object> properties = getProperties(custom,
+                "https://batch.com?utm_content=banner_top&utm_campaign=sale");
+        Assert.assertFalse(properties.containsKey("utm_content"));
+        Assert.assertFalse(properties.containsKey("utm_source"));
+        Assert.assertEquals("sale", properties.get("utm_campaign"));
+        Assert.assertEquals("push", properties.get("utm_medium"));
+        Assert.assertEquals("utm_source,utm_content", properties.get(PayloadBudget.TRUNCATED_PROPERTIES_KEY));
+        Assert.assertEquals(20, budget.getSavedBytes());
+    }
+
+    @Test
+    public void testDroppedValueLetsLowerPrecedenceSourceSetTheProperty() {
+        enable(5, 1000, OversizedValuePolicy.DROP);
+
+        Map<String, String> custom = new HashMap<>();
+        custom.put("utm_campaign", "summer_sale");
+        Map<String, Object> properties = getProperties(custom, "https://batch.com?utm_campaign=sale");
+        Assert.assertEquals("sale", properties.get("utm_campaign"));
+        Assert.assertEquals("utm_campaign", properties.get(PayloadBudget.TRUNCATED_PROPERTIES_KEY));
+    }
+
+    @Test
+    public void testDroppedQueryValueLetsTheFragmentSetTheProperty() {
+        PayloadBudget budget = enable(5, 1000, OversizedValuePolicy.DROP);
+
+        Map<String, Object> properties = getProperties(null,
+                "https://batch.com?utm_campaign=summer_sale#utm_campaign=sale");
+        Assert.assertEquals("sale", properties.get("utm_campaign"));
+        Assert.assertEquals("utm_campaign", properties.get(PayloadBudget.TRUNCATED_PROPERTIES_KEY));
+        // Saved against the query value that would have been sent without a budget
+        Assert.assertEquals(7, budget.getSavedBytes());
+    }
+
+    @Test
+    public void testEventBudgetFollowsPrecedence() {
+        PayloadBudget budget = enable(100, 10, OversizedValuePolicy.TRUNCATE);
+
+        Map<String, String> custom = new HashMap<>();
+        custom.put("utm_source", "abcdef");
+        Map<String, Object> properties = getProperties(custom,
+                "https://batch.com?utm_content=0123456789&utm_campaign=campaign");
+        // The custom payload comes first, the deeplink values share what is left
+        Assert.assertEquals("abcdef", properties.get("utm_source"));
+        Assert.assertEquals("0123", properties.get("utm_content"));
+        Assert.assertFalse(properties.containsKey("utm_campaign"));
+        Assert.assertEquals("utm_content,utm_campaign", properties.get(PayloadBudget.TRUNCATED_PROPERTIES_KEY));
+        Assert.assertEquals(14, budget.getSavedBytes());
+    }
+
+    @Test
+    public void testValuesWithinBudgetAreUnchanged() {
+        PayloadBudget budget = enable(32, 64, OversizedValuePolicy.TRUNCATE);
+
+        Map<String, Object> properties = getProperties(null,
+                "https://batch.com?utm_content=a+b%20c%E2%82%AC&utm_campaign=campaign");
+        Assert.assertEquals("a b c\u20ac", properties.get("utm_content"));
+        Assert.assertEquals("campaign", properties.get("utm_campaign"));
+        Assert.assertFalse(properties.containsKey(PayloadBudget.TRUNCATED_PROPERTIES_KEY));
+        Assert.assertEquals(0, budget.getSavedBytes());
+    }
+
+    @Test
+    public void testCachedAttributionsFollowTheBudget() {
+        mixpanelDispatcher.deeplinkCache = new DeeplinkCache(10);
+        String deeplink = "https://batch.com?utm_content=banner_top";
+
+        Assert.assertEquals("banner_top", getProperties(null, deeplink).get("utm_content"));
+        enable(6, 1000, OversizedValuePolicy.TRUNCATE);
+        Assert.assertEquals("banner", getProperties(null, deeplink).get("utm_content"));
+        Assert.assertEquals("banner", getProperties(null, deeplink).get("utm_content"));
+        mixpanelDispatcher.payloadBudget = null;
+        Assert.assertEquals("banner_top", getProperties(null, deeplink).get("utm_content"));
+
+        DeeplinkCacheStats stats = mixpanelDispatcher.deeplinkCache.getStats();
+        Assert.assertEquals(1, stats.getHits());
+        Assert.assertEquals(3, stats.getMisses());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBudget() {
+        new PayloadBudget(0, 100, OversizedValuePolicy.TRUNCATE);
+    }
+
+    private PayloadBudget enable(int maxValueBytes, int maxEventBytes, OversizedValuePolicy policy) {
+        PayloadBudget budget = new PayloadBudget(maxValueBytes, maxEventBytes, policy);
+        mixpanelDispatcher.payloadBudget = budget;
+        return budget;
+    }
+
+    private Map<String, Object> getProperties(Map<String, String> customPayload, String deeplink) {
+        Batch.EventDispatcher.Type type = Batch.EventDispatcher.Type.NOTIFICATION_OPEN;
+        return mixpanelDispatcher.getProperties(mixpanelDispatcher.eventMapping.getPlan(type), type,
+                new TestEventPayload(null, deeplink, customPayload != null ? customPayload : new HashMap<String, String>()));
+    }
+}
@@ -0,0 +1,130 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Test the fixed-slot property map against HashMap
+ */
+public class PropertyMapTest {
+
+    private static final String[] KEYS = {
+            "$source", "utm_campaign", "utm_medium", "utm_source", "utm_content",
+            "batch_tracking_id", "batch_webview_analytics_id", "batch_event_count", "custom"
+    };
+
+    @Test
+    public void testBehavesLikeHashMap() {
+        Random random = new Random(42);
+        PropertyMap map = new PropertyMap();
+        Map<String, Object> expected = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            // Copy the key so that slots aren't only found by reference
+            String key = new String(KEYS[random.nextInt(KEYS.length)]);
+            Object value = random.nextInt(4) == 0 ? null : "value" + random.nextInt(3);
+            switch (random.nextInt(4)) {
+                case 0:
+                    Assert.assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                case 1:
+                    Assert.assertEquals(expected.containsKey(key), map.containsKey(key));
+                    Assert.assertEquals(expected.get(key), map.get(key));
+                    break;
+                default:
+                    Assert.assertEquals(expected.put(key, value), map.put(key, value));
+            }
+            Assert.assertEquals(expected.size(), map.size());
+            Assert.assertEquals(expected, map);
+            Assert.assertEquals(map, expected);
+            Assert.assertEquals(expected.hashCode(), map.hashCode());
+            Assert.assertEquals(expected.entrySet(), map.entrySet());
+        }
+    }
+
+    @Test
+    public void testEqualsBetweenPropertyMaps() {
+        PropertyMap first = new PropertyMap();
+        PropertyMap second = new PropertyMap();
+        first.put("utm_campaign", null);
+        Assert.assertNotEquals(first, second);
+
+        second.put("utm_campaign", null);
+        Assert.assertEquals(first, second);
+
+        first.put("custom", 1);
+        Assert.assertNotEquals(first, second);
+        first.remove("custom");
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(first.hashCode(), second.hashCode());
+    }
+
+    @Test
+    public void testIteratorRemove() {
+        PropertyMap map = new PropertyMap();
+        map.put("$source", "batch");
+        map.put("utm_medium", "push");
+        map.put("custom", "value");
+
+        Iterator<Map.Entry<String, Object>> iterator = map.entrySet().iterator();
+        while (iterator.hasNext()) {
+            if (!"utm_medium".equals(iterator.next().getKey())) {
+                iterator.remove();
+            }
+        }
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("utm_medium", "push");
+        Assert.assertEquals(expected, map);
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void testConcurrentModification() {
+        PropertyMap map = new PropertyMap();
+        map.put("$source", "batch");
+        map.put("utm_medium", "push");
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            map.put("utm_content", entry.getValue());
+        }
+    }
+
+    @Test
+    public void testFrozenMapIsImmutable() {
+        PropertyMap map = new PropertyMap();
+        map.put("$source", "batch");
+        map.put("custom", "value");
+        Assert.assertSame(map, PropertyMap.freeze(map));
+
+        Runnable[] mutations = {
+                () -> map.put("utm_medium", "push"),
+                () -> map.remove("$source"),
+                () -> map.clear(),
+                () -> map.entrySet().iterator().next().setValue("other"),
+                () -> {
+                    Iterator<Map.Entry<String, Object>> iterator = map.entrySet().iterator();
+                    iterator.next();
+                    iterator.next().setValue("other");
+                },
+                () -> {
+                    Iterator<Map.Entry<String, Object>> iterator = map.entrySet().iterator();
+                    iterator.next();
+                    iterator.remove();
+                }
+        };
+        for (Runnable mutation : mutations) {
+            try {
+                mutation.run();
+                Assert.fail();
+            } catch (UnsupportedOperationException expected) {
+                // Expected
+            }
+        }
+        Assert.assertEquals(2, map.size());
+        Assert.assertEquals("batch", map.get("$source"));
+        Assert.assertEquals("value", map.get("custom"));
+    }
+}
@@ -0,0 +1,88 @@
+package com.batch.android.dispatcher.mixpanel;
+
+import com.batch.android.Batch;
+import com.batch.android.BatchMessage;
+import com.batch.android.BatchPushPayload;
+
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Batch event payload used in tests
+ */
+class TestEventPayload implements Batch.EventDispatcher.Payload {
+
+    private String trackingId;
+    private String deeplink;
+    private String webViewAnalyticsID;
+    private Map<String, String> customPayload;
+
+    TestEventPayload(String trackingId,
+                     String deeplink,
+                     Map<String, String> customPayload)
+    {
+        this(trackingId, null, deeplink, customPayload);
+    }
+
+    TestEventPayload(String trackingId,
+                     String webViewAnalyticsID,
+                     String deeplink,
+                     Map<String, String> customPayload)
+    {
+        this.trackingId = trackingId;
+        this.webViewAnalyticsID = webViewAnalyticsID;
+        this.deeplink = deeplink;
+        this.customPayload = customPayload;
+    }
+
+    @Nullable
+    @Override
+    public String getTrackingId()
+    {
+        return trackingId;
+    }
+
+    @Nullable
+    @Override
+    public String getWebViewAnalyticsID() {
+        return webViewAnalyticsID;
+    }
+
+    @Nullable
+    @Override
+    public String getDeeplink()
+    {
+        return deeplink;
+    }
+
+    @Nullable
+    @Override
+    public String getCustomValue(@NonNull String key)
+    {
+        if (customPayload == null) {
+            return null;
+        }
+        return customPayload.get(key);
+    }
+
+    @Override
+    public boolean isPositiveAction() {
+        return false;
+    }
+
+    @Nullable
+    @Override
+    public BatchMessage getMessagingPayload()
+    {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public BatchPushPayload getPushPayload()
+    {
+        return null;
+    }
+}